@@ -16,6 +16,8 @@
 package com.google.android.exoplayer.demo;
 
 import android.media.MediaCodec;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.google.android.exoplayer.MediaCodecTrackRenderer;
 import com.google.android.exoplayer.TimeRange;
@@ -24,16 +26,33 @@ import com.google.android.exoplayer.demo.player.DemoPlayer;
 
 import java.io.IOException;
 import java.text.Format;
+import java.text.NumberFormat;
+import java.util.Locale;
 
 /**
  * Logs player events using {@link Log}.
  */
 public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener,
     DemoPlayer.InternalErrorListener {
+
+  private static final String TAG = "EventLogger";
+  private static final NumberFormat TIME_FORMAT;
+  static {
+    TIME_FORMAT = NumberFormat.getInstance(Locale.US);
+    TIME_FORMAT.setMinimumFractionDigits(3);
+    TIME_FORMAT.setMaximumFractionDigits(3);
+    TIME_FORMAT.setGroupingUsed(false);
+  }
+
+  private long sessionStartTimeMs;
+
   public void startSession() {
+    sessionStartTimeMs = SystemClock.elapsedRealtime();
+    Log.d(TAG, "start [0]");
   }
 
   public void endSession() {
+    Log.d(TAG, "end [" + getSessionTimeString() + "]");
   }
 
     @Override
@@ -53,7 +72,9 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
 
     @Override
     public void onBandwidthSample(int elapsedMs, long bytes, long bitrateEstimate) {
-
+        // Parsed by BandwidthEstimatorReplay. Keep the format in sync.
+        Log.d(TAG, "bandwidth [" + getSessionTimeString() + ", " + bytes + ", "
+                + getTimeString(elapsedMs) + ", " + bitrateEstimate + "]");
     }
 
     @Override
@@ -130,4 +151,13 @@ public class EventLogger implements DemoPlayer.Listener, DemoPlayer.InfoListener
     public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees, float pixelWidthHeightRatio) {
 
     }
+
+    private String getSessionTimeString() {
+        return getTimeString(SystemClock.elapsedRealtime() - sessionStartTimeMs);
+    }
+
+    private String getTimeString(long timeMs) {
+        return TIME_FORMAT.format(timeMs / 1000d);
+    }
+
 }
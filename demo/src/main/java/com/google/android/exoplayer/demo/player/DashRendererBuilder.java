@@ -16,7 +16,6 @@
 package com.google.android.exoplayer.demo.player;
 
 import com.google.android.exoplayer.DefaultLoadControl;
-import com.google.android.exoplayer.LoadControl;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecSelector;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
@@ -39,8 +38,9 @@ import com.google.android.exoplayer.drm.MediaDrmCallback;
 import com.google.android.exoplayer.drm.StreamingDrmSessionManager;
 import com.google.android.exoplayer.drm.UnsupportedDrmException;
 import com.google.android.exoplayer.text.TextTrackRenderer;
+import com.google.android.exoplayer.upstream.BandwidthEstimateStore;
+import com.google.android.exoplayer.upstream.ConcurrentAllocator;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer.upstream.DefaultUriDataSource;
 import com.google.android.exoplayer.upstream.UriDataSource;
@@ -182,8 +182,12 @@ public class DashRendererBuilder implements RendererBuilder {
     private void buildRenderers() {
       Period period = manifest.getPeriod(0);
       Handler mainHandler = player.getMainHandler();
-      LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
-      DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(mainHandler, player);
+      DefaultLoadControl loadControl =
+          new DefaultLoadControl(new ConcurrentAllocator(BUFFER_SEGMENT_SIZE));
+      player.onLoadControl(loadControl);
+      DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(mainHandler, player,
+          new BandwidthEstimateStore(context));
+      player.onBandwidthMeter(bandwidthMeter);
 
       boolean hasContentProtection = false;
       for (int i = 0; i < period.adaptationSets.size(); i++) {
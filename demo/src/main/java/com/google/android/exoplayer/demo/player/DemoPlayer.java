@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer.demo.player;
 
+import com.google.android.exoplayer.DefaultLoadControl;
 import com.google.android.exoplayer.ExoPlaybackException;
 import com.google.android.exoplayer.ExoPlayer;
 import com.google.android.exoplayer.MediaCodecTrackRenderer;
@@ -30,6 +31,7 @@ import com.google.android.exoplayer.text.Cue;
 import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer.util.DebugTextViewHelper;
+import com.google.android.exoplayer.util.MemoryBudgetManager;
 import com.google.android.exoplayer.util.PlayerControl;
 
 import android.media.MediaCodec.CryptoException;
@@ -171,6 +173,8 @@ StreamingDrmSessionManager.EventListener,
   private Format videoFormat;
   private int videoTrackToRestore;
   private boolean backgrounded;
+  private DefaultLoadControl loadControl;
+  private DefaultBandwidthMeter bandwidthMeter;
 
   private CaptionListener captionListener;
   private Id3MetadataListener id3MetadataListener;
@@ -260,6 +264,12 @@ StreamingDrmSessionManager.EventListener,
       return;
     }
     this.backgrounded = backgrounded;
+    if (loadControl != null) {
+      loadControl.setMemoryBudgetPriority(getMemoryBudgetPriority());
+    }
+    if (bandwidthMeter != null) {
+      bandwidthMeter.setMemoryBudgetPriority(getMemoryBudgetPriority());
+    }
     if (backgrounded) {
       videoTrackToRestore = getSelectedTrack(TYPE_VIDEO);
       setSelectedTrack(TYPE_VIDEO, TRACK_DISABLED);
@@ -281,6 +291,34 @@ StreamingDrmSessionManager.EventListener,
     rendererBuilder.buildRenderers(this);
   }
 
+  /**
+   * Invoked by a {@link RendererBuilder} with the load control that it has built, so that its
+   * buffer can be registered with the process-wide memory budget at a priority reflecting whether
+   * the player is backgrounded.
+   *
+   * @param loadControl The load control.
+   */
+  /* package */ void onLoadControl(DefaultLoadControl loadControl) {
+    releaseLoadControl();
+    this.loadControl = loadControl;
+    loadControl.registerWithMemoryBudget(MemoryBudgetManager.getInstance(),
+        getMemoryBudgetPriority());
+  }
+
+  /**
+   * Invoked by a {@link RendererBuilder} with the bandwidth meter that it has built, so that its
+   * history can be registered with the process-wide memory budget at a priority reflecting whether
+   * the player is backgrounded, and so that the meter can be released when the player is released.
+   *
+   * @param bandwidthMeter The bandwidth meter.
+   */
+  /* package */ void onBandwidthMeter(DefaultBandwidthMeter bandwidthMeter) {
+    releaseBandwidthMeter();
+    this.bandwidthMeter = bandwidthMeter;
+    bandwidthMeter.registerWithMemoryBudget(MemoryBudgetManager.getInstance(),
+        getMemoryBudgetPriority());
+  }
+
   /**
    * Invoked with the results from a {@link RendererBuilder}.
    *
@@ -321,6 +359,8 @@ StreamingDrmSessionManager.EventListener,
     rendererBuildingState = RENDERER_BUILDING_STATE_IDLE;
     surface = null;
     player.release();
+    releaseLoadControl();
+    releaseBandwidthMeter();
   }
 
   public int getPlaybackState() {
@@ -399,6 +439,25 @@ StreamingDrmSessionManager.EventListener,
   }
 
 
+  private int getMemoryBudgetPriority() {
+    return backgrounded ? MemoryBudgetManager.PRIORITY_BACKGROUND
+        : MemoryBudgetManager.PRIORITY_FOREGROUND;
+  }
+
+  private void releaseLoadControl() {
+    if (loadControl != null) {
+      loadControl.unregisterFromMemoryBudget();
+      loadControl = null;
+    }
+  }
+
+  private void releaseBandwidthMeter() {
+    if (bandwidthMeter != null) {
+      bandwidthMeter.release();
+      bandwidthMeter = null;
+    }
+  }
+
   private void maybeReportPlayerState() {
     boolean playWhenReady = player.getPlayWhenReady();
     int playbackState = getPlaybackState();
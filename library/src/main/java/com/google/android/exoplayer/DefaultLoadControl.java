@@ -16,11 +16,18 @@
 package com.google.android.exoplayer;
 
 import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.FairShareAllocator;
 import com.google.android.exoplayer.upstream.NetworkLock;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.MemoryBudgetManager;
+import com.google.android.exoplayer.util.SystemClock;
 
 import android.os.Handler;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 
@@ -38,6 +45,35 @@ import java.util.List;
  * This implementation of {@link LoadControl} integrates with {@link NetworkLock}, by registering
  * itself as a task with priority {@link NetworkLock#STREAMING_PRIORITY} during loading periods,
  * and unregistering itself during draining periods.
+ * <p>
+ * If the {@link Allocator} is a {@link FairShareAllocator}, then each loader is registered with it
+ * using its buffer size contribution as its quota, and {@link #getAllocator(Object)} returns the
+ * loader's view. A loader that obtains its allocations through its view and has allocated less than
+ * its quota is then allowed to load even when the buffer is full, so that a loader that has got
+ * ahead cannot starve the others of memory. Loaders that allocate through {@link #getAllocator()}
+ * are only allowed to load whilst the buffer is below its target size.
+ * <p>
+ * By default the target buffer size is the sum of the buffer size contributions of the registered
+ * loaders. If {@link #setBitrateAwareBufferSizing(int, int)} is called, then the target for each
+ * loader is instead derived from the bitrate reported through {@link #updateBitrate(Object, int)},
+ * so that the buffer holds a similar duration of media regardless of the bitrate being loaded. No
+ * loader in this library reports its bitrate, so bitrate aware sizing only takes effect for loaders
+ * that call {@link #updateBitrate(Object, int)} on this class directly.
+ * <p>
+ * By default a loader is allowed to start a load only if no other loader's next load position is
+ * further behind. If {@link #setDeadlineScheduling(int)} is called, then pending loads are instead
+ * ordered by deadline, which is the duration of media that each loader has buffered ahead of the
+ * playback position, and up to a fixed number of loads are admitted concurrently. The loader that
+ * is closest to running out of media is always served first. The resulting schedule can be obtained
+ * for debugging by calling {@link #getSchedule()}.
+ * <p>
+ * If {@link #setBurstLoading(int, long)} is called, then the control defers filling buffers until
+ * a larger deficit has accumulated, and then loads until every loader is above the high watermark.
+ * Network activity is batched into fewer, longer bursts, between which the radio can power down.
+ * <p>
+ * If {@link #registerWithMemoryBudget(MemoryBudgetManager, int)} is called, then the target buffer
+ * size is additionally limited to the share of a process-wide memory budget granted to the control,
+ * and the allocator is trimmed whenever that share shrinks.
  */
 public final class DefaultLoadControl implements LoadControl {
 
@@ -55,17 +91,71 @@ public final class DefaultLoadControl implements LoadControl {
 
   }
 
+  /**
+   * An entry in the schedule returned by {@link DefaultLoadControl#getSchedule()}.
+   */
+  public static final class ScheduleEntry {
+
+    /**
+     * The loader.
+     */
+    public final Object loader;
+    /**
+     * The duration of media that the loader has buffered ahead of the playback position, or
+     * {@link Long#MAX_VALUE} if the loader has no next load position.
+     */
+    public final long deadlineUs;
+    /**
+     * Whether the loader is loading.
+     */
+    public final boolean loading;
+    /**
+     * Whether the loader is admitted to start its next load.
+     */
+    public final boolean admitted;
+
+    /* package */ ScheduleEntry(Object loader, long deadlineUs, boolean loading,
+        boolean admitted) {
+      this.loader = loader;
+      this.deadlineUs = deadlineUs;
+      this.loading = loading;
+      this.admitted = admitted;
+    }
+
+    @Override
+    public String toString() {
+      return loader + " [deadlineUs=" + deadlineUs + ", loading=" + loading + ", admitted="
+          + admitted + "]";
+    }
+
+  }
+
+  /**
+   * A suggested maximum number of concurrent loads for {@link #setDeadlineScheduling(int)}.
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_LOADS = 2;
+
   public static final int DEFAULT_LOW_WATERMARK_MS = 15000;
   public static final int DEFAULT_HIGH_WATERMARK_MS = 30000;
   public static final float DEFAULT_LOW_BUFFER_LOAD = 0.2f;
   public static final float DEFAULT_HIGH_BUFFER_LOAD = 0.8f;
 
+  private static final Comparator<LoaderState> DEADLINE_COMPARATOR =
+      new Comparator<LoaderState>() {
+        @Override
+        public int compare(LoaderState first, LoaderState second) {
+          return first.deadlineUs < second.deadlineUs ? -1
+              : first.deadlineUs == second.deadlineUs ? 0 : 1;
+        }
+      };
+
   private static final int ABOVE_HIGH_WATERMARK = 0;
   private static final int BETWEEN_WATERMARKS = 1;
   private static final int BELOW_LOW_WATERMARK = 2;
 
   private final Allocator allocator;
-  private final List<Object> loaders;
+  private final FairShareAllocator fairShareAllocator;
+  private final List<LoaderState> loaders;
   private final HashMap<Object, LoaderState> loaderStates;
   private final Handler eventHandler;
   private final EventListener eventListener;
@@ -74,6 +164,17 @@ public final class DefaultLoadControl implements LoadControl {
   private final long highWatermarkUs;
   private final float lowBufferLoad;
   private final float highBufferLoad;
+  private final Clock clock;
+  private final MemoryBudgetManager.Consumer memoryBudgetConsumer;
+
+  private int bufferDurationMs;
+  private int maxBufferSize;
+  private int maxConcurrentLoads;
+  private long burstDeficitUs;
+  private long maxIdleMs;
+  private long drainStartTimeMs;
+  private MemoryBudgetManager memoryBudgetManager;
+  private volatile long memoryBudget;
 
   private int targetBufferSize;
   private long maxLoadStartPositionUs;
@@ -125,6 +226,8 @@ public final class DefaultLoadControl implements LoadControl {
   public DefaultLoadControl(Allocator allocator, Handler eventHandler, EventListener eventListener,
       int lowWatermarkMs, int highWatermarkMs, float lowBufferLoad, float highBufferLoad) {
     this.allocator = allocator;
+    this.fairShareAllocator = allocator instanceof FairShareAllocator
+        ? (FairShareAllocator) allocator : null;
     this.eventHandler = eventHandler;
     this.eventListener = eventListener;
     this.loaders = new ArrayList<>();
@@ -133,26 +236,165 @@ public final class DefaultLoadControl implements LoadControl {
     this.highWatermarkUs = highWatermarkMs * 1000L;
     this.lowBufferLoad = lowBufferLoad;
     this.highBufferLoad = highBufferLoad;
+    this.clock = new SystemClock();
+    this.memoryBudgetConsumer = new MemoryBudgetConsumer();
+    this.memoryBudget = Long.MAX_VALUE;
+  }
+
+  /**
+   * Enables bitrate aware buffer sizing, in which the target buffer size of each loader is the
+   * number of bytes required to buffer a fixed duration of media at the bitrate most recently
+   * reported by the loader. Loaders that have not reported a bitrate continue to use their buffer
+   * size contribution.
+   *
+   * @param bufferDurationMs The duration of media to buffer for each loader, or 0 to revert to
+   *     using the buffer size contributions of the loaders.
+   * @param maxBufferSize The maximum total target buffer size, in bytes. The targets of the loaders
+   *     are scaled down proportionally if their sum exceeds this value.
+   */
+  public void setBitrateAwareBufferSizing(int bufferDurationMs, int maxBufferSize) {
+    Assertions.checkArgument(bufferDurationMs >= 0);
+    Assertions.checkArgument(maxBufferSize > 0);
+    this.bufferDurationMs = bufferDurationMs;
+    this.maxBufferSize = maxBufferSize;
+    updateTargetBufferSize();
+  }
+
+  /**
+   * Enables deadline ordered scheduling, in which loads are admitted in order of how soon each
+   * loader's buffered media will run out, and up to a fixed number of loads are in progress at
+   * once.
+   *
+   * @param maxConcurrentLoads The maximum number of concurrent loads, or 0 to revert to allowing
+   *     only the loaders that are furthest behind to start loads.
+   */
+  public void setDeadlineScheduling(int maxConcurrentLoads) {
+    Assertions.checkArgument(maxConcurrentLoads >= 0);
+    this.maxConcurrentLoads = maxConcurrentLoads;
+  }
+
+  /**
+   * Enables burst loading. Once the control has stopped filling buffers, it starts again only when
+   * the loader with the least media buffered has fallen a specified duration below the high
+   * watermark, or when a maximum idle time has elapsed and at least one loader is below the high
+   * watermark. The resulting burst continues until every loader is above the high watermark.
+   *
+   * @param burstDeficitMs The duration below the high watermark at which a burst starts, or 0 to
+   *     disable burst loading. Should be greater than the difference between the high and low
+   *     watermarks for bursts to be larger than in the default mode.
+   * @param maxIdleMs The maximum time between the end of one burst and the start of the next, in
+   *     milliseconds.
+   */
+  public void setBurstLoading(int burstDeficitMs, long maxIdleMs) {
+    Assertions.checkArgument(burstDeficitMs >= 0);
+    Assertions.checkArgument(maxIdleMs > 0);
+    this.burstDeficitUs = burstDeficitMs * 1000L;
+    this.maxIdleMs = maxIdleMs;
+    drainStartTimeMs = clock.elapsedRealtime();
+  }
+
+  /**
+   * Registers the control's buffer with a {@link MemoryBudgetManager}, requesting the target
+   * buffer size. The target buffer size is then limited to the number of bytes granted by the
+   * manager.
+   *
+   * @param memoryBudgetManager The manager.
+   * @param priority The priority of the buffer, as defined by {@link MemoryBudgetManager}.
+   */
+  public void registerWithMemoryBudget(MemoryBudgetManager memoryBudgetManager, int priority) {
+    Assertions.checkState(this.memoryBudgetManager == null);
+    this.memoryBudgetManager = memoryBudgetManager;
+    memoryBudgetManager.register(memoryBudgetConsumer, targetBufferSize, priority);
+  }
+
+  /**
+   * Updates the priority of the buffer with the {@link MemoryBudgetManager} with which it's
+   * registered, for example when the player moves between the foreground and the background.
+   *
+   * @param priority The priority of the buffer, as defined by {@link MemoryBudgetManager}.
+   */
+  public void setMemoryBudgetPriority(int priority) {
+    memoryBudgetManager.setPriority(memoryBudgetConsumer, priority);
+  }
+
+  /**
+   * Unregisters the buffer from the {@link MemoryBudgetManager} with which it's registered, if any.
+   */
+  public void unregisterFromMemoryBudget() {
+    if (memoryBudgetManager != null) {
+      memoryBudgetManager.unregister(memoryBudgetConsumer);
+      memoryBudgetManager = null;
+      memoryBudget = Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Returns the current schedule, ordered by deadline. Intended for debugging.
+   * <p>
+   * The schedule is a snapshot of the state computed by the most recent call to
+   * {@link #update(Object, long, long, boolean)}. Obtaining it does not alter the state of the
+   * control.
+   *
+   * @return The schedule.
+   */
+  public List<ScheduleEntry> getSchedule() {
+    List<LoaderState> orderedLoaders = new ArrayList<>(loaders);
+    Collections.sort(orderedLoaders, DEADLINE_COMPARATOR);
+    List<ScheduleEntry> schedule = new ArrayList<>(orderedLoaders.size());
+    for (int i = 0; i < orderedLoaders.size(); i++) {
+      LoaderState loaderState = orderedLoaders.get(i);
+      schedule.add(new ScheduleEntry(loaderState.loader, loaderState.deadlineUs,
+          loaderState.loading, loaderState.admitted));
+    }
+    return schedule;
   }
 
   @Override
   public void register(Object loader, int bufferSizeContribution) {
-    loaders.add(loader);
-    loaderStates.put(loader, new LoaderState(bufferSizeContribution));
-    targetBufferSize += bufferSizeContribution;
+    LoaderState loaderState = new LoaderState(loader, bufferSizeContribution);
+    loaders.add(loaderState);
+    loaderStates.put(loader, loaderState);
+    if (fairShareAllocator != null) {
+      fairShareAllocator.register(loader, bufferSizeContribution);
+    }
+    updateTargetBufferSize();
   }
 
   @Override
   public void unregister(Object loader) {
-    loaders.remove(loader);
-    LoaderState state = loaderStates.remove(loader);
-    targetBufferSize -= state.bufferSizeContribution;
+    loaders.remove(loaderStates.remove(loader));
+    if (fairShareAllocator != null) {
+      fairShareAllocator.unregister(loader);
+    }
+    updateTargetBufferSize();
     updateControlState();
   }
 
+  /**
+   * Updates the bitrate of the media that a registered loader is loading, for example when a
+   * different format is selected. Only used if bitrate aware buffer sizing is enabled.
+   *
+   * @param loader The registered loader.
+   * @param bitrate The average bitrate of the media in bits per second, or -1 if unknown.
+   */
+  public void updateBitrate(Object loader, int bitrate) {
+    LoaderState loaderState = loaderStates.get(loader);
+    if (loaderState.bitrate != bitrate) {
+      loaderState.bitrate = bitrate;
+      updateTargetBufferSize();
+    }
+  }
+
+  /**
+   * Returns the current target buffer size, in bytes, taking into account any memory budget.
+   */
+  public int getTargetBufferSize() {
+    return (int) Math.min(targetBufferSize, memoryBudget);
+  }
+
   @Override
   public void trimAllocator() {
-    allocator.trim(targetBufferSize);
+    allocator.trim(getTargetBufferSize());
   }
 
   @Override
@@ -160,6 +402,24 @@ public final class DefaultLoadControl implements LoadControl {
     return allocator;
   }
 
+  /**
+   * Returns the {@link Allocator} that a registered loader should use to obtain memory
+   * allocations. If the allocator is a {@link FairShareAllocator} then this is the loader's view,
+   * through which its allocations must also be released. Else it is {@link #getAllocator()}.
+   *
+   * @param loader The registered loader.
+   * @return The {@link Allocator} to use.
+   */
+  public Allocator getAllocator(Object loader) {
+    if (fairShareAllocator != null) {
+      Allocator loaderAllocator = fairShareAllocator.getAllocator(loader);
+      if (loaderAllocator != null) {
+        return loaderAllocator;
+      }
+    }
+    return allocator;
+  }
+
   @Override
   public boolean update(Object loader, long playbackPositionUs, long nextLoadPositionUs,
       boolean loading) {
@@ -173,6 +433,8 @@ public final class DefaultLoadControl implements LoadControl {
       loaderState.nextLoadPositionUs = nextLoadPositionUs;
       loaderState.loading = loading;
     }
+    loaderState.deadlineUs = nextLoadPositionUs == -1 ? Long.MAX_VALUE
+        : nextLoadPositionUs - playbackPositionUs;
 
     // Update the buffer state.
     int currentBufferSize = allocator.getTotalBytesAllocated();
@@ -182,13 +444,70 @@ public final class DefaultLoadControl implements LoadControl {
       this.bufferState = bufferState;
     }
 
-    // If either of the individual states have changed, update the shared control state.
-    if (loaderStateChanged || bufferStateChanged) {
+    // If either of the individual states have changed, update the shared control state. Between
+    // bursts the decision to start the next one depends on the deadlines and the time, so it is
+    // re-evaluated on every update.
+    if (loaderStateChanged || bufferStateChanged || (burstDeficitUs != 0 && !fillingBuffers)) {
       updateControlState();
     }
 
-    return currentBufferSize < targetBufferSize && nextLoadPositionUs != -1
-        && nextLoadPositionUs <= maxLoadStartPositionUs;
+    boolean haveBufferSpace = currentBufferSize < getTargetBufferSize()
+        || (fairShareAllocator != null && fairShareAllocator.isWithinQuota(loader));
+    if (maxConcurrentLoads == 0) {
+      return haveBufferSpace && nextLoadPositionUs != -1
+          && nextLoadPositionUs <= maxLoadStartPositionUs;
+    }
+
+    updateSchedule();
+    boolean startLoad = haveBufferSpace && fillingBuffers && loaderState.admitted;
+    if (startLoad) {
+      // Occupy the slot until the loader next reports its state, so that the slot isn't also given
+      // to another loader.
+      loaderState.loading = true;
+      loaderState.admitted = false;
+    }
+    return startLoad;
+  }
+
+  private void updateTargetBufferSize() {
+    long totalTargetBufferSize = 0;
+    for (int i = 0; i < loaders.size(); i++) {
+      LoaderState loaderState = loaders.get(i);
+      loaderState.targetBufferSize = getLoaderTargetBufferSize(loaderState);
+      totalTargetBufferSize += loaderState.targetBufferSize;
+    }
+    if (bufferDurationMs != 0 && totalTargetBufferSize > maxBufferSize) {
+      // Scale down the targets of the loaders in proportion.
+      for (int i = 0; i < loaders.size(); i++) {
+        LoaderState loaderState = loaders.get(i);
+        loaderState.targetBufferSize =
+            (int) ((long) loaderState.targetBufferSize * maxBufferSize / totalTargetBufferSize);
+      }
+      totalTargetBufferSize = maxBufferSize;
+    }
+    if (fairShareAllocator != null) {
+      for (int i = 0; i < loaders.size(); i++) {
+        LoaderState loaderState = loaders.get(i);
+        fairShareAllocator.setQuota(loaderState.loader, loaderState.targetBufferSize);
+      }
+    }
+    int previousTargetBufferSize = targetBufferSize;
+    targetBufferSize = (int) totalTargetBufferSize;
+    if (memoryBudgetManager != null) {
+      memoryBudgetManager.setRequestedBytes(memoryBudgetConsumer, targetBufferSize);
+    }
+    if (targetBufferSize < previousTargetBufferSize) {
+      // Release memory held for the larger buffer.
+      trimAllocator();
+    }
+  }
+
+  private int getLoaderTargetBufferSize(LoaderState loaderState) {
+    if (bufferDurationMs == 0 || loaderState.bitrate <= 0) {
+      return loaderState.bufferSizeContribution;
+    }
+    long bitrateBufferSize = (long) loaderState.bitrate * bufferDurationMs / 8000;
+    return (int) Math.min(bitrateBufferSize, Integer.MAX_VALUE);
   }
 
   private int getLoaderBufferState(long playbackPositionUs, long nextLoadPositionUs) {
@@ -203,7 +522,7 @@ public final class DefaultLoadControl implements LoadControl {
   }
 
   private int getBufferState(int currentBufferSize) {
-    float bufferLoad = (float) currentBufferSize / targetBufferSize;
+    float bufferLoad = (float) currentBufferSize / getTargetBufferSize();
     return bufferLoad > highBufferLoad ? ABOVE_HIGH_WATERMARK
         : bufferLoad < lowBufferLoad ? BELOW_LOW_WATERMARK
         : BETWEEN_WATERMARKS;
@@ -213,16 +532,29 @@ public final class DefaultLoadControl implements LoadControl {
     boolean loading = false;
     boolean haveNextLoadPosition = false;
     int highestState = bufferState;
+    long minDeadlineUs = Long.MAX_VALUE;
     for (int i = 0; i < loaders.size(); i++) {
-      LoaderState loaderState = loaderStates.get(loaders.get(i));
+      LoaderState loaderState = loaders.get(i);
       loading |= loaderState.loading;
       haveNextLoadPosition |= loaderState.nextLoadPositionUs != -1;
       highestState = Math.max(highestState, loaderState.bufferState);
+      minDeadlineUs = Math.min(minDeadlineUs, loaderState.deadlineUs);
     }
 
-    fillingBuffers = !loaders.isEmpty() && (loading || haveNextLoadPosition)
-        && (highestState == BELOW_LOW_WATERMARK
-        || (highestState == BETWEEN_WATERMARKS && fillingBuffers));
+    boolean wasFillingBuffers = fillingBuffers;
+    boolean canLoad = !loaders.isEmpty() && (loading || haveNextLoadPosition);
+    if (burstDeficitUs != 0 && !fillingBuffers) {
+      long nowMs = clock.elapsedRealtime();
+      fillingBuffers = canLoad && highestState != ABOVE_HIGH_WATERMARK
+          && (minDeadlineUs <= highWatermarkUs - burstDeficitUs
+          || nowMs - drainStartTimeMs >= maxIdleMs);
+    } else {
+      fillingBuffers = canLoad && (highestState == BELOW_LOW_WATERMARK
+          || (highestState == BETWEEN_WATERMARKS && fillingBuffers));
+    }
+    if (wasFillingBuffers && !fillingBuffers) {
+      drainStartTimeMs = clock.elapsedRealtime();
+    }
     if (fillingBuffers && !streamingPrioritySet) {
       NetworkLock.instance.add(NetworkLock.STREAMING_PRIORITY);
       streamingPrioritySet = true;
@@ -236,9 +568,7 @@ public final class DefaultLoadControl implements LoadControl {
     maxLoadStartPositionUs = -1;
     if (fillingBuffers) {
       for (int i = 0; i < loaders.size(); i++) {
-        Object loader = loaders.get(i);
-        LoaderState loaderState = loaderStates.get(loader);
-        long loaderTime = loaderState.nextLoadPositionUs;
+        long loaderTime = loaders.get(i).nextLoadPositionUs;
         if (loaderTime != -1
             && (maxLoadStartPositionUs == -1 || loaderTime < maxLoadStartPositionUs)) {
           maxLoadStartPositionUs = loaderTime;
@@ -247,6 +577,37 @@ public final class DefaultLoadControl implements LoadControl {
     }
   }
 
+  /**
+   * Orders {@link #loaders} by deadline, and admits the loaders with the earliest deadlines to fill
+   * the slots not occupied by loads that are in progress.
+   */
+  private void updateSchedule() {
+    // Insertion sort, since the order changes little between updates.
+    for (int i = 1; i < loaders.size(); i++) {
+      LoaderState loaderState = loaders.get(i);
+      int j = i - 1;
+      while (j >= 0 && loaders.get(j).deadlineUs > loaderState.deadlineUs) {
+        loaders.set(j + 1, loaders.get(j));
+        j--;
+      }
+      loaders.set(j + 1, loaderState);
+    }
+    int availableSlots = maxConcurrentLoads;
+    for (int i = 0; i < loaders.size(); i++) {
+      if (loaders.get(i).loading) {
+        availableSlots--;
+      }
+    }
+    for (int i = 0; i < loaders.size(); i++) {
+      LoaderState loaderState = loaders.get(i);
+      loaderState.admitted = availableSlots > 0 && !loaderState.loading
+          && loaderState.nextLoadPositionUs != -1;
+      if (loaderState.admitted) {
+        availableSlots--;
+      }
+    }
+  }
+
   private void notifyLoadingChanged(final boolean loading) {
     if (eventHandler != null && eventListener != null) {
       eventHandler.post(new Runnable()  {
@@ -258,19 +619,43 @@ public final class DefaultLoadControl implements LoadControl {
     }
   }
 
+  private final class MemoryBudgetConsumer implements MemoryBudgetManager.Consumer {
+
+    @Override
+    public long getBytesUsed() {
+      return allocator.getTotalBytesAllocated();
+    }
+
+    @Override
+    public void setByteTarget(long targetBytes) {
+      memoryBudget = targetBytes;
+      trimAllocator();
+    }
+
+  }
+
   private static class LoaderState {
 
+    public final Object loader;
     public final int bufferSizeContribution;
 
+    public int bitrate;
+    public int targetBufferSize;
     public int bufferState;
     public boolean loading;
     public long nextLoadPositionUs;
+    public long deadlineUs;
+    public boolean admitted;
 
-    public LoaderState(int bufferSizeContribution) {
+    public LoaderState(Object loader, int bufferSizeContribution) {
+      this.loader = loader;
       this.bufferSizeContribution = bufferSizeContribution;
+      bitrate = -1;
+      targetBufferSize = bufferSizeContribution;
       bufferState = ABOVE_HIGH_WATERMARK;
       loading = false;
       nextLoadPositionUs = -1;
+      deadlineUs = Long.MAX_VALUE;
     }
 
   }
@@ -40,12 +40,17 @@ import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
 import com.google.android.exoplayer.dash.mpd.Period;
 import com.google.android.exoplayer.dash.mpd.RangedUri;
 import com.google.android.exoplayer.dash.mpd.Representation;
+import com.google.android.exoplayer.dash.mpd.Representation.SingleSegmentRepresentation;
 import com.google.android.exoplayer.drm.DrmInitData;
 import com.google.android.exoplayer.extractor.ChunkIndex;
 import com.google.android.exoplayer.extractor.mp4.FragmentedMp4Extractor;
 import com.google.android.exoplayer.extractor.webm.WebmExtractor;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.CoalescingDataSource;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.ParallelRangeDataSource;
+import com.google.android.exoplayer.util.Assertions;
 import com.google.android.exoplayer.util.Clock;
 import com.google.android.exoplayer.util.ManifestFetcher;
 import com.google.android.exoplayer.util.MimeTypes;
@@ -131,6 +136,9 @@ public class DashChunkSource implements ChunkSource, Output {
   private boolean startAtLiveEdge;
   private boolean lastChunkWasInitialization;
   private IOException fatalError;
+  private CoalescingDataSource coalescingDataSource;
+  private int maxCoalescedSegmentCount;
+  private ParallelRangeDataSource parallelRangeDataSource;
 
   /**
    * Lightweight constructor to use for fixed duration content.
@@ -276,6 +284,47 @@ public class DashChunkSource implements ChunkSource, Output {
     live = initialManifest.dynamic;
   }
 
+  /**
+   * Enables coalescing of requests for media segments that are contiguous byte ranges of the same
+   * resource, as is common for SegmentBase and SegmentList content.
+   * <p>
+   * When enabled, a single upstream request is made for up to {@code maxSegmentCount} consecutive
+   * segments, and each segment is read from it in turn as a separate {@link MediaChunk}. This
+   * reduces the per-request overhead for content with short segments. Must be called before
+   * {@link #prepare()}.
+   *
+   * @param maxSegmentCount The maximum number of segments to request at once. A value of 1
+   *     disables coalescing.
+   */
+  public void setSegmentCoalescing(int maxSegmentCount) {
+    Assertions.checkState(!prepareCalled);
+    maxCoalescedSegmentCount = maxSegmentCount;
+    coalescingDataSource = maxSegmentCount > 1 ? new CoalescingDataSource(dataSource) : null;
+  }
+
+  /**
+   * Enables fetching of large media segments of single segment representations, as used by
+   * SegmentBase content, as several byte ranges in parallel using a
+   * {@link ParallelRangeDataSource}.
+   * <p>
+   * When enabled, media segments of single segment representations are loaded through the parallel
+   * source rather than through the {@link DataSource} passed to the constructor, and are not
+   * coalesced. Initialization and index requests are unaffected. Must be called before
+   * {@link #prepare()}.
+   *
+   * @param sourceFactory A factory for the upstream sources used to fetch the ranges, or null to
+   *     disable parallel fetching.
+   * @param allocator The allocator from which buffered ranges are allocated. This should be the
+   *     allocator used by the {@link com.google.android.exoplayer.LoadControl}, so that buffered
+   *     ranges count towards its buffer budget.
+   */
+  public void setParallelRangeFetching(ParallelRangeDataSource.SourceFactory sourceFactory,
+      Allocator allocator) {
+    Assertions.checkState(!prepareCalled);
+    parallelRangeDataSource = sourceFactory != null
+        ? new ParallelRangeDataSource(sourceFactory, allocator) : null;
+  }
+
   // ChunkSource implementation.
 
   @Override
@@ -330,6 +379,8 @@ public class DashChunkSource implements ChunkSource, Output {
       return;
     }
 
+    // A refresh that finds the manifest unchanged leaves the processed manifest in place, in which
+    // case there's nothing to process.
     MediaPresentationDescription newManifest = manifestFetcher.getManifest();
     if (newManifest != null && newManifest != processedManifest) {
       processManifest(newManifest);
@@ -480,10 +531,13 @@ public class DashChunkSource implements ChunkSource, Output {
       pendingIndexUri = selectedRepresentation.getIndexUri();
     }
 
+    // When coalescing, all requests go through the coalescing source so that it can close any
+    // upstream request that it has left open before the underlying source is reused.
+    DataSource chunkDataSource = coalescingDataSource != null ? coalescingDataSource : dataSource;
     if (pendingInitializationUri != null || pendingIndexUri != null) {
       // We have initialization and/or index requests to make.
       Chunk initializationChunk = newInitializationChunk(pendingInitializationUri, pendingIndexUri,
-          selectedRepresentation, representationHolder.extractorWrapper, dataSource,
+          selectedRepresentation, representationHolder.extractorWrapper, chunkDataSource,
           periodHolder.localIndex, evaluation.trigger);
       lastChunkWasInitialization = true;
       out.chunk = initializationChunk;
@@ -493,7 +547,11 @@ public class DashChunkSource implements ChunkSource, Output {
     int segmentNum = queue.isEmpty() ? representationHolder.getSegmentNum(playbackPositionUs)
           : startingNewPeriod ? representationHolder.getFirstAvailableSegmentNum()
           : queue.get(out.queueSize - 1).getNextChunkIndex();
-    Chunk nextMediaChunk = newMediaChunk(periodHolder, representationHolder, dataSource,
+    if (parallelRangeDataSource != null
+        && selectedRepresentation instanceof SingleSegmentRepresentation) {
+      chunkDataSource = parallelRangeDataSource;
+    }
+    Chunk nextMediaChunk = newMediaChunk(periodHolder, representationHolder, chunkDataSource,
         mediaFormat, enabledTrack, segmentNum, evaluation.trigger);
     lastChunkWasInitialization = false;
     out.chunk = nextMediaChunk;
@@ -543,6 +601,9 @@ public class DashChunkSource implements ChunkSource, Output {
     if (manifestFetcher != null) {
       manifestFetcher.disable();
     }
+    if (coalescingDataSource != null) {
+      coalescingDataSource.releaseUpstream();
+    }
     periodHolders.clear();
     evaluation.format = null;
     availableRange = null;
@@ -703,6 +764,10 @@ public class DashChunkSource implements ChunkSource, Output {
     DataSpec dataSpec = new DataSpec(segmentUri.getUri(), segmentUri.start, segmentUri.length,
         representation.getCacheKey());
 
+    if (dataSource == coalescingDataSource) {
+      coalescingDataSource.setSpanHint(getCoalescedSpan(representationHolder, segmentNum));
+    }
+
     long sampleOffsetUs = periodHolder.startTimeUs - representation.presentationTimeOffsetUs;
     if (mimeTypeIsRawText(format.mimeType)) {
       return new SingleSampleMediaChunk(dataSource, dataSpec, Chunk.TRIGGER_INITIAL, format,
@@ -717,6 +782,29 @@ public class DashChunkSource implements ChunkSource, Output {
     }
   }
 
+  /**
+   * Returns a {@link DataSpec} spanning the specified segment and as many of the segments that
+   * immediately follow it as can be coalesced with it, or null if no segments can be coalesced.
+   */
+  private DataSpec getCoalescedSpan(RepresentationHolder representationHolder, int segmentNum) {
+    if (representationHolder.getLastSegmentNum() == DashSegmentIndex.INDEX_UNBOUNDED) {
+      // Segments beyond the live edge may not be available yet.
+      return null;
+    }
+    RangedUri segmentUri = representationHolder.getSegmentUrl(segmentNum);
+    RangedUri span = segmentUri;
+    for (int i = 1; i < maxCoalescedSegmentCount
+        && !representationHolder.isBeyondLastSegment(segmentNum + i); i++) {
+      RangedUri mergedSpan = span.attemptMerge(representationHolder.getSegmentUrl(segmentNum + i));
+      if (mergedSpan == null) {
+        break;
+      }
+      span = mergedSpan;
+    }
+    return span == segmentUri ? null : new DataSpec(span.getUri(), span.start, span.length,
+        representationHolder.representation.getCacheKey());
+  }
+
   private long getNowUnixTimeUs() {
     if (elapsedRealtimeOffsetUs != 0) {
       return (systemClock.elapsedRealtime() * 1000) + elapsedRealtimeOffsetUs;
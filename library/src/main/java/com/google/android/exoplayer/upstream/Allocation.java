@@ -15,8 +15,10 @@
  */
 package com.google.android.exoplayer.upstream;
 
+import java.nio.ByteBuffer;
+
 /**
- * An allocation within a byte array.
+ * An allocation within a byte array, or within a direct {@link ByteBuffer}.
  * <p>
  * The allocation's length is obtained by calling {@link Allocator#getIndividualAllocationLength()}
  * on the {@link Allocator} from which it was obtained.
@@ -25,11 +27,17 @@ public final class Allocation {
 
   /**
    * The array containing the allocated space. The allocated space may not be at the start of the
-   * array, and so {@link #translateOffset(int)} method must be used when indexing into it.
+   * array, and so {@link #translateOffset(int)} method must be used when indexing into it. Null if
+   * the allocation is backed by a direct buffer, in which case {@link #getByteBuffer()} must be
+   * used to access the allocated space.
+   * <p>
+   * Only {@link DirectBufferAllocator} creates allocations backed by direct buffers. Other
+   * allocators never return them, and do not accept them in {@link Allocator#release(Allocation)}.
    */
   public final byte[] data;
 
   private final int offset;
+  private final ByteBuffer buffer;
 
   /**
    * @param data The array containing the allocated space.
@@ -38,6 +46,35 @@ public final class Allocation {
   public Allocation(byte[] data, int offset) {
     this.data = data;
     this.offset = offset;
+    this.buffer = null;
+  }
+
+  /**
+   * @param buffer A direct buffer whose content is exactly the allocated space.
+   */
+  public Allocation(ByteBuffer buffer) {
+    this.data = null;
+    this.offset = 0;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Returns whether the allocation is backed by a direct buffer rather than by {@link #data}.
+   */
+  public boolean isDirect() {
+    return buffer != null;
+  }
+
+  /**
+   * Returns a new view of the allocated space, with its position set to zero and its limit set to
+   * the length of the allocation. The view shares its content with the allocation, so data can be
+   * written into and read out of the allocation without an intermediate copy. Returns null if the
+   * allocation is backed by {@link #data}.
+   *
+   * @return A view of the allocated space, or null if the allocation is not direct.
+   */
+  public ByteBuffer getByteBuffer() {
+    return buffer == null ? null : buffer.duplicate();
   }
 
   /**
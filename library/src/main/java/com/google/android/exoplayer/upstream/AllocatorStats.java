@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects statistics about the use of an {@link Allocator}, for sizing buffers from field data.
+ * <p>
+ * An instance is attached to an allocator that supports it, which then reports allocations,
+ * releases, trims and blocking waits. Counters that are updated on every allocation and release are
+ * striped across several cache lines, as is the peak number of bytes allocated, and no locks are
+ * taken, so the statistics are cheap enough to leave enabled in production. The current number of
+ * bytes allocated and available are not updated on each allocation and release, and are instead
+ * read from the allocator when a snapshot is taken. Rates are derived from the difference between
+ * two {@link Snapshot}s.
+ * <p>
+ * An instance should be attached to one allocator at a time.
+ */
+public final class AllocatorStats {
+
+  /**
+   * Provides the current state of the allocator to which the statistics are attached.
+   */
+  /* package */ interface Source {
+
+    /**
+     * Returns the number of bytes allocated.
+     */
+    int getBytesAllocated();
+
+    /**
+     * Returns the number of bytes held in the pool of available allocations.
+     */
+    int getAvailableBytes();
+
+  }
+
+  /**
+   * An immutable snapshot of the statistics.
+   */
+  public static final class Snapshot {
+
+    /**
+     * The {@link Clock#elapsedRealtime()} at which the snapshot was taken.
+     */
+    public final long elapsedRealtimeMs;
+    /**
+     * The number of allocations obtained.
+     */
+    public final long allocationCount;
+    /**
+     * The number of allocations obtained that required new memory, rather than being reused from
+     * the pool of available allocations.
+     */
+    public final long newAllocationCount;
+    /**
+     * The number of allocations returned.
+     */
+    public final long releaseCount;
+    /**
+     * The number of available allocations discarded by trimming.
+     */
+    public final long trimDiscardCount;
+    /**
+     * The number of times that a thread blocked waiting for the number of bytes allocated to drop.
+     */
+    public final long blockCount;
+    /**
+     * The total time for which threads were blocked, in microseconds.
+     */
+    public final long totalBlockTimeUs;
+    /**
+     * The number of blocking waits in each bucket of the histogram. The bucket containing a given
+     * duration is given by {@link AllocatorStats#getBlockTimeBucket(long)}.
+     */
+    public final long[] blockTimeHistogram;
+    /**
+     * The number of bytes allocated.
+     */
+    public final int bytesAllocated;
+    /**
+     * The highest number of bytes allocated since the statistics were created or the peak was last
+     * reset.
+     */
+    public final int peakBytesAllocated;
+    /**
+     * The number of bytes held in the pool of available allocations.
+     */
+    public final int availableBytes;
+
+    private Snapshot(long elapsedRealtimeMs, long allocationCount, long newAllocationCount,
+        long releaseCount, long trimDiscardCount, long blockCount, long totalBlockTimeUs,
+        long[] blockTimeHistogram, int bytesAllocated, int peakBytesAllocated,
+        int availableBytes) {
+      this.elapsedRealtimeMs = elapsedRealtimeMs;
+      this.allocationCount = allocationCount;
+      this.newAllocationCount = newAllocationCount;
+      this.releaseCount = releaseCount;
+      this.trimDiscardCount = trimDiscardCount;
+      this.blockCount = blockCount;
+      this.totalBlockTimeUs = totalBlockTimeUs;
+      this.blockTimeHistogram = blockTimeHistogram;
+      this.bytesAllocated = bytesAllocated;
+      this.peakBytesAllocated = peakBytesAllocated;
+      this.availableBytes = availableBytes;
+    }
+
+    /**
+     * Returns the number of allocations obtained per second since an earlier snapshot.
+     *
+     * @param earlier An earlier snapshot of the same statistics.
+     * @return The allocation rate, or 0 if no time has elapsed.
+     */
+    public float getAllocationRate(Snapshot earlier) {
+      return getRate(allocationCount - earlier.allocationCount, earlier);
+    }
+
+    /**
+     * Returns the number of allocations obtained that required new memory per second since an
+     * earlier snapshot.
+     *
+     * @param earlier An earlier snapshot of the same statistics.
+     * @return The new allocation rate, or 0 if no time has elapsed.
+     */
+    public float getNewAllocationRate(Snapshot earlier) {
+      return getRate(newAllocationCount - earlier.newAllocationCount, earlier);
+    }
+
+    /**
+     * Returns the number of allocations returned per second since an earlier snapshot.
+     *
+     * @param earlier An earlier snapshot of the same statistics.
+     * @return The release rate, or 0 if no time has elapsed.
+     */
+    public float getReleaseRate(Snapshot earlier) {
+      return getRate(releaseCount - earlier.releaseCount, earlier);
+    }
+
+    private float getRate(long count, Snapshot earlier) {
+      long elapsedMs = elapsedRealtimeMs - earlier.elapsedRealtimeMs;
+      return elapsedMs <= 0 ? 0 : (count * 1000f) / elapsedMs;
+    }
+
+  }
+
+  /**
+   * The number of buckets in the block time histogram.
+   */
+  public static final int BLOCK_TIME_BUCKET_COUNT = 14;
+
+  private static final int STRIPE_COUNT =
+      Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+  // The number of longs in a cache line, used to keep the stripes of a counter apart.
+  private static final int STRIPE_PADDING = 8;
+
+  private final Clock clock;
+  private final StripedCounter allocationCount;
+  private final StripedCounter newAllocationCount;
+  private final StripedCounter releaseCount;
+  private final AtomicLong trimDiscardCount;
+  private final AtomicLong blockCount;
+  private final AtomicLong totalBlockTimeUs;
+  private final AtomicLongArray blockTimeHistogram;
+  private final StripedMaximum peakBytesAllocated;
+
+  private volatile Source source;
+
+  public AllocatorStats() {
+    this(new SystemClock());
+  }
+
+  /**
+   * @param clock The clock used to timestamp snapshots.
+   */
+  public AllocatorStats(Clock clock) {
+    this.clock = clock;
+    allocationCount = new StripedCounter();
+    newAllocationCount = new StripedCounter();
+    releaseCount = new StripedCounter();
+    trimDiscardCount = new AtomicLong();
+    blockCount = new AtomicLong();
+    totalBlockTimeUs = new AtomicLong();
+    blockTimeHistogram = new AtomicLongArray(BLOCK_TIME_BUCKET_COUNT);
+    peakBytesAllocated = new StripedMaximum();
+  }
+
+  /**
+   * Returns the index of the block time histogram bucket containing the specified duration. Bucket
+   * 0 contains durations shorter than 1ms. Bucket {@code i} contains durations from
+   * {@code 2^(i-1)}ms up to but excluding {@code 2^i}ms, except for the last bucket, which has no
+   * upper bound.
+   *
+   * @param blockTimeUs The duration in microseconds.
+   * @return The index of the bucket.
+   */
+  public static int getBlockTimeBucket(long blockTimeUs) {
+    long blockTimeMs = blockTimeUs / 1000;
+    int bucket = 64 - Long.numberOfLeadingZeros(blockTimeMs);
+    return Math.min(bucket, BLOCK_TIME_BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   * <p>
+   * Counters are read individually, so a snapshot taken whilst the allocator is in use may not be
+   * exactly consistent.
+   */
+  public Snapshot getSnapshot() {
+    long[] histogram = new long[BLOCK_TIME_BUCKET_COUNT];
+    for (int i = 0; i < BLOCK_TIME_BUCKET_COUNT; i++) {
+      histogram[i] = blockTimeHistogram.get(i);
+    }
+    Source source = this.source;
+    int bytesAllocated = source != null ? source.getBytesAllocated() : 0;
+    int availableBytes = source != null ? source.getAvailableBytes() : 0;
+    return new Snapshot(clock.elapsedRealtime(), allocationCount.sum(), newAllocationCount.sum(),
+        releaseCount.sum(), trimDiscardCount.get(), blockCount.get(), totalBlockTimeUs.get(),
+        histogram, bytesAllocated, (int) peakBytesAllocated.get(), availableBytes);
+  }
+
+  /**
+   * Returns the highest number of bytes allocated since the statistics were created or the peak was
+   * last reset.
+   */
+  public int getPeakBytesAllocated() {
+    return (int) peakBytesAllocated.get();
+  }
+
+  /**
+   * Resets the peak number of bytes allocated to the current number of bytes allocated.
+   */
+  public void resetPeakBytesAllocated() {
+    Source source = this.source;
+    peakBytesAllocated.reset(source != null ? source.getBytesAllocated() : 0);
+  }
+
+  /**
+   * Invoked by the allocator when the statistics are attached to it.
+   *
+   * @param source The source of the allocator's current state, or null if the statistics are
+   *     detached.
+   */
+  /* package */ void setSource(Source source) {
+    this.source = source;
+  }
+
+  /**
+   * Invoked by the allocator when an allocation is obtained.
+   *
+   * @param isNew Whether the allocation required new memory.
+   * @param bytesAllocated The number of bytes allocated after the allocation.
+   */
+  /* package */ void onAllocate(boolean isNew, int bytesAllocated) {
+    allocationCount.increment();
+    if (isNew) {
+      newAllocationCount.increment();
+    }
+    peakBytesAllocated.update(bytesAllocated);
+  }
+
+  /**
+   * Invoked by the allocator when an allocation is returned.
+   */
+  /* package */ void onRelease() {
+    releaseCount.increment();
+  }
+
+  /**
+   * Invoked by the allocator when available allocations are discarded by trimming.
+   *
+   * @param discardCount The number of allocations discarded.
+   */
+  /* package */ void onTrim(int discardCount) {
+    trimDiscardCount.addAndGet(discardCount);
+  }
+
+  /**
+   * Invoked by the allocator when a thread stops blocking in
+   * {@link Allocator#blockWhileTotalBytesAllocatedExceeds(int)}.
+   *
+   * @param blockTimeUs The time for which the thread was blocked, in microseconds.
+   */
+  /* package */ void onBlocked(long blockTimeUs) {
+    blockCount.incrementAndGet();
+    totalBlockTimeUs.addAndGet(blockTimeUs);
+    blockTimeHistogram.incrementAndGet(getBlockTimeBucket(blockTimeUs));
+  }
+
+  private static int getStripeIndex() {
+    int stripe = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+    return stripe * STRIPE_PADDING;
+  }
+
+  /**
+   * A counter whose value is spread over several stripes, so that threads incrementing it
+   * concurrently rarely contend on the same cache line.
+   */
+  private static final class StripedCounter {
+
+    private final AtomicLongArray cells;
+
+    public StripedCounter() {
+      cells = new AtomicLongArray(STRIPE_COUNT * STRIPE_PADDING);
+    }
+
+    public void increment() {
+      cells.incrementAndGet(getStripeIndex());
+    }
+
+    public long sum() {
+      long sum = 0;
+      for (int i = 0; i < STRIPE_COUNT; i++) {
+        sum += cells.get(i * STRIPE_PADDING);
+      }
+      return sum;
+    }
+
+  }
+
+  /**
+   * A maximum whose value is spread over several stripes. Each stripe holds the maximum of the
+   * values reported by the threads that map to it, and is only written when that maximum increases,
+   * so that threads reporting values concurrently rarely contend on the same cache line.
+   */
+  private static final class StripedMaximum {
+
+    private final AtomicLongArray cells;
+
+    public StripedMaximum() {
+      cells = new AtomicLongArray(STRIPE_COUNT * STRIPE_PADDING);
+    }
+
+    public void update(long value) {
+      int index = getStripeIndex();
+      long maximum = cells.get(index);
+      while (value > maximum && !cells.compareAndSet(index, maximum, value)) {
+        maximum = cells.get(index);
+      }
+    }
+
+    public long get() {
+      long maximum = 0;
+      for (int i = 0; i < STRIPE_COUNT; i++) {
+        maximum = Math.max(maximum, cells.get(i * STRIPE_PADDING));
+      }
+      return maximum;
+    }
+
+    public void reset(long value) {
+      for (int i = 0; i < STRIPE_COUNT; i++) {
+        cells.set(i * STRIPE_PADDING, i == 0 ? value : 0);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+
+/**
+ * Persists bandwidth estimates across sessions, keyed by the identity of the network on which they
+ * were made, so that a new {@link DefaultBandwidthMeter} can start from the estimate of a previous
+ * session rather than from no estimate.
+ * <p>
+ * A network is identified by its type and subtype and, for Wi-Fi networks, by a hash of the SSID if
+ * the application holds the {@code ACCESS_WIFI_STATE} permission. Reading the active network
+ * requires the {@code ACCESS_NETWORK_STATE} permission. Without it, no network can be identified
+ * and the store is unused.
+ * <p>
+ * A stored estimate is given to a {@link BandwidthEstimator} as a prior sample whose size decays
+ * with the age of the estimate, so that an old prior is quickly outweighed by new samples.
+ * Estimates older than a maximum age are ignored.
+ */
+public final class BandwidthEstimateStore {
+
+  /**
+   * The default age at which the size of a prior sample is halved, in milliseconds.
+   */
+  public static final long DEFAULT_HALF_LIFE_MS = 24 * 60 * 60 * 1000L;
+  /**
+   * The default maximum age of a stored estimate, in milliseconds.
+   */
+  public static final long DEFAULT_MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+  private static final String PREFERENCES_NAME = "ExoPlayerBandwidthEstimates";
+  private static final String KEY_BITRATE_SUFFIX = ".bitrate";
+  private static final String KEY_TIME_SUFFIX = ".timeMs";
+
+  /**
+   * The duration of the transfer represented by a prior sample with no decay.
+   */
+  private static final long PRIOR_SAMPLE_DURATION_MS = 2000;
+
+  private final Context context;
+  private final SharedPreferences preferences;
+  private final long halfLifeMs;
+  private final long maxAgeMs;
+
+  /**
+   * @param context A context.
+   */
+  public BandwidthEstimateStore(Context context) {
+    this(context, DEFAULT_HALF_LIFE_MS, DEFAULT_MAX_AGE_MS);
+  }
+
+  /**
+   * @param context A context.
+   * @param halfLifeMs The age at which the size of a prior sample is halved.
+   * @param maxAgeMs The maximum age of a stored estimate. Older estimates are ignored.
+   */
+  public BandwidthEstimateStore(Context context, long halfLifeMs, long maxAgeMs) {
+    this.context = context.getApplicationContext();
+    this.preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    this.halfLifeMs = halfLifeMs;
+    this.maxAgeMs = maxAgeMs;
+  }
+
+  /**
+   * Returns a key identifying the currently active network.
+   *
+   * @return The key, or null if there is no active network or it cannot be identified.
+   */
+  public String getCurrentNetworkKey() {
+    NetworkInfo networkInfo;
+    try {
+      ConnectivityManager connectivityManager =
+          (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+      networkInfo = connectivityManager.getActiveNetworkInfo();
+    } catch (SecurityException e) {
+      return null;
+    }
+    if (networkInfo == null || !networkInfo.isConnected()) {
+      return null;
+    }
+    String key = networkInfo.getType() + ":" + networkInfo.getSubtype();
+    if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+      String ssid = getWifiSsid();
+      if (ssid != null) {
+        key += ":" + Integer.toHexString(ssid.hashCode());
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Adds the stored estimate for a network to an estimator as a prior sample, if an estimate that
+   * has not exceeded the maximum age is stored.
+   *
+   * @param networkKey The key of the network, as returned by {@link #getCurrentNetworkKey()}.
+   * @param estimator The estimator.
+   * @return Whether a prior sample was added.
+   */
+  public boolean seed(String networkKey, BandwidthEstimator estimator) {
+    long bitrate = preferences.getLong(networkKey + KEY_BITRATE_SUFFIX, BandwidthMeter.NO_ESTIMATE);
+    if (bitrate <= 0) {
+      return false;
+    }
+    long ageMs = Math.max(0, System.currentTimeMillis()
+        - preferences.getLong(networkKey + KEY_TIME_SUFFIX, 0));
+    if (ageMs > maxAgeMs) {
+      return false;
+    }
+    double decay = Math.pow(0.5, (double) ageMs / halfLifeMs);
+    long elapsedMs = Math.max(1, Math.round(PRIOR_SAMPLE_DURATION_MS * decay));
+    long bytes = (bitrate * elapsedMs) / 8000;
+    if (bytes <= 0) {
+      return false;
+    }
+    estimator.addSample(bytes, elapsedMs);
+    return true;
+  }
+
+  /**
+   * Stores an estimate for a network, replacing any previous estimate.
+   *
+   * @param networkKey The key of the network, as returned by {@link #getCurrentNetworkKey()}.
+   * @param bitrate The estimated bandwidth, in bits/sec.
+   */
+  public void record(String networkKey, long bitrate) {
+    preferences.edit()
+        .putLong(networkKey + KEY_BITRATE_SUFFIX, bitrate)
+        .putLong(networkKey + KEY_TIME_SUFFIX, System.currentTimeMillis())
+        .apply();
+  }
+
+  private String getWifiSsid() {
+    try {
+      WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+      WifiInfo wifiInfo = wifiManager != null ? wifiManager.getConnectionInfo() : null;
+      return wifiInfo != null ? wifiInfo.getSSID() : null;
+    } catch (SecurityException e) {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * Estimates bandwidth from a sequence of samples, each describing a number of bytes transferred
+ * over a period of time.
+ * <p>
+ * Estimators are used by {@link DefaultBandwidthMeter}, which serializes calls to them, and can
+ * also be driven directly with recorded samples. See {@link BandwidthEstimatorReplay}.
+ */
+public interface BandwidthEstimator {
+
+  /**
+   * Adds a sample.
+   *
+   * @param bytes The number of bytes transferred.
+   * @param elapsedMs The time taken to transfer the bytes, in milliseconds. Always greater than 0.
+   */
+  void addSample(long bytes, long elapsedMs);
+
+  /**
+   * Gets the estimated bandwidth, in bits/sec.
+   *
+   * @return Estimated bandwidth in bits/sec, or {@link BandwidthMeter#NO_ESTIMATE} if no estimate
+   *     is available.
+   */
+  long getBitrateEstimate();
+
+}
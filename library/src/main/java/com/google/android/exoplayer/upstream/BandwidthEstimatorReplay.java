@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays recorded bandwidth samples through {@link BandwidthEstimator}s, and reports how well each
+ * estimator predicts the throughput that was subsequently realised.
+ * <p>
+ * Traces are read from log output containing lines of the form
+ * {@code bandwidth [sessionTimeS, bytes, elapsedS, bitrateEstimate]}, as written for each
+ * {@link BandwidthMeter.EventListener#onBandwidthSample(int, long, long)} by the demo application's
+ * {@code EventLogger}. Other lines are ignored, so a complete log can be used as a trace.
+ * <p>
+ * Before each sample is added to an estimator, the estimator's current estimate is compared with
+ * the throughput of the sample. Replay is deterministic, so estimators and their parameters can be
+ * compared on the same traces, for example on traces grouped by network type.
+ * <p>
+ * {@code BandwidthEstimatorReplayTool}, in the library's tests, replays trace files given on the
+ * command line through each of the built-in estimators with default parameters.
+ */
+public final class BandwidthEstimatorReplay {
+
+  /**
+   * A recorded sample.
+   */
+  public static final class Sample {
+
+    /**
+     * The number of bytes transferred.
+     */
+    public final long bytes;
+    /**
+     * The time taken to transfer the bytes, in milliseconds.
+     */
+    public final long elapsedMs;
+
+    public Sample(long bytes, long elapsedMs) {
+      this.bytes = bytes;
+      this.elapsedMs = elapsedMs;
+    }
+
+    /**
+     * Returns the throughput of the sample, in bits/sec.
+     */
+    public double getBitsPerSecond() {
+      return (bytes * 8000d) / elapsedMs;
+    }
+
+  }
+
+  /**
+   * The result of replaying a trace through an estimator.
+   */
+  public static final class Result {
+
+    /**
+     * The name of the estimator.
+     */
+    public final String name;
+    /**
+     * The number of samples for which an estimate was available and compared.
+     */
+    public final int predictionCount;
+    /**
+     * The mean of the absolute error of the estimates, relative to the realised throughput.
+     */
+    public final double meanAbsoluteRelativeError;
+    /**
+     * The mean of the signed error of the estimates, relative to the realised throughput. Positive
+     * values indicate that the estimator tends to overestimate.
+     */
+    public final double meanRelativeError;
+    /**
+     * The fraction of estimates that exceeded the realised throughput.
+     */
+    public final double overestimateFraction;
+
+    public Result(String name, int predictionCount, double meanAbsoluteRelativeError,
+        double meanRelativeError, double overestimateFraction) {
+      this.name = name;
+      this.predictionCount = predictionCount;
+      this.meanAbsoluteRelativeError = meanAbsoluteRelativeError;
+      this.meanRelativeError = meanRelativeError;
+      this.overestimateFraction = overestimateFraction;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "%s: predictions=%d, meanAbsError=%.3f, meanError=%.3f, over=%.3f", name,
+          predictionCount, meanAbsoluteRelativeError, meanRelativeError, overestimateFraction);
+    }
+
+  }
+
+  private static final Pattern SAMPLE_PATTERN =
+      Pattern.compile("bandwidth \\[[\\d.]+, (\\d+), ([\\d.]+), -?\\d+\\]");
+
+  private BandwidthEstimatorReplay() {}
+
+  /**
+   * Parses the samples in a trace.
+   *
+   * @param reader A reader from which the trace is read.
+   * @return The samples in the trace, in the order in which they were recorded. Samples with no
+   *     elapsed time are omitted.
+   * @throws IOException If an error occurs reading from the reader.
+   */
+  public static List<Sample> parseTrace(BufferedReader reader) throws IOException {
+    List<Sample> samples = new ArrayList<>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      Matcher matcher = SAMPLE_PATTERN.matcher(line);
+      if (matcher.find()) {
+        long bytes = Long.parseLong(matcher.group(1));
+        long elapsedMs = Math.round(Double.parseDouble(matcher.group(2)) * 1000);
+        if (elapsedMs > 0) {
+          samples.add(new Sample(bytes, elapsedMs));
+        }
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Replays samples through an estimator.
+   *
+   * @param name The name of the estimator, used to identify the result.
+   * @param estimator The estimator, to which no samples have been added.
+   * @param samples The samples to replay.
+   * @return The result.
+   */
+  public static Result replay(String name, BandwidthEstimator estimator, List<Sample> samples) {
+    int predictionCount = 0;
+    int overestimateCount = 0;
+    double absoluteRelativeErrorSum = 0;
+    double relativeErrorSum = 0;
+    for (int i = 0; i < samples.size(); i++) {
+      Sample sample = samples.get(i);
+      long estimate = estimator.getBitrateEstimate();
+      double realised = sample.getBitsPerSecond();
+      if (estimate != BandwidthMeter.NO_ESTIMATE && realised > 0) {
+        double relativeError = (estimate - realised) / realised;
+        predictionCount++;
+        relativeErrorSum += relativeError;
+        absoluteRelativeErrorSum += Math.abs(relativeError);
+        if (relativeError > 0) {
+          overestimateCount++;
+        }
+      }
+      estimator.addSample(sample.bytes, sample.elapsedMs);
+    }
+    if (predictionCount == 0) {
+      return new Result(name, 0, Double.NaN, Double.NaN, Double.NaN);
+    }
+    return new Result(name, predictionCount, absoluteRelativeErrorSum / predictionCount,
+        relativeErrorSum / predictionCount, (double) overestimateCount / predictionCount);
+  }
+
+}
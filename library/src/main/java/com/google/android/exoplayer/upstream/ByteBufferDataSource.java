@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.C;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataSource} that can read directly into a {@link ByteBuffer}.
+ * <p>
+ * Reading into a buffer owned by the consumer, such as one backing an {@link Allocation}, avoids
+ * the intermediate copy through a heap array that {@link #read(byte[], int, int)} would require.
+ * {@link com.google.android.exoplayer.util.Util#read(DataSource, ByteBuffer, byte[])} can be used
+ * to read into a {@link ByteBuffer} from sources that do not implement this interface.
+ */
+public interface ByteBufferDataSource extends DataSource {
+
+  /**
+   * Reads up to {@code buffer.remaining()} bytes of data into {@code buffer}, starting at its
+   * current position. The position of the buffer is advanced by the number of bytes read.
+   * <p>
+   * This method blocks until at least one byte of data can be read, the end of the opened range is
+   * detected, or an exception is thrown.
+   *
+   * @param buffer The buffer into which the read data should be stored.
+   * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the end of the opened
+   *     range is reached.
+   * @throws IOException If an error occurs reading from the source.
+   */
+  int read(ByteBuffer buffer) throws IOException;
+
+}
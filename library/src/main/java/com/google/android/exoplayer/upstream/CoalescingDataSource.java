@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import android.os.SystemClock;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A {@link DataSource} that serves consecutive requests for contiguous ranges of the same resource
+ * from a single upstream request.
+ * <p>
+ * Before a request is opened, the caller may provide a hint using {@link #setSpanHint(DataSpec)}.
+ * The hint describes a larger range that is expected to be requested piecewise, starting at the
+ * position of the next request. The upstream source is opened for the whole hinted range, and is
+ * left open when each request is closed, so that the following request can continue reading from
+ * it. Requests that do not continue from the current upstream position cause the upstream source
+ * to be closed and re-opened.
+ * <p>
+ * Since the upstream source remains open between requests, a {@link TransferListener} attached to
+ * it observes a single transfer that includes the time between requests. An upstream source that
+ * has been idle for longer than {@link #DEFAULT_MAX_IDLE_TIME_MS} is not reused, which bounds the
+ * effect of this on bandwidth estimates.
+ */
+public final class CoalescingDataSource implements DataSource {
+
+  /**
+   * The default maximum time for which an open upstream source may be idle and still be reused.
+   */
+  public static final long DEFAULT_MAX_IDLE_TIME_MS = 500;
+
+  private final DataSource upstream;
+  private final long maxIdleTimeMs;
+
+  private volatile DataSpec spanHint;
+
+  // Guarded by this.
+  private boolean opened;
+  private boolean releaseRequested;
+
+  private DataSpec upstreamSpan;
+  private long upstreamPosition;
+  private long upstreamIdleSinceMs;
+  private long bytesRemaining;
+
+  /**
+   * @param upstream The upstream {@link DataSource}.
+   */
+  public CoalescingDataSource(DataSource upstream) {
+    this(upstream, DEFAULT_MAX_IDLE_TIME_MS);
+  }
+
+  /**
+   * @param upstream The upstream {@link DataSource}.
+   * @param maxIdleTimeMs The maximum time for which an open upstream source may be idle between
+   *     requests and still be reused.
+   */
+  public CoalescingDataSource(DataSource upstream, long maxIdleTimeMs) {
+    this.upstream = Assertions.checkNotNull(upstream);
+    this.maxIdleTimeMs = maxIdleTimeMs;
+  }
+
+  /**
+   * Sets a hint describing a range that is expected to be requested piecewise.
+   * <p>
+   * The hint is used if the next request that cannot be served from the current upstream request
+   * starts at the hinted position and lies within the hinted range. The hint may be set from any
+   * thread.
+   *
+   * @param spanHint The hinted range, or null to clear the hint.
+   */
+  public void setSpanHint(DataSpec spanHint) {
+    this.spanHint = spanHint;
+  }
+
+  /**
+   * Closes the upstream source if it has been left open between requests. If a request is
+   * currently open then the upstream source is closed when that request is closed.
+   * <p>
+   * May be called from any thread.
+   */
+  public synchronized void releaseUpstream() {
+    if (opened) {
+      releaseRequested = true;
+    } else {
+      closeUpstreamQuietly();
+    }
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    synchronized (this) {
+      opened = true;
+      releaseRequested = false;
+    }
+    if (upstreamSpan != null && canContinue(dataSpec)) {
+      bytesRemaining = dataSpec.length;
+      return dataSpec.length;
+    }
+
+    closeUpstreamQuietly();
+    DataSpec span = spanHint;
+    if (span == null || !contains(span, dataSpec)) {
+      span = dataSpec;
+    }
+    upstreamSpan = span;
+    upstreamPosition = span.position;
+    // Ensure the upstream source is closed if opening it fails.
+    bytesRemaining = C.LENGTH_UNBOUNDED;
+    long length = upstream.open(span);
+    bytesRemaining = span == dataSpec ? length : dataSpec.length;
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+      readLength = (int) Math.min(readLength, bytesRemaining);
+    }
+    int bytesRead = upstream.read(buffer, offset, readLength);
+    if (bytesRead == C.RESULT_END_OF_INPUT) {
+      if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+        throw new EOFException();
+      }
+      return C.RESULT_END_OF_INPUT;
+    }
+    upstreamPosition += bytesRead;
+    if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+      bytesRemaining -= bytesRead;
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public void close() throws IOException {
+    boolean closeUpstream;
+    synchronized (this) {
+      opened = false;
+      closeUpstream = releaseRequested || bytesRemaining != 0 || upstreamSpan == null
+          || upstreamSpan.length == C.LENGTH_UNBOUNDED
+          || upstreamPosition == upstreamSpan.position + upstreamSpan.length;
+      releaseRequested = false;
+    }
+    if (closeUpstream) {
+      closeUpstream();
+    } else {
+      upstreamIdleSinceMs = SystemClock.elapsedRealtime();
+    }
+  }
+
+  /**
+   * Returns whether the request can be served by continuing to read from the open upstream source.
+   */
+  private boolean canContinue(DataSpec dataSpec) {
+    return dataSpec.length != C.LENGTH_UNBOUNDED
+        && dataSpec.position == upstreamPosition
+        && dataSpec.position + dataSpec.length <= upstreamSpan.position + upstreamSpan.length
+        && isSameResource(upstreamSpan, dataSpec)
+        && SystemClock.elapsedRealtime() - upstreamIdleSinceMs <= maxIdleTimeMs;
+  }
+
+  private static boolean contains(DataSpec span, DataSpec dataSpec) {
+    return span.length != C.LENGTH_UNBOUNDED && dataSpec.length != C.LENGTH_UNBOUNDED
+        && span.position == dataSpec.position && span.length >= dataSpec.length
+        && isSameResource(span, dataSpec);
+  }
+
+  private static boolean isSameResource(DataSpec a, DataSpec b) {
+    return a.uri.equals(b.uri) && Util.areEqual(a.key, b.key) && a.flags == b.flags
+        && a.postBody == null && b.postBody == null;
+  }
+
+  private void closeUpstream() throws IOException {
+    if (upstreamSpan != null) {
+      upstreamSpan = null;
+      upstream.close();
+    }
+  }
+
+  private void closeUpstreamQuietly() {
+    try {
+      closeUpstream();
+    } catch (IOException e) {
+      // Ignore.
+    }
+  }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An implementation of {@link Allocator} for use when allocations are obtained and returned on
+ * several threads concurrently.
+ * <p>
+ * Each thread keeps a small magazine of available {@link Allocation}s. A magazine is guarded by its
+ * own lock, which is only contended while the allocator is being trimmed. When a thread's magazine
+ * is empty it takes a full magazine from a shared depot, and when it's full it passes the magazine
+ * to the depot. The empty magazine that a thread gives up when it takes a full one from the depot
+ * is kept, and reused when a thread next passes a full magazine to the depot, so that exchanging
+ * magazines does not allocate arrays. The depot and the count of allocated bytes are updated
+ * without locking. Threads blocked in {@link #blockWhileTotalBytesAllocatedExceeds(int)} are only
+ * woken when the number of bytes allocated drops to their limit.
+ * <p>
+ * {@link #trim(int)} discards available allocations held in the depot and in the magazines of all
+ * threads, so that allocations held by threads that no longer use the allocator are reclaimed.
+ * Magazines of threads that have terminated are discarded entirely.
+ */
+public final class ConcurrentAllocator implements Allocator {
+
+  /**
+   * The default number of allocations held in each thread's magazine.
+   */
+  public static final int DEFAULT_MAGAZINE_SIZE = 8;
+
+  private final int individualAllocationSize;
+  private final int magazineSize;
+  private final AtomicInteger allocatedCount;
+  private final ConcurrentLinkedQueue<Allocation[]> depot;
+  private final AtomicInteger depotAllocationCount;
+  private final ConcurrentLinkedQueue<Allocation[]> emptyMagazines;
+  private final ConcurrentLinkedQueue<Waiter> waiters;
+  private final ThreadLocal<Magazine> magazines;
+  private final ConcurrentLinkedQueue<Magazine> registeredMagazines;
+
+  private volatile AllocatorStats stats;
+
+  /**
+   * Constructs an initially empty pool.
+   *
+   * @param individualAllocationSize The length of each individual allocation.
+   */
+  public ConcurrentAllocator(int individualAllocationSize) {
+    this(individualAllocationSize, DEFAULT_MAGAZINE_SIZE);
+  }
+
+  /**
+   * Constructs an initially empty pool.
+   *
+   * @param individualAllocationSize The length of each individual allocation.
+   * @param magazineSize The number of available allocations held by each thread.
+   */
+  public ConcurrentAllocator(int individualAllocationSize, final int magazineSize) {
+    Assertions.checkArgument(individualAllocationSize > 0);
+    Assertions.checkArgument(magazineSize > 0);
+    this.individualAllocationSize = individualAllocationSize;
+    this.magazineSize = magazineSize;
+    allocatedCount = new AtomicInteger();
+    depot = new ConcurrentLinkedQueue<>();
+    depotAllocationCount = new AtomicInteger();
+    emptyMagazines = new ConcurrentLinkedQueue<>();
+    waiters = new ConcurrentLinkedQueue<>();
+    registeredMagazines = new ConcurrentLinkedQueue<>();
+    magazines = new ThreadLocal<Magazine>() {
+      @Override
+      protected Magazine initialValue() {
+        Magazine magazine = new Magazine(Thread.currentThread(), magazineSize);
+        registeredMagazines.add(magazine);
+        return magazine;
+      }
+    };
+  }
+
+  /**
+   * Returns the number of available allocations held by each thread.
+   */
+  public int getMagazineSize() {
+    return magazineSize;
+  }
+
+  /**
+   * Sets the statistics to which this allocator reports its use.
+   * <p>
+   * Note: The number of available bytes reported excludes available allocations held in the
+   * magazines of individual threads.
+   *
+   * @param stats The statistics, or null to stop reporting.
+   */
+  public synchronized void setStats(AllocatorStats stats) {
+    if (this.stats != null) {
+      this.stats.setSource(null);
+    }
+    this.stats = stats;
+    if (stats != null) {
+      stats.setSource(new AllocatorStats.Source() {
+        @Override
+        public int getBytesAllocated() {
+          return getTotalBytesAllocated();
+        }
+
+        @Override
+        public int getAvailableBytes() {
+          return depotAllocationCount.get() * individualAllocationSize;
+        }
+      });
+    }
+  }
+
+  @Override
+  public Allocation allocate() {
+    int allocatedBytes = allocatedCount.incrementAndGet() * individualAllocationSize;
+    Magazine magazine = magazines.get();
+    Allocation allocation = null;
+    synchronized (magazine) {
+      if (magazine.size == 0) {
+        Allocation[] allocations = depot.poll();
+        if (allocations != null) {
+          depotAllocationCount.addAndGet(-allocations.length);
+          emptyMagazines.offer(magazine.allocations);
+          magazine.allocations = allocations;
+          magazine.size = allocations.length;
+        }
+      }
+      if (magazine.size > 0) {
+        allocation = magazine.allocations[--magazine.size];
+        magazine.allocations[magazine.size] = null;
+      }
+    }
+    if (allocation == null) {
+      reportAllocate(true, allocatedBytes);
+      return new Allocation(new byte[individualAllocationSize], 0);
+    }
+    reportAllocate(false, allocatedBytes);
+    return allocation;
+  }
+
+  @Override
+  public void release(Allocation allocation) {
+    // Weak sanity check that the allocation probably originated from this pool. Allocations backed
+    // by direct buffers only originate from DirectBufferAllocator.
+    Assertions.checkArgument(!allocation.isDirect());
+    Assertions.checkArgument(allocation.data.length == individualAllocationSize);
+    Magazine magazine = magazines.get();
+    synchronized (magazine) {
+      if (magazine.size == magazine.allocations.length) {
+        depot.offer(magazine.allocations);
+        depotAllocationCount.addAndGet(magazine.size);
+        Allocation[] emptyMagazine = emptyMagazines.poll();
+        magazine.allocations = emptyMagazine != null ? emptyMagazine : new Allocation[magazineSize];
+        magazine.size = 0;
+      }
+      magazine.allocations[magazine.size++] = allocation;
+    }
+    int allocatedBytes = allocatedCount.decrementAndGet() * individualAllocationSize;
+    AllocatorStats stats = this.stats;
+    if (stats != null) {
+      stats.onRelease();
+    }
+    if (!waiters.isEmpty()) {
+      // Wake up threads whose limit was crossed by this release. Threads whose limit was crossed by
+      // an earlier release have already been woken.
+      for (Waiter waiter : waiters) {
+        if (allocatedBytes <= waiter.limit
+            && waiter.limit < allocatedBytes + individualAllocationSize) {
+          LockSupport.unpark(waiter.thread);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void trim(int targetSize) {
+    int targetAllocationCount = Util.ceilDivide(targetSize, individualAllocationSize);
+    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount.get());
+    int discardCount = 0;
+    while (depotAllocationCount.get() > targetAvailableCount) {
+      Allocation[] allocations = depot.poll();
+      if (allocations == null) {
+        break;
+      }
+      depotAllocationCount.addAndGet(-allocations.length);
+      discardCount += allocations.length;
+    }
+    // Allocations that remain within the target are kept in the magazines of live threads, in the
+    // order in which the magazines were registered.
+    int remainingMagazineCount = Math.max(0, targetAvailableCount - depotAllocationCount.get());
+    Iterator<Magazine> iterator = registeredMagazines.iterator();
+    while (iterator.hasNext()) {
+      Magazine magazine = iterator.next();
+      Thread owner = magazine.owner.get();
+      boolean ownerTerminated = owner == null || !owner.isAlive();
+      synchronized (magazine) {
+        int targetMagazineSize = ownerTerminated ? 0 : remainingMagazineCount;
+        while (magazine.size > targetMagazineSize) {
+          magazine.allocations[--magazine.size] = null;
+          discardCount++;
+        }
+        remainingMagazineCount -= magazine.size;
+      }
+      if (ownerTerminated) {
+        iterator.remove();
+      }
+    }
+    AllocatorStats stats = this.stats;
+    if (stats != null && discardCount > 0) {
+      stats.onTrim(discardCount);
+    }
+  }
+
+  @Override
+  public int getTotalBytesAllocated() {
+    return allocatedCount.get() * individualAllocationSize;
+  }
+
+  @Override
+  public void blockWhileTotalBytesAllocatedExceeds(int limit) throws InterruptedException {
+    if (getTotalBytesAllocated() <= limit) {
+      return;
+    }
+    // The waiter is registered before the allocated size is checked again, so a release that
+    // brings the size down to the limit either is seen by the check or unparks this thread.
+    Waiter waiter = new Waiter(Thread.currentThread(), limit);
+    waiters.add(waiter);
+    long blockStartTimeNs = System.nanoTime();
+    try {
+      while (getTotalBytesAllocated() > limit) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } finally {
+      waiters.remove(waiter);
+      AllocatorStats stats = this.stats;
+      if (stats != null) {
+        stats.onBlocked((System.nanoTime() - blockStartTimeNs) / 1000);
+      }
+    }
+  }
+
+  @Override
+  public int getIndividualAllocationLength() {
+    return individualAllocationSize;
+  }
+
+  private void reportAllocate(boolean isNew, int allocatedBytes) {
+    AllocatorStats stats = this.stats;
+    if (stats != null) {
+      stats.onAllocate(isNew, allocatedBytes);
+    }
+  }
+
+  /**
+   * Available allocations held by a single thread. Guarded by the instance's lock.
+   */
+  private static final class Magazine {
+
+    public final WeakReference<Thread> owner;
+
+    public Allocation[] allocations;
+    public int size;
+
+    public Magazine(Thread owner, int magazineSize) {
+      this.owner = new WeakReference<>(owner);
+      allocations = new Allocation[magazineSize];
+    }
+
+  }
+
+  /**
+   * A thread blocked until the number of bytes allocated drops to a limit.
+   */
+  private static final class Waiter {
+
+    public final Thread thread;
+    public final int limit;
+
+    public Waiter(Thread thread, int limit) {
+      this.thread = thread;
+      this.limit = limit;
+    }
+
+  }
+
+}
@@ -16,9 +16,11 @@
 package com.google.android.exoplayer.upstream;
 
 import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Allows data corresponding to a given {@link DataSpec} to be read from a {@link DataSource} and
@@ -30,6 +32,8 @@ public final class DataSourceInputStream extends InputStream {
   private final DataSpec dataSpec;
   private final byte[] singleByteArray;
 
+  private byte[] byteBufferScratch;
+
   private boolean opened = false;
   private boolean closed = false;
 
@@ -77,6 +81,26 @@ public final class DataSourceInputStream extends InputStream {
     return dataSource.read(buffer, offset, length);
   }
 
+  /**
+   * Reads up to {@code buffer.remaining()} bytes into {@code buffer}, advancing its position by
+   * the number of bytes read. If the underlying {@link DataSource} is a
+   * {@link ByteBufferDataSource} then the data is read into the buffer without an intermediate
+   * copy.
+   *
+   * @param buffer The buffer into which the read data should be stored.
+   * @return The number of bytes read, or -1 if the end of the data has been reached.
+   * @throws IOException If an error occurs reading from the {@link DataSource}.
+   */
+  public int read(ByteBuffer buffer) throws IOException {
+    Assertions.checkState(!closed);
+    checkOpened();
+    if (byteBufferScratch == null && !(dataSource instanceof ByteBufferDataSource)
+        && !buffer.hasArray()) {
+      byteBufferScratch = new byte[4096];
+    }
+    return Util.read(dataSource, buffer, byteBufferScratch);
+  }
+
   @Override
   public long skip(long byteCount) throws IOException {
     Assertions.checkState(!closed);
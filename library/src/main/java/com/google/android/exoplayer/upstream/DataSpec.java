@@ -21,6 +21,9 @@ import com.google.android.exoplayer.util.Assertions;
 import android.net.Uri;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Defines a region of media data.
@@ -72,6 +75,11 @@ public final class DataSpec {
    * Request flags. Currently {@link #FLAG_ALLOW_GZIP} is the only supported flag.
    */
   public final int flags;
+  /**
+   * Additional headers to send if the data is requested over HTTP. Never null. Sources that do not
+   * make HTTP requests ignore them.
+   */
+  public final Map<String, String> httpRequestHeaders;
 
   /**
    * Construct a {@link DataSpec} for the given uri and with {@link #key} set to null.
@@ -147,6 +155,25 @@ public final class DataSpec {
    */
   public DataSpec(Uri uri, byte[] postBody, long absoluteStreamPosition, long position, long length,
       String key, int flags) {
+    this(uri, postBody, absoluteStreamPosition, position, length, key, flags,
+        Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * Construct a {@link DataSpec} where {@link #position} may differ from
+   * {@link #absoluteStreamPosition}, with additional headers for HTTP requests.
+   *
+   * @param uri {@link #uri}.
+   * @param postBody {@link #postBody}.
+   * @param absoluteStreamPosition {@link #absoluteStreamPosition}.
+   * @param position {@link #position}.
+   * @param length {@link #length}.
+   * @param key {@link #key}.
+   * @param flags {@link #flags}.
+   * @param httpRequestHeaders {@link #httpRequestHeaders}. The map is copied.
+   */
+  public DataSpec(Uri uri, byte[] postBody, long absoluteStreamPosition, long position, long length,
+      String key, int flags, Map<String, String> httpRequestHeaders) {
     Assertions.checkArgument(absoluteStreamPosition >= 0);
     Assertions.checkArgument(position >= 0);
     Assertions.checkArgument(length > 0 || length == C.LENGTH_UNBOUNDED);
@@ -157,6 +184,8 @@ public final class DataSpec {
     this.length = length;
     this.key = key;
     this.flags = flags;
+    this.httpRequestHeaders = httpRequestHeaders.isEmpty() ? Collections.<String, String>emptyMap()
+        : Collections.unmodifiableMap(new HashMap<>(httpRequestHeaders));
   }
 
   @Override
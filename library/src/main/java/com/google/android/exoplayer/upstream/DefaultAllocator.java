@@ -33,6 +33,7 @@ public final class DefaultAllocator implements Allocator {
   private int allocatedCount;
   private int availableCount;
   private Allocation[] availableAllocations;
+  private AllocatorStats stats;
 
   /**
    * Constructs an initially empty pool.
@@ -68,22 +69,55 @@ public final class DefaultAllocator implements Allocator {
     }
   }
 
+  /**
+   * Sets the statistics to which this allocator reports its use.
+   *
+   * @param stats The statistics, or null to stop reporting.
+   */
+  public synchronized void setStats(AllocatorStats stats) {
+    if (this.stats != null) {
+      this.stats.setSource(null);
+    }
+    this.stats = stats;
+    if (stats != null) {
+      stats.setSource(new AllocatorStats.Source() {
+        @Override
+        public int getBytesAllocated() {
+          return getTotalBytesAllocated();
+        }
+
+        @Override
+        public int getAvailableBytes() {
+          synchronized (DefaultAllocator.this) {
+            return availableCount * individualAllocationSize;
+          }
+        }
+      });
+    }
+  }
+
   @Override
   public synchronized Allocation allocate() {
     allocatedCount++;
     Allocation allocation;
-    if (availableCount > 0) {
+    boolean isNew = availableCount == 0;
+    if (!isNew) {
       allocation = availableAllocations[--availableCount];
       availableAllocations[availableCount] = null;
     } else {
       allocation = new Allocation(new byte[individualAllocationSize], 0);
     }
+    if (stats != null) {
+      stats.onAllocate(isNew, allocatedCount * individualAllocationSize);
+    }
     return allocation;
   }
 
   @Override
   public synchronized void release(Allocation allocation) {
-    // Weak sanity check that the allocation probably originated from this pool.
+    // Weak sanity check that the allocation probably originated from this pool. Allocations backed
+    // by direct buffers only originate from DirectBufferAllocator.
+    Assertions.checkArgument(!allocation.isDirect());
     Assertions.checkArgument(allocation.data == initialAllocationBlock
         || allocation.data.length == individualAllocationSize);
     allocatedCount--;
@@ -91,6 +125,9 @@ public final class DefaultAllocator implements Allocator {
       availableAllocations = Arrays.copyOf(availableAllocations, availableAllocations.length * 2);
     }
     availableAllocations[availableCount++] = allocation;
+    if (stats != null) {
+      stats.onRelease();
+    }
     // Wake up threads waiting for the allocated size to drop.
     notifyAll();
   }
@@ -134,6 +171,9 @@ public final class DefaultAllocator implements Allocator {
 
     // Discard allocations beyond the target.
     Arrays.fill(availableAllocations, targetAvailableCount, availableCount, null);
+    if (stats != null) {
+      stats.onTrim(availableCount - targetAvailableCount);
+    }
     availableCount = targetAvailableCount;
   }
 
@@ -145,8 +185,18 @@ public final class DefaultAllocator implements Allocator {
   @Override
   public synchronized void blockWhileTotalBytesAllocatedExceeds(int limit)
       throws InterruptedException {
-    while (getTotalBytesAllocated() > limit) {
-      wait();
+    if (getTotalBytesAllocated() <= limit) {
+      return;
+    }
+    long blockStartTimeNs = System.nanoTime();
+    try {
+      while (getTotalBytesAllocated() > limit) {
+        wait();
+      }
+    } finally {
+      if (stats != null) {
+        stats.onBlocked((System.nanoTime() - blockStartTimeNs) / 1000);
+      }
     }
   }
 
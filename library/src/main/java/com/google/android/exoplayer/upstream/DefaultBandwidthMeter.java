@@ -17,28 +17,86 @@ package com.google.android.exoplayer.upstream;
 
 import com.google.android.exoplayer.util.Assertions;
 import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.MemoryBudgetManager;
 import com.google.android.exoplayer.util.SlidingPercentile;
 import com.google.android.exoplayer.util.SystemClock;
 
 import android.os.Handler;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Counts transferred bytes while transfers are open and creates a bandwidth sample and updated
- * bandwidth estimate each time a transfer ends.
+ * Counts transferred bytes while transfers are open and creates bandwidth samples and updated
+ * bandwidth estimates as transfers progress and when they end.
+ * <p>
+ * Transfers may overlap, for example when audio, video and manifest loads run concurrently. The
+ * meter measures the aggregate throughput of the link over the union of the intervals during which
+ * at least one transfer is receiving data. Each sample covers the bytes transferred by all
+ * transfers since the previous sample, divided by the time for which any transfer was receiving
+ * data over the same period, so time during which the link is idle is never counted. Bytes are
+ * accumulated without locking, since {@link #onBytesTransferred(int)} is invoked on every read.
+ * <p>
+ * The time between the start of a transfer and its first byte is excluded from the throughput
+ * calculation, and is instead measured separately. See {@link #getTimeToFirstByteEstimateMs()}.
+ * Since the time over which the bytes of a transfer's first read arrived is unknown, those bytes
+ * are also excluded when the read makes the link active.
+ * <p>
+ * Samples are also created whilst transfers are in progress, once a number of bytes have been
+ * transferred or an interval has elapsed since the previous sample, so that the estimate reacts to
+ * a drop in throughput without waiting for a long transfer to end. See
+ * {@link #setSampleThresholds(long, long)}.
+ * <p>
+ * Samples are passed to a {@link BandwidthEstimator}, which derives the bandwidth estimate. By
+ * default this is a {@link SlidingPercentileBandwidthEstimator} that estimates the median, and in
+ * which each sample is weighted by the square root of the number of bytes that it covers, so
+ * intermediate samples carry less weight than a sample covering a whole transfer.
+ * <p>
+ * An optional {@link BandwidthEstimateStore} can be provided, in which case the estimate recorded
+ * for the current network by a previous meter is used as a prior, and the final estimate is
+ * recorded when {@link #release()} is called.
+ * <p>
+ * A transfer is tracked on the thread on which it was started until its first bytes are
+ * reported, which must happen on the same thread. Once a transfer is receiving data it is no longer
+ * associated with a thread, so its subsequent bytes may be reported and it may end on any thread.
+ * This allows a source such as {@link CoalescingDataSource} to keep a transfer open across loads
+ * that run on different loader threads, and to end it from the playback thread. A transfer that
+ * ends on a thread other than the one on which it was started, before receiving any data, is
+ * assumed to have been receiving data.
  */
 public final class DefaultBandwidthMeter implements BandwidthMeter {
 
-  public static final int DEFAULT_MAX_WEIGHT = 2000;
+  public static final int DEFAULT_MAX_WEIGHT =
+      SlidingPercentileBandwidthEstimator.DEFAULT_MAX_WEIGHT;
+  /**
+   * The default number of bytes after which a sample is created whilst transfers are in progress.
+   */
+  public static final long DEFAULT_SAMPLE_BYTES = 512 * 1024;
+  /**
+   * The default interval after which a sample is created whilst transfers are in progress.
+   */
+  public static final long DEFAULT_SAMPLE_INTERVAL_MS = 100;
+
+  private static final int TIME_TO_FIRST_BYTE_MAX_WEIGHT = 20;
 
   private final Handler eventHandler;
   private final EventListener eventListener;
   private final Clock clock;
-  private final SlidingPercentile slidingPercentile;
+  private final BandwidthEstimator bandwidthEstimator;
+  private final SlidingPercentile timeToFirstByte;
+  private final AtomicLong bytesAccumulator;
+  private final ThreadLocal<ArrayDeque<Transfer>> pendingTransfers;
+  private final BandwidthEstimateStore estimateStore;
+  private final String networkKey;
 
-  private long bytesAccumulator;
-  private long startTimeMs;
-  private long bitrateEstimate;
+  private volatile long sampleStartTimeMs;
+  private volatile long sampleBytes;
+  private volatile long sampleIntervalMs;
+  private volatile long bitrateEstimate;
+  private volatile long timeToFirstByteEstimateMs;
   private int streamCount;
+  private int receivingStreamCount;
+  private boolean haveSamples;
 
   public DefaultBandwidthMeter() {
     this(null, null);
@@ -58,49 +116,231 @@ public final class DefaultBandwidthMeter implements BandwidthMeter {
 
   public DefaultBandwidthMeter(Handler eventHandler, EventListener eventListener, Clock clock,
       int maxWeight) {
+    this(eventHandler, eventListener, clock, new SlidingPercentileBandwidthEstimator(maxWeight,
+        SlidingPercentileBandwidthEstimator.DEFAULT_PERCENTILE));
+  }
+
+  public DefaultBandwidthMeter(Handler eventHandler, EventListener eventListener,
+      BandwidthEstimator bandwidthEstimator) {
+    this(eventHandler, eventListener, new SystemClock(), bandwidthEstimator);
+  }
+
+  public DefaultBandwidthMeter(Handler eventHandler, EventListener eventListener, Clock clock,
+      BandwidthEstimator bandwidthEstimator) {
+    this(eventHandler, eventListener, clock, bandwidthEstimator, null);
+  }
+
+  public DefaultBandwidthMeter(Handler eventHandler, EventListener eventListener,
+      BandwidthEstimateStore estimateStore) {
+    this(eventHandler, eventListener, new SystemClock(),
+        new SlidingPercentileBandwidthEstimator(), estimateStore);
+  }
+
+  /**
+   * @param eventHandler A handler for events. May be null if delivery of events is not required.
+   * @param eventListener A listener of events. May be null if delivery of events is not required.
+   * @param clock The clock used to time transfers.
+   * @param bandwidthEstimator The estimator to which samples are passed.
+   * @param estimateStore A store from which a prior estimate is read, and to which the final
+   *     estimate is recorded by {@link #release()}. May be null.
+   */
+  public DefaultBandwidthMeter(Handler eventHandler, EventListener eventListener, Clock clock,
+      BandwidthEstimator bandwidthEstimator, BandwidthEstimateStore estimateStore) {
     this.eventHandler = eventHandler;
     this.eventListener = eventListener;
     this.clock = clock;
-    this.slidingPercentile = new SlidingPercentile(maxWeight);
-    bitrateEstimate = NO_ESTIMATE;
+    this.bandwidthEstimator = bandwidthEstimator;
+    this.timeToFirstByte = new SlidingPercentile(TIME_TO_FIRST_BYTE_MAX_WEIGHT);
+    this.bytesAccumulator = new AtomicLong();
+    this.pendingTransfers = new ThreadLocal<ArrayDeque<Transfer>>() {
+      @Override
+      protected ArrayDeque<Transfer> initialValue() {
+        return new ArrayDeque<>();
+      }
+    };
+    sampleBytes = DEFAULT_SAMPLE_BYTES;
+    sampleIntervalMs = DEFAULT_SAMPLE_INTERVAL_MS;
+    this.estimateStore = estimateStore;
+    timeToFirstByteEstimateMs = NO_ESTIMATE;
+    networkKey = estimateStore != null ? estimateStore.getCurrentNetworkKey() : null;
+    if (networkKey != null && estimateStore.seed(networkKey, bandwidthEstimator)) {
+      bitrateEstimate = bandwidthEstimator.getBitrateEstimate();
+    } else {
+      bitrateEstimate = NO_ESTIMATE;
+    }
+  }
+
+  /**
+   * Sets when samples are created whilst transfers are in progress. A sample is created once either
+   * threshold is reached.
+   *
+   * @param sampleBytes The number of bytes after which a sample is created, or 0 to disable the
+   *     byte threshold.
+   * @param sampleIntervalMs The interval after which a sample is created, or 0 to disable the time
+   *     threshold.
+   */
+  public void setSampleThresholds(long sampleBytes, long sampleIntervalMs) {
+    Assertions.checkArgument(sampleBytes >= 0 && sampleIntervalMs >= 0);
+    this.sampleBytes = sampleBytes;
+    this.sampleIntervalMs = sampleIntervalMs;
+  }
+
+  /**
+   * Registers the estimator's sample history with a {@link MemoryBudgetManager}, if the estimator
+   * is a {@link SlidingPercentileBandwidthEstimator}.
+   *
+   * @param memoryBudgetManager The manager.
+   * @param priority The priority, as defined by {@link MemoryBudgetManager}.
+   */
+  public void registerWithMemoryBudget(MemoryBudgetManager memoryBudgetManager, int priority) {
+    if (bandwidthEstimator instanceof SlidingPercentileBandwidthEstimator) {
+      ((SlidingPercentileBandwidthEstimator) bandwidthEstimator).registerWithMemoryBudget(
+          memoryBudgetManager, priority);
+    }
+  }
+
+  /**
+   * Sets the priority of the estimator's sample history within the {@link MemoryBudgetManager}
+   * with which it's registered, if any. Should be lowered when the player is backgrounded.
+   *
+   * @param priority The priority, as defined by {@link MemoryBudgetManager}.
+   */
+  public void setMemoryBudgetPriority(int priority) {
+    if (bandwidthEstimator instanceof SlidingPercentileBandwidthEstimator) {
+      ((SlidingPercentileBandwidthEstimator) bandwidthEstimator).setMemoryBudgetPriority(priority);
+    }
+  }
+
+  /**
+   * Releases the meter.
+   * <p>
+   * The estimator's history is unregistered from the {@link MemoryBudgetManager} with which it's
+   * registered, if any. The current estimate is recorded to the {@link BandwidthEstimateStore}, if
+   * one was provided. The estimate is only recorded if at least one sample was measured, and if the
+   * network is the same as when the meter was created.
+   * <p>
+   * The meter should not be used after this method is called.
+   */
+  public synchronized void release() {
+    if (bandwidthEstimator instanceof SlidingPercentileBandwidthEstimator) {
+      ((SlidingPercentileBandwidthEstimator) bandwidthEstimator).unregisterFromMemoryBudget();
+    }
+    if (estimateStore != null && networkKey != null && haveSamples
+        && bitrateEstimate != NO_ESTIMATE
+        && networkKey.equals(estimateStore.getCurrentNetworkKey())) {
+      estimateStore.record(networkKey, bitrateEstimate);
+    }
   }
 
   @Override
-  public synchronized long getBitrateEstimate() {
+  public long getBitrateEstimate() {
     return bitrateEstimate;
   }
 
+  /**
+   * Gets the estimated time between the start of a transfer and the receipt of its first byte.
+   *
+   * @return Estimated time to first byte in milliseconds, or {@link #NO_ESTIMATE} if no estimate is
+   *     available.
+   */
+  public long getTimeToFirstByteEstimateMs() {
+    return timeToFirstByteEstimateMs;
+  }
+
+  /**
+   * Returns the number of transfers that are currently open.
+   */
+  public synchronized int getActiveTransferCount() {
+    return streamCount;
+  }
+
   @Override
   public synchronized void onTransferStart() {
-    if (streamCount == 0) {
-      startTimeMs = clock.elapsedRealtime();
-    }
+    pendingTransfers.get().push(new Transfer(clock.elapsedRealtime()));
     streamCount++;
   }
 
   @Override
-  public synchronized void onBytesTransferred(int bytes) {
-    bytesAccumulator += bytes;
+  public void onBytesTransferred(int bytes) {
+    ArrayDeque<Transfer> pendingTransfers = this.pendingTransfers.get();
+    if (!pendingTransfers.isEmpty() && onFirstBytesTransferred(pendingTransfers.pop())) {
+      // The link has just become active, and the sample starts now.
+      return;
+    }
+    long accumulatedBytes = bytesAccumulator.addAndGet(bytes);
+    long sampleBytes = this.sampleBytes;
+    long sampleIntervalMs = this.sampleIntervalMs;
+    if ((sampleBytes > 0 && accumulatedBytes >= sampleBytes) || (sampleIntervalMs > 0
+        && clock.elapsedRealtime() - sampleStartTimeMs >= sampleIntervalMs)) {
+      maybeAddIntermediateSample();
+    }
   }
 
   @Override
   public synchronized void onTransferEnd() {
     Assertions.checkState(streamCount > 0);
-    long nowMs = clock.elapsedRealtime();
-    int elapsedMs = (int) (nowMs - startTimeMs);
-    if (elapsedMs > 0) {
-      float bitsPerSecond = (bytesAccumulator * 8000) / elapsedMs;
-      slidingPercentile.addSample((int) Math.sqrt(bytesAccumulator), bitsPerSecond);
-      float bandwidthEstimateFloat = slidingPercentile.getPercentile(0.5f);
-      bitrateEstimate = Float.isNaN(bandwidthEstimateFloat) ? NO_ESTIMATE
-          : (long) bandwidthEstimateFloat;
-      notifyBandwidthSample(elapsedMs, bytesAccumulator, bitrateEstimate);
+    Transfer pendingTransfer = pendingTransfers.get().poll();
+    // If the link was receiving data, then sample up to the end of the transfer.
+    if (receivingStreamCount > 0) {
+      long nowMs = clock.elapsedRealtime();
+      if (nowMs > sampleStartTimeMs && bytesAccumulator.get() > 0) {
+        addSample(nowMs);
+      }
+      // Else no time has elapsed since the previous sample, or the only bytes received were those
+      // of a first read. If other transfers remain open then the accumulated bytes and time are
+      // carried into the next sample.
     }
     streamCount--;
-    if (streamCount > 0) {
-      startTimeMs = nowMs;
+    if (pendingTransfer == null) {
+      // The transfer was receiving data, or wasn't started on this thread and is assumed to have
+      // been receiving data.
+      receivingStreamCount = Math.max(0, receivingStreamCount - 1);
+    }
+    receivingStreamCount = Math.min(receivingStreamCount, streamCount);
+  }
+
+  /**
+   * Marks a transfer as receiving data.
+   *
+   * @param transfer The transfer, which has been removed from the pending transfers of this thread.
+   * @return Whether the link became active, in which case the bytes of the first read should not be
+   *     counted.
+   */
+  private synchronized boolean onFirstBytesTransferred(Transfer transfer) {
+    long nowMs = clock.elapsedRealtime();
+    boolean linkBecameActive = receivingStreamCount == 0;
+    if (linkBecameActive) {
+      // Bytes reported whilst no transfer was receiving are discarded.
+      sampleStartTimeMs = nowMs;
+      bytesAccumulator.set(0);
     }
-    bytesAccumulator = 0;
+    receivingStreamCount++;
+    timeToFirstByte.addSample(1, nowMs - transfer.startTimeMs);
+    timeToFirstByteEstimateMs = (long) timeToFirstByte.getPercentile(0.5f);
+    return linkBecameActive;
+  }
+
+  private synchronized void maybeAddIntermediateSample() {
+    if (receivingStreamCount == 0) {
+      return;
+    }
+    // Check the thresholds again, since another thread may have created a sample.
+    long nowMs = clock.elapsedRealtime();
+    long elapsedMs = nowMs - sampleStartTimeMs;
+    if (elapsedMs > 0 && ((sampleBytes > 0 && bytesAccumulator.get() >= sampleBytes)
+        || (sampleIntervalMs > 0 && elapsedMs >= sampleIntervalMs))) {
+      addSample(nowMs);
+    }
+  }
+
+  private void addSample(long nowMs) {
+    int elapsedMs = (int) (nowMs - sampleStartTimeMs);
+    long bytes = bytesAccumulator.getAndSet(0);
+    sampleStartTimeMs = nowMs;
+    bandwidthEstimator.addSample(bytes, elapsedMs);
+    haveSamples = true;
+    bitrateEstimate = bandwidthEstimator.getBitrateEstimate();
+    notifyBandwidthSample(elapsedMs, bytes, bitrateEstimate);
   }
 
   private void notifyBandwidthSample(final int elapsedMs, final long bytes, final long bitrate) {
@@ -114,4 +354,17 @@ public final class DefaultBandwidthMeter implements BandwidthMeter {
     }
   }
 
+  /**
+   * State of an open transfer that has not yet received data.
+   */
+  private static final class Transfer {
+
+    public final long startTimeMs;
+
+    public Transfer(long startTimeMs) {
+      this.startTimeMs = startTimeMs;
+    }
+
+  }
+
 }
@@ -46,6 +46,12 @@ import java.util.regex.Pattern;
  * HTTP to HTTPS or vice versa). Cross-protocol redirects can be enabled by using the
  * {@link #DefaultHttpDataSource(String, Predicate, TransferListener, int, int, boolean)}
  * constructor and passing {@code true} as the final argument.
+ * <p>
+ * If an {@link HttpConnectionPool} is provided then connections are returned to the platform's
+ * keep-alive pool when the source is closed, rather than being disconnected, so that subsequent
+ * requests to the same host can reuse them. Small unread remainders of a response are drained to
+ * make this possible. A redirected connection is counted against the pool's limit for the host to
+ * which it was redirected.
  */
 public class DefaultHttpDataSource implements HttpDataSource {
 
@@ -58,6 +64,11 @@ public class DefaultHttpDataSource implements HttpDataSource {
    */
   public static final int DEFAULT_READ_TIMEOUT_MILLIS = 8 * 1000;
 
+  /**
+   * The default maximum number of bytes that will be skipped by reading, which is unbounded.
+   */
+  public static final long DEFAULT_MAX_SKIP_BYTES = Long.MAX_VALUE;
+
   private static final int MAX_REDIRECTS = 20; // Same limit as okhttp.
   private static final String TAG = "DefaultHttpDataSource";
   private static final Pattern CONTENT_RANGE_HEADER =
@@ -71,9 +82,13 @@ public class DefaultHttpDataSource implements HttpDataSource {
   private final Predicate<String> contentTypePredicate;
   private final HashMap<String, String> requestProperties;
   private final TransferListener listener;
+  private final HttpConnectionPool connectionPool;
+
+  private volatile long maxSkipBytes;
 
   private DataSpec dataSpec;
   private HttpURLConnection connection;
+  private String connectionHost;
   private InputStream inputStream;
   private boolean opened;
 
@@ -139,6 +154,29 @@ public class DefaultHttpDataSource implements HttpDataSource {
   public DefaultHttpDataSource(String userAgent, Predicate<String> contentTypePredicate,
       TransferListener listener, int connectTimeoutMillis, int readTimeoutMillis,
       boolean allowCrossProtocolRedirects) {
+    this(userAgent, contentTypePredicate, listener, connectTimeoutMillis, readTimeoutMillis,
+        allowCrossProtocolRedirects, null);
+  }
+
+  /**
+   * @param userAgent The User-Agent string that should be used.
+   * @param contentTypePredicate An optional {@link Predicate}. If a content type is
+   *     rejected by the predicate then a {@link HttpDataSource.InvalidContentTypeException} is
+   *     thrown from {@link #open(DataSpec)}.
+   * @param listener An optional listener.
+   * @param connectTimeoutMillis The connection timeout, in milliseconds. A timeout of zero is
+   *     interpreted as an infinite timeout. Pass {@link #DEFAULT_CONNECT_TIMEOUT_MILLIS} to use
+   *     the default value.
+   * @param readTimeoutMillis The read timeout, in milliseconds. A timeout of zero is interpreted
+   *     as an infinite timeout. Pass {@link #DEFAULT_READ_TIMEOUT_MILLIS} to use the default value.
+   * @param allowCrossProtocolRedirects Whether cross-protocol redirects (i.e. redirects from HTTP
+   *     to HTTPS and vice versa) are enabled.
+   * @param connectionPool An optional {@link HttpConnectionPool}. If null, connections are
+   *     disconnected when the source is closed.
+   */
+  public DefaultHttpDataSource(String userAgent, Predicate<String> contentTypePredicate,
+      TransferListener listener, int connectTimeoutMillis, int readTimeoutMillis,
+      boolean allowCrossProtocolRedirects, HttpConnectionPool connectionPool) {
     this.userAgent = Assertions.checkNotEmpty(userAgent);
     this.contentTypePredicate = contentTypePredicate;
     this.listener = listener;
@@ -146,6 +184,23 @@ public class DefaultHttpDataSource implements HttpDataSource {
     this.connectTimeoutMillis = connectTimeoutMillis;
     this.readTimeoutMillis = readTimeoutMillis;
     this.allowCrossProtocolRedirects = allowCrossProtocolRedirects;
+    this.connectionPool = connectionPool;
+    this.maxSkipBytes = DEFAULT_MAX_SKIP_BYTES;
+  }
+
+  /**
+   * Sets the maximum number of bytes that will be skipped by reading and discarding them, when a
+   * server responds to a request for data starting at a non-zero position with data starting from
+   * the beginning of the resource.
+   * <p>
+   * If more bytes would need to be skipped, then {@link #open(DataSpec)} fails with a
+   * {@link RangeNotSupportedException}. If the listener is a {@link SkipListener} then the decision
+   * is reported through {@link SkipListener#onSkipRequired(long, int)}.
+   *
+   * @param maxSkipBytes The maximum number of bytes to skip by reading.
+   */
+  public void setMaxSkipBytes(long maxSkipBytes) {
+    this.maxSkipBytes = maxSkipBytes;
   }
 
   @Override
@@ -187,40 +242,19 @@ public class DefaultHttpDataSource implements HttpDataSource {
     this.dataSpec = dataSpec;
     this.bytesRead = 0;
     this.bytesSkipped = 0;
-    try {
-      connection = makeConnection(dataSpec);
-    } catch (IOException e) {
-      throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri.toString(), e,
-          dataSpec, HttpDataSourceException.TYPE_OPEN);
-    }
-
-    int responseCode;
-    try {
-      responseCode = connection.getResponseCode();
-    } catch (IOException e) {
-      closeConnectionQuietly();
-      throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri.toString(), e,
-          dataSpec, HttpDataSourceException.TYPE_OPEN);
-    }
-
-    // Check for a valid response code.
-    if (responseCode < 200 || responseCode > 299) {
-      Map<String, List<String>> headers = connection.getHeaderFields();
-      closeConnectionQuietly();
-      throw new InvalidResponseCodeException(responseCode, headers, dataSpec);
-    }
-
-    // Check for a valid content type.
-    String contentType = connection.getContentType();
-    if (contentTypePredicate != null && !contentTypePredicate.evaluate(contentType)) {
-      closeConnectionQuietly();
-      throw new InvalidContentTypeException(contentType, dataSpec);
-    }
+    int responseCode = openConnection(dataSpec);
 
     // If we requested a range starting from a non-zero position and received a 200 rather than a
     // 206, then the server does not support partial requests. We'll need to manually skip to the
     // requested position.
     bytesToSkip = responseCode == 200 && dataSpec.position != 0 ? dataSpec.position : 0;
+    if (bytesToSkip > maxSkipBytes) {
+      closeConnectionQuietly();
+      notifySkipRequired(SkipListener.SKIP_FAILED);
+      throw new RangeNotSupportedException(bytesToSkip, dataSpec);
+    } else if (bytesToSkip > 0) {
+      notifySkipRequired(SkipListener.SKIP_BY_READING);
+    }
 
     // Determine the length of the data to be read, after skipping.
     if ((dataSpec.flags & DataSpec.FLAG_ALLOW_GZIP) == 0) {
@@ -263,18 +297,29 @@ public class DefaultHttpDataSource implements HttpDataSource {
 
   @Override
   public void close() throws HttpDataSourceException {
+    boolean reusable = false;
     try {
       if (inputStream != null) {
-        Util.maybeTerminateInputStream(connection, bytesRemaining());
+        reusable = connectionPool != null && drainQuietly();
+        if (!reusable) {
+          Util.maybeTerminateInputStream(connection, bytesRemaining());
+        }
         try {
           inputStream.close();
         } catch (IOException e) {
+          reusable = false;
           throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_CLOSE);
         }
       }
     } finally {
       inputStream = null;
-      closeConnectionQuietly();
+      if (reusable) {
+        // Leave the connection connected, so that the platform returns its socket to the pool.
+        connection = null;
+        releaseConnection(true);
+      } else {
+        closeConnectionQuietly();
+      }
       if (opened) {
         opened = false;
         if (listener != null) {
@@ -325,6 +370,57 @@ public class DefaultHttpDataSource implements HttpDataSource {
     return bytesToRead == C.LENGTH_UNBOUNDED ? bytesToRead : bytesToRead - bytesRead;
   }
 
+  /**
+   * Opens a connection for the given {@link DataSpec} and validates its response.
+   *
+   * @param requestSpec The {@link DataSpec} to request. Exceptions report {@link #dataSpec}.
+   * @return The response code.
+   * @throws HttpDataSourceException If the connection could not be made, or if its response was
+   *     invalid.
+   */
+  private int openConnection(DataSpec requestSpec) throws HttpDataSourceException {
+    try {
+      acquireConnection(requestSpec);
+      connection = makeConnection(requestSpec);
+    } catch (IOException e) {
+      releaseConnection(false);
+      throw new HttpDataSourceException("Unable to connect to " + requestSpec.uri.toString(), e,
+          dataSpec, HttpDataSourceException.TYPE_OPEN);
+    }
+
+    int responseCode;
+    try {
+      responseCode = connection.getResponseCode();
+    } catch (IOException e) {
+      closeConnectionQuietly();
+      throw new HttpDataSourceException("Unable to connect to " + requestSpec.uri.toString(), e,
+          dataSpec, HttpDataSourceException.TYPE_OPEN);
+    }
+    reassignConnection();
+
+    // Check for a valid response code.
+    if (responseCode < 200 || responseCode > 299) {
+      Map<String, List<String>> headers = connection.getHeaderFields();
+      closeConnectionQuietly();
+      throw new InvalidResponseCodeException(responseCode, headers, dataSpec);
+    }
+
+    // Check for a valid content type.
+    String contentType = connection.getContentType();
+    if (contentTypePredicate != null && !contentTypePredicate.evaluate(contentType)) {
+      closeConnectionQuietly();
+      throw new InvalidContentTypeException(contentType, dataSpec);
+    }
+
+    return responseCode;
+  }
+
+  private void notifySkipRequired(int decision) {
+    if (listener instanceof SkipListener) {
+      ((SkipListener) listener).onSkipRequired(bytesToSkip, decision);
+    }
+  }
+
   /**
    * Establishes a connection, following redirects to do so where permitted.
    */
@@ -334,20 +430,21 @@ public class DefaultHttpDataSource implements HttpDataSource {
     long position = dataSpec.position;
     long length = dataSpec.length;
     boolean allowGzip = (dataSpec.flags & DataSpec.FLAG_ALLOW_GZIP) != 0;
+    Map<String, String> httpRequestHeaders = dataSpec.httpRequestHeaders;
 
     if (!allowCrossProtocolRedirects) {
       // HttpURLConnection disallows cross-protocol redirects, but otherwise performs redirection
       // automatically. This is the behavior we want, so use it.
-      HttpURLConnection connection = makeConnection(
-          url, postBody, position, length, allowGzip, true /* followRedirects */);
+      HttpURLConnection connection = makeConnection(url, postBody, position, length, allowGzip,
+          httpRequestHeaders, true /* followRedirects */);
       return connection;
     }
 
     // We need to handle redirects ourselves to allow cross-protocol redirects.
     int redirectCount = 0;
     while (redirectCount++ <= MAX_REDIRECTS) {
-      HttpURLConnection connection = makeConnection(
-          url, postBody, position, length, allowGzip, false /* followRedirects */);
+      HttpURLConnection connection = makeConnection(url, postBody, position, length, allowGzip,
+          httpRequestHeaders, false /* followRedirects */);
       int responseCode = connection.getResponseCode();
       if (responseCode == HttpURLConnection.HTTP_MULT_CHOICE
           || responseCode == HttpURLConnection.HTTP_MOVED_PERM
@@ -379,10 +476,13 @@ public class DefaultHttpDataSource implements HttpDataSource {
    * @param position The byte offset of the requested data.
    * @param length The length of the requested data, or {@link C#LENGTH_UNBOUNDED}.
    * @param allowGzip Whether to allow the use of gzip.
+   * @param httpRequestHeaders Headers for this request, which take precedence over the request
+   *     properties of the source.
    * @param followRedirects Whether to follow redirects.
    */
   private HttpURLConnection makeConnection(URL url, byte[] postBody, long position,
-      long length, boolean allowGzip, boolean followRedirects) throws IOException {
+      long length, boolean allowGzip, Map<String, String> httpRequestHeaders,
+      boolean followRedirects) throws IOException {
     HttpURLConnection connection = (HttpURLConnection) url.openConnection();
     connection.setConnectTimeout(connectTimeoutMillis);
     connection.setReadTimeout(readTimeoutMillis);
@@ -391,6 +491,9 @@ public class DefaultHttpDataSource implements HttpDataSource {
         connection.setRequestProperty(property.getKey(), property.getValue());
       }
     }
+    for (Map.Entry<String, String> header : httpRequestHeaders.entrySet()) {
+      connection.setRequestProperty(header.getKey(), header.getValue());
+    }
     if (!(position == 0 && length == C.LENGTH_UNBOUNDED)) {
       String rangeRequest = "bytes=" + position + "-";
       if (length != C.LENGTH_UNBOUNDED) {
@@ -565,6 +668,92 @@ public class DefaultHttpDataSource implements HttpDataSource {
     return read;
   }
 
+  /**
+   * Reads and discards the remainder of the response, provided it is sufficiently small, so that
+   * the connection can be reused.
+   *
+   * @return Whether the end of the response was reached.
+   */
+  private boolean drainQuietly() {
+    long bytesRemaining = bytesRemaining();
+    if (bytesSkipped != bytesToSkip || bytesRemaining == C.LENGTH_UNBOUNDED
+        || bytesRemaining > connectionPool.getMaxDrainBytes()) {
+      return false;
+    }
+
+    // Acquire the shared skip buffer.
+    byte[] skipBuffer = skipBufferReference.getAndSet(null);
+    if (skipBuffer == null) {
+      skipBuffer = new byte[4096];
+    }
+
+    boolean drainRequired = bytesRemaining > 0;
+    boolean drained = false;
+    try {
+      while (bytesRemaining > 0) {
+        int read = inputStream.read(skipBuffer, 0,
+            (int) Math.min(bytesRemaining, skipBuffer.length));
+        if (read == -1) {
+          break;
+        }
+        bytesRemaining -= read;
+      }
+      // The response body must end here for the connection to be reusable. This will not be the
+      // case if, for example, the server ignored a bounded range request.
+      drained = bytesRemaining == 0 && inputStream.read() == -1;
+    } catch (IOException e) {
+      // Do nothing. The connection will be disconnected.
+    }
+
+    // Release the shared skip buffer.
+    skipBufferReference.set(skipBuffer);
+    if (drainRequired) {
+      connectionPool.onDrainAttempted(drained);
+    }
+    return drained;
+  }
+
+  /**
+   * Acquires a connection from the pool, if there is one.
+   */
+  private void acquireConnection(DataSpec dataSpec) throws IOException {
+    if (connectionPool == null) {
+      return;
+    }
+    String host = String.valueOf(dataSpec.uri.getHost());
+    try {
+      connectionPool.acquire(host);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    connectionHost = host;
+  }
+
+  /**
+   * Charges the connection acquired from the pool, if there is one, to the host to which the
+   * connection was finally made, which differs from the requested host if the request was
+   * redirected.
+   */
+  private void reassignConnection() {
+    if (connectionHost != null) {
+      String host = String.valueOf(connection.getURL().getHost());
+      connectionPool.reassign(connectionHost, host);
+      connectionHost = host;
+    }
+  }
+
+  /**
+   * Releases the connection acquired from the pool, if there is one.
+   *
+   * @param reusable Whether the connection was left connected so that it can be reused.
+   */
+  private void releaseConnection(boolean reusable) {
+    if (connectionHost != null) {
+      connectionPool.release(connectionHost, reusable);
+      connectionHost = null;
+    }
+  }
+
   /**
    * Closes the current connection quietly, if there is one.
    */
@@ -577,6 +766,7 @@ public class DefaultHttpDataSource implements HttpDataSource {
       }
       connection = null;
     }
+    releaseConnection(false);
   }
 
 }
@@ -21,6 +21,9 @@ import com.google.android.exoplayer.util.Util;
 import android.content.Context;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A {@link UriDataSource} that supports multiple URI schemes. The supported schemes are:
@@ -34,7 +37,7 @@ import java.io.IOException;
  * <li>content: For fetching data from a content URI (e.g. content://authority/path/123).
  * </ul>
  */
-public final class DefaultUriDataSource implements UriDataSource {
+public final class DefaultUriDataSource implements UriDataSource, ByteBufferDataSource {
 
   private static final String SCHEME_ASSET = "asset";
   private static final String SCHEME_CONTENT = "content";
@@ -50,6 +53,8 @@ public final class DefaultUriDataSource implements UriDataSource {
    */
   private UriDataSource dataSource;
 
+  private byte[] byteBufferScratch;
+
   /**
    * Constructs a new instance.
    * <p>
@@ -107,8 +112,23 @@ public final class DefaultUriDataSource implements UriDataSource {
    */
   public DefaultUriDataSource(Context context, TransferListener listener,
       UriDataSource httpDataSource) {
+    this(context, listener, httpDataSource, false);
+  }
+
+  /**
+   * Constructs a new instance, using a provided {@link HttpDataSource} for fetching remote data and
+   * optionally memory-mapping local files.
+   *
+   * @param context A context.
+   * @param listener An optional {@link TransferListener}.
+   * @param httpDataSource {@link UriDataSource} to use for non-file URIs.
+   * @param memoryMapLocalFiles Whether local files should be read by memory-mapping them. See
+   *     {@link FileDataSource#FileDataSource(TransferListener, boolean)}.
+   */
+  public DefaultUriDataSource(Context context, TransferListener listener,
+      UriDataSource httpDataSource, boolean memoryMapLocalFiles) {
     this.httpDataSource = Assertions.checkNotNull(httpDataSource);
-    this.fileDataSource = new FileDataSource(listener);
+    this.fileDataSource = new FileDataSource(listener, memoryMapLocalFiles);
     this.assetDataSource = new AssetDataSource(context, listener);
     this.contentDataSource = new ContentDataSource(context, listener);
   }
@@ -140,11 +160,28 @@ public final class DefaultUriDataSource implements UriDataSource {
     return dataSource.read(buffer, offset, readLength);
   }
 
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    if (byteBufferScratch == null && !(dataSource instanceof ByteBufferDataSource)
+        && !buffer.hasArray()) {
+      byteBufferScratch = new byte[4096];
+    }
+    return Util.read(dataSource, buffer, byteBufferScratch);
+  }
+
   @Override
   public String getUri() {
     return dataSource == null ? null : dataSource.getUri();
   }
 
+  /**
+   * Returns the response headers of the open source if it is an {@link HttpDataSource}, or null.
+   */
+  public Map<String, List<String>> getResponseHeaders() {
+    return dataSource instanceof HttpDataSource
+        ? ((HttpDataSource) dataSource).getResponseHeaders() : null;
+  }
+
   @Override
   public void close() throws IOException {
     if (dataSource != null) {
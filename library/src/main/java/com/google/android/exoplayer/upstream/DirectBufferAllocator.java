@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * An {@link Allocator} whose {@link Allocation}s are slices of large direct {@link ByteBuffer}
+ * arenas.
+ * <p>
+ * Allocations are backed by memory outside of the Java heap, so buffering media does not add to
+ * garbage collection pressure. Data can be read into an allocation directly using
+ * {@link ByteBufferDataSource#read(ByteBuffer)}, and copied out of it into a decoder input buffer
+ * without an intermediate copy through the heap. The {@link Allocation#data} field of allocations
+ * obtained from this allocator is null, and {@link Allocation#getByteBuffer()} must be used
+ * instead.
+ * <p>
+ * Memory is only returned to the system when all of the allocations in an arena are available.
+ * To make this likely, allocations are always made from the oldest arena that has one available.
+ */
+public final class DirectBufferAllocator implements Allocator {
+
+  /**
+   * The default number of allocations in each arena.
+   */
+  public static final int DEFAULT_ALLOCATIONS_PER_ARENA = 32;
+
+  private final int individualAllocationSize;
+  private final int allocationsPerArena;
+  private final ArrayList<Arena> arenas;
+  private final IdentityHashMap<Allocation, Arena> allocationArenas;
+
+  private int allocatedCount;
+
+  /**
+   * Constructs an initially empty pool.
+   *
+   * @param individualAllocationSize The length of each individual allocation.
+   */
+  public DirectBufferAllocator(int individualAllocationSize) {
+    this(individualAllocationSize, DEFAULT_ALLOCATIONS_PER_ARENA);
+  }
+
+  /**
+   * Constructs an initially empty pool.
+   *
+   * @param individualAllocationSize The length of each individual allocation.
+   * @param allocationsPerArena The number of allocations in each arena.
+   */
+  public DirectBufferAllocator(int individualAllocationSize, int allocationsPerArena) {
+    Assertions.checkArgument(individualAllocationSize > 0);
+    Assertions.checkArgument(allocationsPerArena > 0);
+    Assertions.checkArgument(
+        (long) individualAllocationSize * allocationsPerArena <= Integer.MAX_VALUE);
+    this.individualAllocationSize = individualAllocationSize;
+    this.allocationsPerArena = allocationsPerArena;
+    arenas = new ArrayList<>();
+    allocationArenas = new IdentityHashMap<>();
+  }
+
+  @Override
+  public synchronized Allocation allocate() {
+    allocatedCount++;
+    for (int i = 0; i < arenas.size(); i++) {
+      Arena arena = arenas.get(i);
+      if (arena.availableCount > 0) {
+        return arena.allocate();
+      }
+    }
+    Arena arena = new Arena(individualAllocationSize, allocationsPerArena);
+    for (int i = 0; i < allocationsPerArena; i++) {
+      allocationArenas.put(arena.availableAllocations[i], arena);
+    }
+    arenas.add(arena);
+    return arena.allocate();
+  }
+
+  @Override
+  public synchronized void release(Allocation allocation) {
+    Arena arena = allocationArenas.get(allocation);
+    Assertions.checkArgument(arena != null);
+    allocatedCount--;
+    arena.release(allocation);
+    // Wake up threads waiting for the allocated size to drop.
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void trim(int targetSize) {
+    int targetAllocationCount = Util.ceilDivide(targetSize, individualAllocationSize);
+    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount);
+    int availableCount = arenas.size() * allocationsPerArena - allocatedCount;
+    // Discard unused arenas beyond the target, starting with the most recently created.
+    for (int i = arenas.size() - 1; i >= 0; i--) {
+      if (availableCount - allocationsPerArena < targetAvailableCount) {
+        // Discarding another arena would take us below the target.
+        return;
+      }
+      Arena arena = arenas.get(i);
+      if (arena.availableCount == allocationsPerArena) {
+        for (int j = 0; j < allocationsPerArena; j++) {
+          allocationArenas.remove(arena.availableAllocations[j]);
+        }
+        arenas.remove(i);
+        availableCount -= allocationsPerArena;
+      }
+    }
+  }
+
+  @Override
+  public synchronized int getTotalBytesAllocated() {
+    return allocatedCount * individualAllocationSize;
+  }
+
+  /**
+   * Returns the total number of bytes of direct memory held by the allocator, including memory
+   * that is available for allocation.
+   */
+  public synchronized long getTotalBytesReserved() {
+    return (long) arenas.size() * allocationsPerArena * individualAllocationSize;
+  }
+
+  @Override
+  public synchronized void blockWhileTotalBytesAllocatedExceeds(int limit)
+      throws InterruptedException {
+    while (getTotalBytesAllocated() > limit) {
+      wait();
+    }
+  }
+
+  @Override
+  public int getIndividualAllocationLength() {
+    return individualAllocationSize;
+  }
+
+  /**
+   * A direct buffer divided into allocations.
+   */
+  private static final class Arena {
+
+    public final Allocation[] availableAllocations;
+    public int availableCount;
+
+    public Arena(int individualAllocationSize, int allocationCount) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(individualAllocationSize * allocationCount);
+      availableAllocations = new Allocation[allocationCount];
+      // Populate in reverse so that allocations are made from the start of the buffer first.
+      for (int i = 0; i < allocationCount; i++) {
+        int position = (allocationCount - i - 1) * individualAllocationSize;
+        buffer.limit(position + individualAllocationSize);
+        buffer.position(position);
+        availableAllocations[i] = new Allocation(buffer.slice());
+      }
+      availableCount = allocationCount;
+    }
+
+    public Allocation allocate() {
+      Allocation allocation = availableAllocations[--availableCount];
+      availableAllocations[availableCount] = null;
+      return allocation;
+    }
+
+    public void release(Allocation allocation) {
+      availableAllocations[availableCount++] = allocation;
+    }
+
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * A {@link BandwidthEstimator} that maintains a fast and a slow exponentially weighted moving
+ * average of throughput, and estimates the lower of the two. The fast average reacts quickly to a
+ * drop in throughput, whilst the slow average prevents a brief rise from being trusted too soon.
+ * <p>
+ * Each sample is weighted by its duration, so the averages decay with transfer time rather than
+ * with the number of samples. Since the throughput of a sample covering few bytes is dominated by
+ * latency, consecutive samples are combined until they cover a minimum number of bytes. Ignoring
+ * such samples instead would prevent a slow link from ever lowering the estimate below the minimum
+ * number of bytes per sample interval.
+ */
+public final class DualEwmaBandwidthEstimator implements BandwidthEstimator {
+
+  public static final float DEFAULT_FAST_HALF_LIFE_S = 2;
+  public static final float DEFAULT_SLOW_HALF_LIFE_S = 5;
+  public static final long DEFAULT_MIN_SAMPLE_BYTES = 16 * 1024;
+
+  private final Ewma fast;
+  private final Ewma slow;
+  private final long minSampleBytes;
+
+  private long pendingBytes;
+  private long pendingElapsedMs;
+
+  public DualEwmaBandwidthEstimator() {
+    this(DEFAULT_FAST_HALF_LIFE_S, DEFAULT_SLOW_HALF_LIFE_S, DEFAULT_MIN_SAMPLE_BYTES);
+  }
+
+  /**
+   * @param fastHalfLifeS The half life of the fast average, in seconds of transfer time.
+   * @param slowHalfLifeS The half life of the slow average, in seconds of transfer time.
+   * @param minSampleBytes The minimum number of bytes that a sample must cover to be used. Smaller
+   *     samples are combined with the samples that follow them.
+   */
+  public DualEwmaBandwidthEstimator(float fastHalfLifeS, float slowHalfLifeS,
+      long minSampleBytes) {
+    this.fast = new Ewma(fastHalfLifeS);
+    this.slow = new Ewma(slowHalfLifeS);
+    this.minSampleBytes = minSampleBytes;
+  }
+
+  @Override
+  public void addSample(long bytes, long elapsedMs) {
+    pendingBytes += bytes;
+    pendingElapsedMs += elapsedMs;
+    if (pendingBytes < minSampleBytes) {
+      return;
+    }
+    double bitsPerSecond = (pendingBytes * 8000d) / pendingElapsedMs;
+    fast.addSample(pendingElapsedMs / 1000d, bitsPerSecond);
+    slow.addSample(pendingElapsedMs / 1000d, bitsPerSecond);
+    pendingBytes = 0;
+    pendingElapsedMs = 0;
+  }
+
+  @Override
+  public long getBitrateEstimate() {
+    if (fast.totalWeight == 0) {
+      return BandwidthMeter.NO_ESTIMATE;
+    }
+    return (long) Math.min(fast.getEstimate(), slow.getEstimate());
+  }
+
+  private static final class Ewma {
+
+    private final double alpha;
+
+    private double estimate;
+    private double totalWeight;
+
+    public Ewma(float halfLifeS) {
+      alpha = Math.exp(Math.log(0.5) / halfLifeS);
+    }
+
+    public void addSample(double weight, double value) {
+      double adjustedAlpha = Math.pow(alpha, weight);
+      estimate = value * (1 - adjustedAlpha) + adjustedAlpha * estimate;
+      totalWeight += weight;
+    }
+
+    public double getEstimate() {
+      // The average starts at zero, so correct for the weight that's been given to that value.
+      double zeroFactor = 1 - Math.pow(alpha, totalWeight);
+      return estimate / zeroFactor;
+    }
+
+  }
+
+}
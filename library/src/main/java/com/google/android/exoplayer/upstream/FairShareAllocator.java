@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An {@link Allocator} that divides the memory of an upstream {@link Allocator} between registered
+ * owners, according to a quota for each owner.
+ * <p>
+ * Each owner obtains allocations through its own view, returned by {@link #register(Object, int)}.
+ * An owner whose allocations are within its quota is never blocked by
+ * {@link Allocator#blockWhileTotalBytesAllocatedExceeds(int)}, so it can always allocate its share
+ * even when other owners have filled the pool. An owner that has exceeded its quota borrows the
+ * unused share of the other owners, and is blocked as usual once the total number of bytes
+ * allocated exceeds the limit. When several blocked owners become able to proceed at the same time,
+ * they do so in order of increasing quota utilization, and then in the order in which they started
+ * waiting.
+ * <p>
+ * Allocations must be released through the view from which they were obtained. Allocations
+ * obtained directly from this allocator are counted towards the total, but not towards any owner's
+ * quota, and blocking directly on this allocator ignores quotas.
+ */
+public final class FairShareAllocator implements Allocator {
+
+  private final Allocator upstream;
+  private final HashMap<Object, OwnerAllocator> owners;
+  private final ArrayList<Waiter> waiters;
+
+  private int totalBytesAllocated;
+  private long nextWaiterSequenceNumber;
+
+  /**
+   * @param upstream The allocator from which allocations are obtained.
+   */
+  public FairShareAllocator(Allocator upstream) {
+    this.upstream = upstream;
+    owners = new HashMap<>();
+    waiters = new ArrayList<>();
+  }
+
+  /**
+   * Registers an owner.
+   *
+   * @param owner The owner being registered.
+   * @param quota The number of bytes that the owner is always able to allocate.
+   * @return A view through which the owner should obtain and release allocations.
+   */
+  public synchronized Allocator register(Object owner, int quota) {
+    Assertions.checkState(!owners.containsKey(owner));
+    OwnerAllocator ownerAllocator = new OwnerAllocator(quota);
+    owners.put(owner, ownerAllocator);
+    return ownerAllocator;
+  }
+
+  /**
+   * Updates the quota of a registered owner.
+   *
+   * @param owner The owner.
+   * @param quota The number of bytes that the owner is always able to allocate.
+   */
+  public synchronized void setQuota(Object owner, int quota) {
+    OwnerAllocator ownerAllocator = owners.get(owner);
+    Assertions.checkState(ownerAllocator != null);
+    ownerAllocator.quota = quota;
+    // The owner may now be within its quota.
+    notifyAll();
+  }
+
+  /**
+   * Unregisters an owner. Allocations held by the owner continue to be counted until they are
+   * released.
+   *
+   * @param owner The owner being unregistered.
+   */
+  public synchronized void unregister(Object owner) {
+    owners.remove(owner);
+    // Quotas no longer hold back other owners in the same way.
+    notifyAll();
+  }
+
+  /**
+   * Returns the view for a registered owner, or null if the owner is not registered.
+   *
+   * @param owner The owner.
+   * @return The owner's view, or null.
+   */
+  public synchronized Allocator getAllocator(Object owner) {
+    return owners.get(owner);
+  }
+
+  /**
+   * Returns the number of bytes currently allocated by a registered owner.
+   *
+   * @param owner The owner.
+   * @return The number of bytes allocated by the owner, or 0 if the owner is not registered.
+   */
+  public synchronized int getBytesAllocated(Object owner) {
+    OwnerAllocator ownerAllocator = owners.get(owner);
+    return ownerAllocator == null ? 0 : ownerAllocator.bytesAllocated;
+  }
+
+  /**
+   * Returns whether a registered owner obtains its allocations through its view and has allocated
+   * less than its quota.
+   *
+   * @param owner The owner.
+   * @return Whether the owner has allocated less than its quota. False if the owner is not
+   *     registered, or has never obtained an allocation through its view, since its use of memory
+   *     is then unknown.
+   */
+  public synchronized boolean isWithinQuota(Object owner) {
+    OwnerAllocator ownerAllocator = owners.get(owner);
+    return ownerAllocator != null && ownerAllocator.allocatedThroughView
+        && ownerAllocator.isWithinQuota();
+  }
+
+  @Override
+  public Allocation allocate() {
+    return allocate(null);
+  }
+
+  @Override
+  public void release(Allocation allocation) {
+    release(null, allocation);
+  }
+
+  @Override
+  public void trim(int targetSize) {
+    upstream.trim(targetSize);
+  }
+
+  @Override
+  public synchronized int getTotalBytesAllocated() {
+    return totalBytesAllocated;
+  }
+
+  @Override
+  public void blockWhileTotalBytesAllocatedExceeds(int limit) throws InterruptedException {
+    blockWhileTotalBytesAllocatedExceeds(null, limit);
+  }
+
+  @Override
+  public int getIndividualAllocationLength() {
+    return upstream.getIndividualAllocationLength();
+  }
+
+  private synchronized Allocation allocate(OwnerAllocator owner) {
+    Allocation allocation = upstream.allocate();
+    int length = upstream.getIndividualAllocationLength();
+    totalBytesAllocated += length;
+    if (owner != null) {
+      owner.bytesAllocated += length;
+      owner.allocatedThroughView = true;
+    }
+    return allocation;
+  }
+
+  private synchronized void release(OwnerAllocator owner, Allocation allocation) {
+    upstream.release(allocation);
+    int length = upstream.getIndividualAllocationLength();
+    totalBytesAllocated -= length;
+    if (owner != null) {
+      owner.bytesAllocated -= length;
+    }
+    // Wake up threads waiting for the allocated size to drop.
+    notifyAll();
+  }
+
+  private synchronized void blockWhileTotalBytesAllocatedExceeds(OwnerAllocator owner, int limit)
+      throws InterruptedException {
+    Waiter waiter = new Waiter(owner, limit, nextWaiterSequenceNumber++);
+    if (waiter.canProceed() && !hasPrecedingWaiter(waiter)) {
+      return;
+    }
+    waiters.add(waiter);
+    try {
+      while (!waiter.canProceed() || hasPrecedingWaiter(waiter)) {
+        wait();
+      }
+    } finally {
+      waiters.remove(waiter);
+      // A waiter that was waiting for this one to proceed may now be able to do so.
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns whether another waiter that is able to proceed should do so before the specified one.
+   */
+  private boolean hasPrecedingWaiter(Waiter waiter) {
+    for (int i = 0; i < waiters.size(); i++) {
+      Waiter other = waiters.get(i);
+      if (other != waiter && other.canProceed() && other.precedes(waiter)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A view through which a registered owner obtains and releases allocations.
+   */
+  private final class OwnerAllocator implements Allocator {
+
+    public int quota;
+    public int bytesAllocated;
+    public boolean allocatedThroughView;
+
+    public OwnerAllocator(int quota) {
+      this.quota = quota;
+    }
+
+    public boolean isWithinQuota() {
+      return bytesAllocated < quota;
+    }
+
+    public float getQuotaUtilization() {
+      return quota == 0 ? Float.MAX_VALUE : (float) bytesAllocated / quota;
+    }
+
+    @Override
+    public Allocation allocate() {
+      return FairShareAllocator.this.allocate(this);
+    }
+
+    @Override
+    public void release(Allocation allocation) {
+      FairShareAllocator.this.release(this, allocation);
+    }
+
+    @Override
+    public void trim(int targetSize) {
+      FairShareAllocator.this.trim(targetSize);
+    }
+
+    /**
+     * Blocks execution until the owner has allocated less than its quota, or the total number of
+     * bytes allocated by all owners is not greater than the limit, or the thread is interrupted.
+     */
+    @Override
+    public void blockWhileTotalBytesAllocatedExceeds(int limit) throws InterruptedException {
+      FairShareAllocator.this.blockWhileTotalBytesAllocatedExceeds(this, limit);
+    }
+
+    @Override
+    public int getTotalBytesAllocated() {
+      return FairShareAllocator.this.getTotalBytesAllocated();
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return FairShareAllocator.this.getIndividualAllocationLength();
+    }
+
+  }
+
+  /**
+   * A thread blocked in {@link #blockWhileTotalBytesAllocatedExceeds(OwnerAllocator, int)}.
+   */
+  private final class Waiter {
+
+    private final OwnerAllocator owner;
+    private final int limit;
+    private final long sequenceNumber;
+
+    public Waiter(OwnerAllocator owner, int limit, long sequenceNumber) {
+      this.owner = owner;
+      this.limit = limit;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    public boolean canProceed() {
+      return (owner != null && owner.isWithinQuota()) || totalBytesAllocated <= limit;
+    }
+
+    public boolean precedes(Waiter other) {
+      float utilization = owner == null ? Float.MAX_VALUE : owner.getQuotaUtilization();
+      float otherUtilization = other.owner == null ? Float.MAX_VALUE
+          : other.owner.getQuotaUtilization();
+      return utilization < otherUtilization
+          || (utilization == otherUtilization && sequenceNumber < other.sequenceNumber);
+    }
+
+  }
+
+}
@@ -1,32 +1,276 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
 package com.google.android.exoplayer.upstream;
 
+import com.google.android.exoplayer.C;
+
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
- * Created by Elvis.He on 2016/6/25.
+ * A local file {@link UriDataSource}.
+ * <p>
+ * The source can optionally memory-map the requested range of the file. In this mode reads are
+ * served directly from the mapped region rather than through {@code read} system calls, and
+ * {@link #read(int)} can be used to obtain views of the file's contents without any copying.
+ * The range is mapped in windows of at most {@link #DEFAULT_MAX_MAPPED_REGION_SIZE} bytes, so
+ * that large files do not exhaust the process's address space.
  */
-public class FileDataSource implements UriDataSource {
-    public FileDataSource(TransferListener listener) {
+public final class FileDataSource implements UriDataSource, ByteBufferDataSource {
+
+  /**
+   * Thrown when IOException is encountered during local file read operation.
+   */
+  public static class FileDataSourceException extends IOException {
+
+    public FileDataSourceException(IOException cause) {
+      super(cause);
+    }
+
+  }
+
+  /**
+   * The default maximum number of bytes mapped at any one time when memory-mapping is enabled.
+   */
+  public static final int DEFAULT_MAX_MAPPED_REGION_SIZE = 16 * 1024 * 1024;
+
+  private final TransferListener listener;
+  private final boolean useMemoryMapping;
+  private final int maxMappedRegionSize;
+
+  private RandomAccessFile file;
+  private FileChannel fileChannel;
+  private MappedByteBuffer mappedRegion;
+  private String uriString;
+  private long position;
+  private long bytesRemaining;
+  private boolean opened;
+
+  /**
+   * Constructs a new {@link UriDataSource} that retrieves data from a file.
+   */
+  public FileDataSource() {
+    this(null);
+  }
+
+  /**
+   * Constructs a new {@link UriDataSource} that retrieves data from a file.
+   *
+   * @param listener An optional listener.
+   */
+  public FileDataSource(TransferListener listener) {
+    this(listener, false);
+  }
+
+  /**
+   * Constructs a new {@link UriDataSource} that retrieves data from a file, optionally by
+   * memory-mapping it.
+   *
+   * @param listener An optional listener.
+   * @param useMemoryMapping Whether the requested range of the file should be memory-mapped.
+   */
+  public FileDataSource(TransferListener listener, boolean useMemoryMapping) {
+    this(listener, useMemoryMapping, DEFAULT_MAX_MAPPED_REGION_SIZE);
+  }
+
+  /**
+   * Constructs a new {@link UriDataSource} that retrieves data from a file, optionally by
+   * memory-mapping it.
+   *
+   * @param listener An optional listener.
+   * @param useMemoryMapping Whether the requested range of the file should be memory-mapped.
+   * @param maxMappedRegionSize The maximum number of bytes mapped at any one time. Ignored if
+   *     {@code useMemoryMapping} is false.
+   */
+  public FileDataSource(TransferListener listener, boolean useMemoryMapping,
+      int maxMappedRegionSize) {
+    this.listener = listener;
+    this.useMemoryMapping = useMemoryMapping;
+    this.maxMappedRegionSize = maxMappedRegionSize;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws FileDataSourceException {
+    try {
+      uriString = dataSpec.uri.toString();
+      file = new RandomAccessFile(dataSpec.uri.getPath(), "r");
+      position = dataSpec.position;
+      bytesRemaining = dataSpec.length == C.LENGTH_UNBOUNDED ? file.length() - dataSpec.position
+          : dataSpec.length;
+      if (bytesRemaining < 0) {
+        throw new EOFException();
+      }
+      if (useMemoryMapping) {
+        fileChannel = file.getChannel();
+      } else {
+        file.seek(dataSpec.position);
+      }
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    }
+
+    opened = true;
+    if (listener != null) {
+      listener.onTransferStart();
+    }
+
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws FileDataSourceException {
+    if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    } else if (useMemoryMapping) {
+      ByteBuffer region = read(readLength);
+      int bytesRead = region.remaining();
+      region.get(buffer, offset, bytesRead);
+      return bytesRead;
+    } else {
+      int bytesRead = 0;
+      try {
+        bytesRead = file.read(buffer, offset, (int) Math.min(bytesRemaining, readLength));
+      } catch (IOException e) {
+        throw new FileDataSourceException(e);
+      }
+
+      if (bytesRead > 0) {
+        bytesRemaining -= bytesRead;
+        if (listener != null) {
+          listener.onBytesTransferred(bytesRead);
+        }
+      }
+
+      return bytesRead;
+    }
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws FileDataSourceException {
+    if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    } else if (useMemoryMapping) {
+      ByteBuffer region = read(buffer.remaining());
+      int bytesRead = region.remaining();
+      buffer.put(region);
+      return bytesRead;
+    }
 
+    int bytesRead;
+    int limit = buffer.limit();
+    try {
+      if (buffer.remaining() > bytesRemaining) {
+        buffer.limit(buffer.position() + (int) bytesRemaining);
+      }
+      // The channel shares its position with the file, so reads through either remain in sync.
+      bytesRead = file.getChannel().read(buffer);
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    } finally {
+      buffer.limit(limit);
     }
 
-    @Override
-    public String getUri() {
+    if (bytesRead > 0) {
+      bytesRemaining -= bytesRead;
+      if (listener != null) {
+        listener.onBytesTransferred(bytesRead);
+      }
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Reads up to {@code readLength} bytes, returning them as a read-only {@link ByteBuffer}.
+   * <p>
+   * If the source is memory-mapping the file then the returned buffer is a view onto the mapped
+   * region and no data is copied. The view remains valid until the source is closed. Otherwise
+   * the data is read into a newly allocated buffer.
+   *
+   * @param readLength The maximum number of bytes to read.
+   * @return A buffer whose remaining bytes are the data that was read, or null if the end of the
+   *     input has been reached.
+   * @throws FileDataSourceException If an error occurs reading from the file.
+   */
+  public ByteBuffer read(int readLength) throws FileDataSourceException {
+    if (bytesRemaining == 0) {
+      return null;
+    } else if (!useMemoryMapping) {
+      byte[] data = new byte[(int) Math.min(bytesRemaining, readLength)];
+      int bytesRead = read(data, 0, data.length);
+      if (bytesRead == C.RESULT_END_OF_INPUT) {
         return null;
+      }
+      return ByteBuffer.wrap(data, 0, bytesRead).asReadOnlyBuffer();
     }
 
-    @Override
-    public long open(DataSpec dataSpec) throws IOException {
-        return 0;
+    if (mappedRegion == null || !mappedRegion.hasRemaining()) {
+      mapNextRegion();
+    }
+    int bytesRead = Math.min(mappedRegion.remaining(), readLength);
+    ByteBuffer view = mappedRegion.slice();
+    view.limit(bytesRead);
+    mappedRegion.position(mappedRegion.position() + bytesRead);
+    position += bytesRead;
+    bytesRemaining -= bytesRead;
+    if (bytesRead > 0 && listener != null) {
+      listener.onBytesTransferred(bytesRead);
     }
+    return view.asReadOnlyBuffer();
+  }
 
-    @Override
-    public void close() throws IOException {
+  @Override
+  public String getUri() {
+    return uriString;
+  }
 
+  @Override
+  public void close() throws FileDataSourceException {
+    uriString = null;
+    // The mapping is released when the buffer is garbage collected. Closing the channel does not
+    // invalidate views that have already been returned.
+    mappedRegion = null;
+    fileChannel = null;
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        throw new FileDataSourceException(e);
+      } finally {
+        file = null;
+        if (opened) {
+          opened = false;
+          if (listener != null) {
+            listener.onTransferEnd();
+          }
+        }
+      }
     }
+  }
 
-    @Override
-    public int read(byte[] buffer, int offset, int readLength) throws IOException {
-        return 0;
+  private void mapNextRegion() throws FileDataSourceException {
+    long regionSize = Math.min(bytesRemaining, maxMappedRegionSize);
+    try {
+      mappedRegion = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
     }
+  }
+
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * A {@link BandwidthEstimator} that estimates the harmonic mean of the throughput of the most
+ * recent samples. The harmonic mean is dominated by low values, so it's robust to short bursts of
+ * high throughput.
+ * <p>
+ * Samples covering no bytes are ignored, since their throughput has no reciprocal.
+ */
+public final class HarmonicMeanBandwidthEstimator implements BandwidthEstimator {
+
+  public static final int DEFAULT_SAMPLE_COUNT = 20;
+
+  private final double[] reciprocals;
+
+  private int nextIndex;
+  private int sampleCount;
+  private double reciprocalSum;
+
+  public HarmonicMeanBandwidthEstimator() {
+    this(DEFAULT_SAMPLE_COUNT);
+  }
+
+  /**
+   * @param maxSampleCount The number of most recent samples over which the mean is calculated.
+   */
+  public HarmonicMeanBandwidthEstimator(int maxSampleCount) {
+    reciprocals = new double[maxSampleCount];
+  }
+
+  @Override
+  public void addSample(long bytes, long elapsedMs) {
+    if (bytes <= 0) {
+      return;
+    }
+    double reciprocal = elapsedMs / (bytes * 8000d);
+    if (sampleCount == reciprocals.length) {
+      reciprocalSum -= reciprocals[nextIndex];
+    } else {
+      sampleCount++;
+    }
+    reciprocals[nextIndex] = reciprocal;
+    reciprocalSum += reciprocal;
+    nextIndex = (nextIndex + 1) % reciprocals.length;
+    if (nextIndex == 0) {
+      // Recalculate the sum once per cycle, so that floating point errors don't accumulate.
+      reciprocalSum = 0;
+      for (int i = 0; i < sampleCount; i++) {
+        reciprocalSum += reciprocals[i];
+      }
+    }
+  }
+
+  @Override
+  public long getBitrateEstimate() {
+    return sampleCount == 0 ? BandwidthMeter.NO_ESTIMATE : (long) (sampleCount / reciprocalSum);
+  }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Manages keep-alive connection reuse for {@link DefaultHttpDataSource} instances.
+ * <p>
+ * {@link java.net.HttpURLConnection} maintains its own pool of idle sockets, and returns a socket
+ * to that pool only if the response body is read to the end and the stream is closed without
+ * calling {@link java.net.HttpURLConnection#disconnect()}. This class limits the number of
+ * concurrent connections to each host, so that loads to the same host queue for a connection that
+ * can then be reused rather than each opening a new one, and bounds how many unread bytes a data
+ * source will drain on close in order to make its socket reusable.
+ * <p>
+ * A connection counts against the limit from when it's acquired until the data source is closed,
+ * including any time for which the source is held open without being read, as it is between
+ * requests by {@link CoalescingDataSource}. A load therefore waits for a connection for at most a
+ * bounded time, after which it connects even though the limit is exceeded.
+ * <p>
+ * Idle sockets are owned by the platform pool, which this class cannot inspect or close, so idle
+ * timeouts are not implemented here. The platform pool is left configured as it is. It's
+ * controlled by the process-wide {@code http.keepAlive}, {@code http.maxConnections} and
+ * {@code http.keepAliveDuration} system properties, the last of which sets the idle timeout, and
+ * which an application can set if it needs to change the platform defaults.
+ * <p>
+ * The pool counts the connections that it grants, the connections that are released for reuse
+ * rather than disconnected, and the remainders that data sources attempt to drain and succeed in
+ * draining. These are measured, rather than inferred from the state of the platform pool.
+ */
+public final class HttpConnectionPool {
+
+  /**
+   * The default maximum number of concurrent connections to a single host.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+  /**
+   * The default maximum number of unread bytes drained on close to allow connection reuse.
+   */
+  public static final int DEFAULT_MAX_DRAIN_BYTES = 64 * 1024;
+  /**
+   * The default maximum time for which a load waits for a connection, in milliseconds.
+   */
+  public static final long DEFAULT_MAX_WAIT_MS = 500;
+
+  private final int maxConnectionsPerHost;
+  private final int maxDrainBytes;
+  private final long maxWaitMs;
+  private final HashMap<String, Integer> activeConnectionCounts;
+
+  private long connectionCount;
+  private long limitExceededCount;
+  private long reusableReleaseCount;
+  private long drainAttemptCount;
+  private long drainSuccessCount;
+
+  /**
+   * Constructs an instance with default parameters.
+   */
+  public HttpConnectionPool() {
+    this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_DRAIN_BYTES);
+  }
+
+  /**
+   * @param maxConnectionsPerHost The maximum number of concurrent connections to a single host.
+   * @param maxDrainBytes The maximum number of unread bytes that will be drained from a response
+   *     when a data source is closed, so that its connection can be reused.
+   */
+  public HttpConnectionPool(int maxConnectionsPerHost, int maxDrainBytes) {
+    this(maxConnectionsPerHost, maxDrainBytes, DEFAULT_MAX_WAIT_MS);
+  }
+
+  /**
+   * @param maxConnectionsPerHost The maximum number of concurrent connections to a single host.
+   * @param maxDrainBytes The maximum number of unread bytes that will be drained from a response
+   *     when a data source is closed, so that its connection can be reused.
+   * @param maxWaitMs The maximum time for which a load waits for a connection whilst the maximum
+   *     number of connections to the host are in use, after which the connection is granted anyway.
+   */
+  public HttpConnectionPool(int maxConnectionsPerHost, int maxDrainBytes, long maxWaitMs) {
+    Assertions.checkArgument(maxConnectionsPerHost > 0 && maxWaitMs >= 0);
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.maxDrainBytes = maxDrainBytes;
+    this.maxWaitMs = maxWaitMs;
+    this.activeConnectionCounts = new HashMap<>();
+  }
+
+  /**
+   * Returns the maximum number of unread bytes that should be drained from a response on close.
+   */
+  public int getMaxDrainBytes() {
+    return maxDrainBytes;
+  }
+
+  /**
+   * Acquires a connection to the specified host, blocking whilst the maximum number of concurrent
+   * connections to the host are already in use, for at most the maximum wait time.
+   *
+   * @param host The host.
+   * @throws InterruptedException If the thread is interrupted whilst waiting.
+   */
+  public synchronized void acquire(String host) throws InterruptedException {
+    long deadlineMs = SystemClock.elapsedRealtime() + maxWaitMs;
+    while (getActiveConnectionCount(host) >= maxConnectionsPerHost) {
+      long remainingWaitMs = deadlineMs - SystemClock.elapsedRealtime();
+      if (remainingWaitMs <= 0) {
+        limitExceededCount++;
+        break;
+      }
+      wait(remainingWaitMs);
+    }
+    activeConnectionCounts.put(host, getActiveConnectionCount(host) + 1);
+    connectionCount++;
+  }
+
+  /**
+   * Moves a connection acquired with {@link #acquire(String)} to a different host, for example
+   * because the request was redirected. Does not block, even if the limit for the new host is
+   * exceeded as a result.
+   *
+   * @param host The host for which the connection was acquired.
+   * @param newHost The host to which the connection was made.
+   */
+  public synchronized void reassign(String host, String newHost) {
+    if (!host.equals(newHost)) {
+      releaseInternal(host);
+      activeConnectionCounts.put(newHost, getActiveConnectionCount(newHost) + 1);
+    }
+  }
+
+  /**
+   * Releases a connection previously acquired with {@link #acquire(String)}.
+   *
+   * @param host The host.
+   * @param reusable Whether the connection was returned to the platform pool, meaning that its
+   *     response body was read to the end and the connection was not disconnected.
+   */
+  public synchronized void release(String host, boolean reusable) {
+    releaseInternal(host);
+    if (reusable) {
+      reusableReleaseCount++;
+    }
+  }
+
+  /**
+   * Records an attempt to drain the unread remainder of a response so that its connection can be
+   * reused.
+   *
+   * @param success Whether the remainder was drained to the end of the response.
+   */
+  public synchronized void onDrainAttempted(boolean success) {
+    drainAttemptCount++;
+    if (success) {
+      drainSuccessCount++;
+    }
+  }
+
+  /**
+   * Returns the number of connections that have been acquired.
+   */
+  public synchronized long getConnectionCount() {
+    return connectionCount;
+  }
+
+  /**
+   * Returns the number of connections that were acquired after waiting for the maximum wait time,
+   * and which therefore exceeded the limit for their host.
+   */
+  public synchronized long getLimitExceededCount() {
+    return limitExceededCount;
+  }
+
+  /**
+   * Returns the number of connections that were returned to the platform pool for reuse, rather
+   * than being disconnected.
+   */
+  public synchronized long getReusableReleaseCount() {
+    return reusableReleaseCount;
+  }
+
+  /**
+   * Returns the number of attempts to drain the unread remainder of a response.
+   */
+  public synchronized long getDrainAttemptCount() {
+    return drainAttemptCount;
+  }
+
+  /**
+   * Returns the number of attempts to drain the unread remainder of a response that succeeded.
+   */
+  public synchronized long getDrainSuccessCount() {
+    return drainSuccessCount;
+  }
+
+  private void releaseInternal(String host) {
+    int activeConnectionCount = getActiveConnectionCount(host);
+    Assertions.checkState(activeConnectionCount > 0);
+    if (activeConnectionCount == 1) {
+      activeConnectionCounts.remove(host);
+    } else {
+      activeConnectionCounts.put(host, activeConnectionCount - 1);
+    }
+    notifyAll();
+  }
+
+  private int getActiveConnectionCount(String host) {
+    Integer activeConnectionCount = activeConnectionCounts.get(host);
+    return activeConnectionCount == null ? 0 : activeConnectionCount;
+  }
+
+}
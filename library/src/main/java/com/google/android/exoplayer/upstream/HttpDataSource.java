@@ -104,6 +104,24 @@ public interface HttpDataSource extends UriDataSource {
 
   }
 
+  /**
+   * Thrown when a request for data starting at a non-zero position cannot be satisfied without
+   * skipping more data than permitted, because the server does not support range requests.
+   */
+  final class RangeNotSupportedException extends HttpDataSourceException {
+
+    /**
+     * The number of bytes that would have needed to be skipped.
+     */
+    public final long bytesToSkip;
+
+    public RangeNotSupportedException(long bytesToSkip, DataSpec dataSpec) {
+      super("Range not supported. Bytes to skip: " + bytesToSkip, dataSpec, TYPE_OPEN);
+      this.bytesToSkip = bytesToSkip;
+    }
+
+  }
+
   @Override
   long open(DataSpec dataSpec) throws HttpDataSourceException;
 
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * A {@link BandwidthEstimator} that tracks throughput with a one dimensional Kalman filter.
+ * <p>
+ * The filter operates on the logarithm of throughput, so that its noise parameters are independent
+ * of the scale of the bandwidth. The state is modelled as a random walk whose variance grows with
+ * transfer time, and each sample is treated as a noisy measurement of the state. Samples covering
+ * no bytes are ignored, since their throughput has no logarithm.
+ */
+public final class KalmanBandwidthEstimator implements BandwidthEstimator {
+
+  /**
+   * The default variance added to the state per second of transfer time.
+   */
+  public static final double DEFAULT_PROCESS_VARIANCE_PER_S = 0.05;
+  /**
+   * The default variance of a single sample.
+   */
+  public static final double DEFAULT_MEASUREMENT_VARIANCE = 0.25;
+
+  private final double processVariancePerS;
+  private final double measurementVariance;
+
+  private boolean initialized;
+  private double logEstimate;
+  private double estimateVariance;
+
+  public KalmanBandwidthEstimator() {
+    this(DEFAULT_PROCESS_VARIANCE_PER_S, DEFAULT_MEASUREMENT_VARIANCE);
+  }
+
+  /**
+   * @param processVariancePerS The variance added to the natural logarithm of the state per second
+   *     of transfer time.
+   * @param measurementVariance The variance of the natural logarithm of a single sample.
+   */
+  public KalmanBandwidthEstimator(double processVariancePerS, double measurementVariance) {
+    this.processVariancePerS = processVariancePerS;
+    this.measurementVariance = measurementVariance;
+  }
+
+  @Override
+  public void addSample(long bytes, long elapsedMs) {
+    if (bytes <= 0) {
+      return;
+    }
+    double logMeasurement = Math.log((bytes * 8000d) / elapsedMs);
+    if (!initialized) {
+      initialized = true;
+      logEstimate = logMeasurement;
+      estimateVariance = measurementVariance;
+      return;
+    }
+    // Predict.
+    estimateVariance += processVariancePerS * elapsedMs / 1000;
+    // Update.
+    double gain = estimateVariance / (estimateVariance + measurementVariance);
+    logEstimate += gain * (logMeasurement - logEstimate);
+    estimateVariance *= 1 - gain;
+  }
+
+  @Override
+  public long getBitrateEstimate() {
+    return initialized ? (long) Math.exp(logEstimate) : BandwidthMeter.NO_ESTIMATE;
+  }
+
+}
@@ -104,6 +104,8 @@ public final class Loader {
   private static final int MSG_FATAL_ERROR = 2;
 
   private final ExecutorService downloadExecutorService;
+  private final LoaderExecutor loaderExecutor;
+  private final int priority;
 
   private LoadTask currentTask;
   private boolean loading;
@@ -113,6 +115,22 @@ public final class Loader {
    */
   public Loader(String threadName) {
     this.downloadExecutorService = Util.newSingleThreadExecutor(threadName);
+    this.loaderExecutor = null;
+    this.priority = 0;
+  }
+
+  /**
+   * Constructs a loader whose loads are executed by a {@link LoaderExecutor}, which may be shared
+   * with other loaders.
+   *
+   * @param loaderExecutor The executor on which loads are performed.
+   * @param priority The priority of the loader's loads. Lower values indicate higher priorities.
+   *     See {@link PriorityLoaderExecutor#getPriority(int, int)}.
+   */
+  public Loader(LoaderExecutor loaderExecutor, int priority) {
+    this.downloadExecutorService = null;
+    this.loaderExecutor = Assertions.checkNotNull(loaderExecutor);
+    this.priority = priority;
   }
 
   /**
@@ -143,7 +161,11 @@ public final class Loader {
     Assertions.checkState(!loading);
     loading = true;
     currentTask = new LoadTask(looper, loadable, callback);
-    downloadExecutorService.submit(currentTask);
+    if (loaderExecutor != null) {
+      loaderExecutor.execute(currentTask, priority);
+    } else {
+      downloadExecutorService.submit(currentTask);
+    }
   }
 
   /**
@@ -174,7 +196,9 @@ public final class Loader {
     if (loading) {
       cancelLoading();
     }
-    downloadExecutorService.shutdown();
+    if (downloadExecutorService != null) {
+      downloadExecutorService.shutdown();
+    }
   }
 
   @SuppressLint("HandlerLeak")
@@ -185,7 +209,9 @@ public final class Loader {
     private final Loadable loadable;
     private final Loader.Callback callback;
 
-    private volatile Thread executorThread;
+    // Guarded by this task's lock. Cleared when the load ends, so that a thread that has moved on
+    // to other work is never interrupted.
+    private Thread executorThread;
 
     public LoadTask(Looper looper, Loadable loadable, Loader.Callback callback) {
       super(looper);
@@ -195,15 +221,24 @@ public final class Loader {
 
     public void quit() {
       loadable.cancelLoad();
-      if (executorThread != null) {
-        executorThread.interrupt();
+      if (loaderExecutor != null && loaderExecutor.remove(this)) {
+        // The load never started, so report the cancelation without waiting for a thread.
+        sendEmptyMessage(MSG_END_OF_SOURCE);
+      } else {
+        synchronized (this) {
+          if (executorThread != null) {
+            executorThread.interrupt();
+          }
+        }
       }
     }
 
     @Override
     public void run() {
       try {
-        executorThread = Thread.currentThread();
+        synchronized (this) {
+          executorThread = Thread.currentThread();
+        }
         if (!loadable.isLoadCanceled()) {
           TraceUtil.beginSection(loadable.getClass().getSimpleName() + ".load()");
           loadable.load();
@@ -227,6 +262,10 @@ public final class Loader {
         Log.e(TAG, "Unexpected error loading stream", e);
         obtainMessage(MSG_FATAL_ERROR, e).sendToTarget();
         throw e;
+      } finally {
+        synchronized (this) {
+          executorThread = null;
+        }
       }
     }
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * Executes the load tasks of one or more {@link Loader}s.
+ */
+public interface LoaderExecutor {
+
+  /**
+   * Schedules a task for execution.
+   *
+   * @param task The task to execute.
+   * @param priority The priority of the task. Lower values indicate higher priorities.
+   */
+  void execute(Runnable task, int priority);
+
+  /**
+   * Removes a task that has been scheduled but has not yet started executing.
+   *
+   * @param task The task to remove.
+   * @return Whether the task was removed. False if the task has already started executing.
+   */
+  boolean remove(Runnable task);
+
+}
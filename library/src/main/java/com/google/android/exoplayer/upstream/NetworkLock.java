@@ -16,7 +16,12 @@
 package com.google.android.exoplayer.upstream;
 
 import java.io.IOException;
-import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A network task prioritization mechanism.
@@ -28,6 +33,11 @@ import java.util.PriorityQueue;
  * highest) priority task.
  * <p>
  * Note that lower integer values correspond to higher priorities.
+ * <p>
+ * The lock does not block registration or the proceed methods. The number of registered tasks is
+ * maintained by an atomic counter for each priority, and the highest priority is maintained
+ * atomically as tasks are added and removed. Threads blocked in {@link #proceed(int)} are woken
+ * only when the highest priority changes such that they are able to proceed.
  */
 public final class NetworkLock {
 
@@ -53,17 +63,24 @@ public final class NetworkLock {
    */
   public static final int DOWNLOAD_PRIORITY = 10;
 
-  private final Object lock = new Object();
-
-  /** Guarded by {@link #lock}. */
-  private final PriorityQueue<Integer> queue;
-
-  /** Guarded by {@link #lock}. */
-  private int highestPriority;
+  /**
+   * The number of registered tasks for each priority that has been registered, ordered from the
+   * highest priority. Entries are never removed.
+   */
+  private final ConcurrentSkipListMap<Integer, AtomicInteger> taskCounts;
+  private final AtomicInteger highestPriority;
+  /**
+   * Incremented whenever a task is added or removed, so that a recalculation of the highest
+   * priority can detect a concurrent change that it might have missed or overwritten.
+   */
+  private final AtomicLong modificationCount;
+  private final ConcurrentLinkedQueue<Waiter> waiters;
 
   private NetworkLock() {
-    queue = new PriorityQueue<>();
-    highestPriority = Integer.MAX_VALUE;
+    taskCounts = new ConcurrentSkipListMap<>();
+    highestPriority = new AtomicInteger(Integer.MAX_VALUE);
+    modificationCount = new AtomicLong();
+    waiters = new ConcurrentLinkedQueue<>();
   }
 
   /**
@@ -72,10 +89,22 @@ public final class NetworkLock {
    * @param priority The priority of the task that would like to proceed.
    */
   public void proceed(int priority) throws InterruptedException {
-    synchronized (lock) {
-      while (highestPriority < priority) {
-        lock.wait();
+    if (highestPriority.get() >= priority) {
+      return;
+    }
+    // The waiter is registered before the highest priority is checked again, so a change that
+    // allows this thread to proceed either is seen by the check or unparks this thread.
+    Waiter waiter = new Waiter(Thread.currentThread(), priority);
+    waiters.add(waiter);
+    try {
+      while (highestPriority.get() < priority) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
       }
+    } finally {
+      waiters.remove(waiter);
     }
   }
 
@@ -86,9 +115,7 @@ public final class NetworkLock {
    * @return Whether the passed priority is allowed to proceed.
    */
   public boolean proceedNonBlocking(int priority) {
-    synchronized (lock) {
-      return highestPriority >= priority;
-    }
+    return highestPriority.get() >= priority;
   }
 
   /**
@@ -98,10 +125,9 @@ public final class NetworkLock {
    * @throws PriorityTooLowException If the passed priority is not high enough to proceed.
    */
   public void proceedOrThrow(int priority) throws PriorityTooLowException {
-    synchronized (lock) {
-      if (highestPriority < priority) {
-        throw new PriorityTooLowException(priority, highestPriority);
-      }
+    int highestPriority = this.highestPriority.get();
+    if (highestPriority < priority) {
+      throw new PriorityTooLowException(priority, highestPriority);
     }
   }
 
@@ -113,9 +139,20 @@ public final class NetworkLock {
    * @param priority The priority of the task.
    */
   public void add(int priority) {
-    synchronized (lock) {
-      queue.add(priority);
-      highestPriority = Math.min(highestPriority, priority);
+    AtomicInteger taskCount = taskCounts.get(priority);
+    if (taskCount == null) {
+      AtomicInteger newTaskCount = new AtomicInteger();
+      taskCount = taskCounts.putIfAbsent(priority, newTaskCount);
+      if (taskCount == null) {
+        taskCount = newTaskCount;
+      }
+    }
+    taskCount.incrementAndGet();
+    modificationCount.incrementAndGet();
+    int currentHighestPriority = highestPriority.get();
+    while (priority < currentHighestPriority
+        && !highestPriority.compareAndSet(currentHighestPriority, priority)) {
+      currentHighestPriority = highestPriority.get();
     }
   }
 
@@ -125,11 +162,74 @@ public final class NetworkLock {
    * @param priority The priority of the task.
    */
   public void remove(int priority) {
-    synchronized (lock) {
-      queue.remove(priority);
-      highestPriority = queue.isEmpty() ? Integer.MAX_VALUE : queue.peek();
-      lock.notifyAll();
+    AtomicInteger taskCount = taskCounts.get(priority);
+    if (taskCount == null) {
+      // The task wasn't registered.
+      return;
+    }
+    int remainingTaskCount = decrementIfPositive(taskCount);
+    if (remainingTaskCount == -1) {
+      // The task wasn't registered.
+      return;
+    }
+    modificationCount.incrementAndGet();
+    if (remainingTaskCount > 0) {
+      // Other tasks with the same priority remain, so the highest priority is unchanged.
+      return;
+    }
+    int newHighestPriority;
+    long modificationCountBeforeScan;
+    do {
+      modificationCountBeforeScan = modificationCount.get();
+      newHighestPriority = Integer.MAX_VALUE;
+      for (Map.Entry<Integer, AtomicInteger> entry : taskCounts.entrySet()) {
+        if (entry.getValue().get() > 0) {
+          newHighestPriority = entry.getKey();
+          break;
+        }
+      }
+      highestPriority.set(newHighestPriority);
+      // If a task was added or removed during the scan then the change may have been missed, or its
+      // update to the highest priority may have been overwritten.
+    } while (modificationCount.get() != modificationCountBeforeScan);
+    // Wake up threads that are now able to proceed.
+    for (Waiter waiter : waiters) {
+      if (waiter.priority <= newHighestPriority) {
+        LockSupport.unpark(waiter.thread);
+      }
+    }
+  }
+
+  /**
+   * Decrements a value if it's positive.
+   *
+   * @param value The value to decrement.
+   * @return The decremented value, or -1 if the value was not positive.
+   */
+  private static int decrementIfPositive(AtomicInteger value) {
+    int currentValue = value.get();
+    while (currentValue > 0) {
+      if (value.compareAndSet(currentValue, currentValue - 1)) {
+        return currentValue - 1;
+      }
+      currentValue = value.get();
     }
+    return -1;
+  }
+
+  /**
+   * A thread blocked in {@link NetworkLock#proceed(int)}.
+   */
+  private static final class Waiter {
+
+    public final Thread thread;
+    public final int priority;
+
+    public Waiter(Thread thread, int priority) {
+      this.thread = thread;
+      this.priority = priority;
+    }
+
   }
 
 }
@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.NioHttpEngine.Transfer;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Predicate;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.NoRouteToHostException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link HttpDataSource} that performs its transfers on a shared {@link NioHttpEngine}.
+ * <p>
+ * Many instances can share a single engine, so that the sockets of concurrent segment, manifest
+ * and license transfers are all serviced by one selector thread. {@link #read(byte[], int, int)}
+ * blocks the calling thread until data arrives, which allows instances to be used in place of
+ * {@link DefaultHttpDataSource} from {@link Loader.Loadable}s. Used this way, each open source
+ * still occupies the thread that reads from it, as a {@link DefaultHttpDataSource} would. A caller
+ * that does not want to occupy a thread whilst waiting for data can instead register a
+ * {@link DataAvailableListener} and read with {@link #readNonBlocking(byte[], int, int)} when it is
+ * notified. {@link #open(DataSpec)} blocks until the response headers are received in both cases.
+ * The {@link TransferListener} is invoked on the thread that reads from the source, so bandwidth
+ * metering behaves as it does for other sources.
+ * <p>
+ * The engine implements a deliberately small subset of HTTP, which limits where this source can be
+ * used:
+ * <ul>
+ * <li>Only the http scheme is supported. Redirects to other http URLs are followed, and redirects
+ *     to https URLs fail.</li>
+ * <li>Requests are sent as HTTP/1.0 with {@code Connection: close}, so every request opens a new
+ *     connection, and connections are never reused.</li>
+ * </ul>
+ */
+public final class NioHttpDataSource implements HttpDataSource, ByteBufferDataSource,
+    NioHttpEngine.TransferCallback {
+
+  /**
+   * Receives notifications when data can be read from a {@link NioHttpDataSource} without
+   * blocking.
+   */
+  public interface DataAvailableListener {
+
+    /**
+     * Invoked when response body data becomes available, or when the response ends. Invoked on the
+     * engine's selector thread, and so implementations must not block or read from the source.
+     *
+     * @param source The source.
+     */
+    void onDataAvailable(NioHttpDataSource source);
+
+  }
+
+  /**
+   * The default connection timeout, in milliseconds.
+   */
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 8 * 1000;
+  /**
+   * The default read timeout, in milliseconds.
+   */
+  public static final int DEFAULT_READ_TIMEOUT_MILLIS = 8 * 1000;
+  /**
+   * The default maximum number of bytes that will be skipped by reading, which is unbounded.
+   */
+  public static final long DEFAULT_MAX_SKIP_BYTES = Long.MAX_VALUE;
+
+  private static final int MAX_REDIRECTS = 20;
+  private static final String TAG = "NioHttpDataSource";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final NioHttpEngine engine;
+  private final String userAgent;
+  private final Predicate<String> contentTypePredicate;
+  private final HashMap<String, String> requestProperties;
+  private final TransferListener listener;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+
+  private volatile long maxSkipBytes;
+  private volatile DataAvailableListener dataAvailableListener;
+
+  private DataSpec dataSpec;
+  private URL url;
+  private Transfer transfer;
+  private ByteBuffer currentBuffer;
+  private boolean opened;
+
+  private long bytesToSkip;
+  private long bytesToRead;
+
+  private long bytesSkipped;
+  private long bytesRead;
+
+  /**
+   * @param engine The engine on which transfers are performed.
+   * @param userAgent The User-Agent string that should be used.
+   * @param contentTypePredicate An optional {@link Predicate}. If a content type is
+   *     rejected by the predicate then a {@link HttpDataSource.InvalidContentTypeException} is
+   *     thrown from {@link #open(DataSpec)}.
+   * @param listener An optional listener.
+   */
+  public NioHttpDataSource(NioHttpEngine engine, String userAgent,
+      Predicate<String> contentTypePredicate, TransferListener listener) {
+    this(engine, userAgent, contentTypePredicate, listener, DEFAULT_CONNECT_TIMEOUT_MILLIS,
+        DEFAULT_READ_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param engine The engine on which transfers are performed.
+   * @param userAgent The User-Agent string that should be used.
+   * @param contentTypePredicate An optional {@link Predicate}. If a content type is
+   *     rejected by the predicate then a {@link HttpDataSource.InvalidContentTypeException} is
+   *     thrown from {@link #open(DataSpec)}.
+   * @param listener An optional listener.
+   * @param connectTimeoutMillis The maximum time to wait for the response headers, in
+   *     milliseconds. A timeout of zero is interpreted as an infinite timeout.
+   * @param readTimeoutMillis The maximum time to wait for body data, in milliseconds. A timeout of
+   *     zero is interpreted as an infinite timeout.
+   */
+  public NioHttpDataSource(NioHttpEngine engine, String userAgent,
+      Predicate<String> contentTypePredicate, TransferListener listener, int connectTimeoutMillis,
+      int readTimeoutMillis) {
+    this.engine = Assertions.checkNotNull(engine);
+    this.userAgent = Assertions.checkNotEmpty(userAgent);
+    this.contentTypePredicate = contentTypePredicate;
+    this.listener = listener;
+    this.requestProperties = new HashMap<>();
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.maxSkipBytes = DEFAULT_MAX_SKIP_BYTES;
+  }
+
+  /**
+   * Sets the maximum number of bytes that will be skipped by reading and discarding them, when a
+   * server responds to a request for data starting at a non-zero position with data starting from
+   * the beginning of the resource.
+   * <p>
+   * If more bytes would need to be skipped, then {@link #open(DataSpec)} fails with a
+   * {@link RangeNotSupportedException}. If the listener is a {@link SkipListener} then the decision
+   * is reported through {@link SkipListener#onSkipRequired(long, int)}.
+   *
+   * @param maxSkipBytes The maximum number of bytes to skip by reading.
+   */
+  public void setMaxSkipBytes(long maxSkipBytes) {
+    this.maxSkipBytes = maxSkipBytes;
+  }
+
+  /**
+   * Sets a listener to be notified when data can be read without blocking.
+   *
+   * @param dataAvailableListener The listener, or null.
+   */
+  public void setDataAvailableListener(DataAvailableListener dataAvailableListener) {
+    this.dataAvailableListener = dataAvailableListener;
+  }
+
+  @Override
+  public String getUri() {
+    return transfer == null ? null : url.toString();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return transfer == null ? null : transfer.getResponseHeaders();
+  }
+
+  @Override
+  public void setRequestProperty(String name, String value) {
+    Assertions.checkNotNull(name);
+    Assertions.checkNotNull(value);
+    synchronized (requestProperties) {
+      requestProperties.put(name, value);
+    }
+  }
+
+  @Override
+  public void clearRequestProperty(String name) {
+    Assertions.checkNotNull(name);
+    synchronized (requestProperties) {
+      requestProperties.remove(name);
+    }
+  }
+
+  @Override
+  public void clearAllRequestProperties() {
+    synchronized (requestProperties) {
+      requestProperties.clear();
+    }
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    this.dataSpec = dataSpec;
+    this.bytesRead = 0;
+    this.bytesSkipped = 0;
+    int responseCode;
+    try {
+      responseCode = makeTransfer(dataSpec);
+    } catch (IOException e) {
+      cancelTransfer();
+      throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri.toString(), e,
+          dataSpec, HttpDataSourceException.TYPE_OPEN);
+    }
+
+    // Check for a valid response code.
+    if (responseCode < 200 || responseCode > 299) {
+      Map<String, List<String>> headers = transfer.getResponseHeaders();
+      cancelTransfer();
+      throw new InvalidResponseCodeException(responseCode, headers, dataSpec);
+    }
+
+    // Check for a valid content type.
+    String contentType = getHeader("Content-Type");
+    if (contentTypePredicate != null && !contentTypePredicate.evaluate(contentType)) {
+      cancelTransfer();
+      throw new InvalidContentTypeException(contentType, dataSpec);
+    }
+
+    // If we requested a range starting from a non-zero position and received a 200 rather than a
+    // 206, then the server does not support partial requests. We'll need to manually skip to the
+    // requested position.
+    bytesToSkip = responseCode == 200 && dataSpec.position != 0 ? dataSpec.position : 0;
+    if (bytesToSkip > maxSkipBytes) {
+      cancelTransfer();
+      notifySkipRequired(SkipListener.SKIP_FAILED);
+      throw new RangeNotSupportedException(bytesToSkip, dataSpec);
+    } else if (bytesToSkip > 0) {
+      notifySkipRequired(SkipListener.SKIP_BY_READING);
+    }
+
+    // Determine the length of the data to be read, after skipping. Gzip is never requested, so the
+    // Content-Length is always that of the uncompressed data.
+    long contentLength = getContentLength();
+    bytesToRead = dataSpec.length != C.LENGTH_UNBOUNDED ? dataSpec.length
+        : contentLength != C.LENGTH_UNBOUNDED ? contentLength - bytesToSkip
+        : C.LENGTH_UNBOUNDED;
+
+    opened = true;
+    if (listener != null) {
+      listener.onTransferStart();
+    }
+
+    return bytesToRead;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+    return read(buffer, offset, null, readLength, true);
+  }
+
+  /**
+   * Reads up to {@code readLength} bytes of data that have already been received, without
+   * blocking.
+   *
+   * @param buffer The buffer into which the read data should be stored.
+   * @param offset The start offset into {@code buffer} at which data should be written.
+   * @param readLength The maximum number of bytes to read.
+   * @return The number of bytes read, which is 0 if no data is currently available, or
+   *     {@link C#RESULT_END_OF_INPUT} if the end of the data has been reached.
+   * @throws HttpDataSourceException If an error occurs reading from the source.
+   */
+  public int readNonBlocking(byte[] buffer, int offset, int readLength)
+      throws HttpDataSourceException {
+    return read(buffer, offset, null, readLength, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Data is copied directly from the engine's pooled buffers into {@code buffer}.
+   */
+  @Override
+  public int read(ByteBuffer buffer) throws HttpDataSourceException {
+    return read(null, 0, buffer, buffer.remaining(), true);
+  }
+
+  @Override
+  public void close() throws HttpDataSourceException {
+    cancelTransfer();
+    if (opened) {
+      opened = false;
+      if (listener != null) {
+        listener.onTransferEnd();
+      }
+    }
+  }
+
+  // NioHttpEngine.TransferCallback implementation. Invoked on the engine's selector thread.
+
+  @Override
+  public synchronized void onResponse(Transfer transfer) {
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void onDataAvailable(Transfer transfer) {
+    notifyAll();
+    notifyDataAvailable();
+  }
+
+  @Override
+  public synchronized void onEnded(Transfer transfer) {
+    notifyAll();
+    notifyDataAvailable();
+  }
+
+  // Internal methods.
+
+  private void notifyDataAvailable() {
+    DataAvailableListener dataAvailableListener = this.dataAvailableListener;
+    if (dataAvailableListener != null) {
+      dataAvailableListener.onDataAvailable(this);
+    }
+  }
+
+  private void notifySkipRequired(int decision) {
+    if (listener instanceof SkipListener) {
+      ((SkipListener) listener).onSkipRequired(bytesToSkip, decision);
+    }
+  }
+
+  private int read(byte[] buffer, int offset, ByteBuffer target, int readLength, boolean blocking)
+      throws HttpDataSourceException {
+    try {
+      while (bytesSkipped != bytesToSkip) {
+        int skipped = readInternal(null, 0, null, (int) Math.min(bytesToSkip - bytesSkipped,
+            Integer.MAX_VALUE), blocking);
+        if (skipped == C.RESULT_END_OF_INPUT) {
+          throw new EOFException();
+        } else if (skipped == 0) {
+          // No data is available to skip without blocking.
+          return 0;
+        }
+        bytesSkipped += skipped;
+        if (listener != null) {
+          listener.onBytesTransferred(skipped);
+        }
+      }
+
+      readLength = bytesToRead == C.LENGTH_UNBOUNDED ? readLength
+          : (int) Math.min(readLength, bytesToRead - bytesRead);
+      if (readLength == 0) {
+        // We've read all of the requested data.
+        return C.RESULT_END_OF_INPUT;
+      }
+      int read = readInternal(buffer, offset, target, readLength, blocking);
+      if (read == C.RESULT_END_OF_INPUT) {
+        if (bytesToRead != C.LENGTH_UNBOUNDED && bytesToRead != bytesRead) {
+          // The server closed the connection having not sent sufficient data.
+          throw new EOFException();
+        }
+        return C.RESULT_END_OF_INPUT;
+      } else if (read == 0) {
+        // No data is available without blocking.
+        return 0;
+      }
+      bytesRead += read;
+      if (listener != null) {
+        listener.onBytesTransferred(read);
+      }
+      return read;
+    } catch (IOException e) {
+      throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_READ);
+    }
+  }
+
+  /**
+   * Starts a transfer and waits for its response headers, following redirects to do so.
+   *
+   * @return The response code.
+   */
+  private int makeTransfer(DataSpec dataSpec) throws IOException {
+    url = new URL(dataSpec.uri.toString());
+    byte[] postBody = dataSpec.postBody;
+    int redirectCount = 0;
+    while (redirectCount++ <= MAX_REDIRECTS) {
+      if (!"http".equals(url.getProtocol())) {
+        throw new ProtocolException("Unsupported protocol: " + url.getProtocol());
+      }
+      int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+      transfer = engine.startTransfer(url.getHost(), port, buildRequest(url, postBody, dataSpec),
+          this);
+      waitForResponse();
+      int responseCode = transfer.getResponseCode();
+      if (responseCode == 300 || responseCode == 301 || responseCode == 302 || responseCode == 303
+          || (postBody == null && (responseCode == 307 || responseCode == 308))) {
+        // For 300, 301, 302, and 303 POST requests follow the redirect and are transformed into
+        // GET requests. For 307 and 308 POST requests are not redirected.
+        postBody = null;
+        String location = getHeader("Location");
+        cancelTransfer();
+        if (location == null) {
+          throw new ProtocolException("Null location redirect");
+        }
+        url = new URL(url, location);
+      } else {
+        return responseCode;
+      }
+    }
+    // If we get here we've been redirected more times than are permitted.
+    throw new NoRouteToHostException("Too many redirects: " + redirectCount);
+  }
+
+  private byte[] buildRequest(URL url, byte[] postBody, DataSpec dataSpec) throws IOException {
+    StringBuilder builder = new StringBuilder();
+    String path = TextUtils.isEmpty(url.getFile()) ? "/" : url.getFile();
+    builder.append(postBody != null ? "POST " : "GET ").append(path).append(" HTTP/1.0\r\n");
+    builder.append("Host: ").append(url.getHost());
+    if (url.getPort() != -1) {
+      builder.append(':').append(url.getPort());
+    }
+    builder.append("\r\n");
+    // Headers of the request take precedence over the request properties of the source.
+    HashMap<String, String> headers;
+    synchronized (requestProperties) {
+      headers = new HashMap<>(requestProperties);
+    }
+    headers.putAll(dataSpec.httpRequestHeaders);
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    long position = dataSpec.position;
+    long length = dataSpec.length;
+    if (!(position == 0 && length == C.LENGTH_UNBOUNDED)) {
+      builder.append("Range: bytes=").append(position).append('-');
+      if (length != C.LENGTH_UNBOUNDED) {
+        builder.append(position + length - 1);
+      }
+      builder.append("\r\n");
+    }
+    builder.append("User-Agent: ").append(userAgent).append("\r\n");
+    builder.append("Accept-Encoding: identity\r\n");
+    builder.append("Connection: close\r\n");
+    if (postBody != null) {
+      builder.append("Content-Length: ").append(postBody.length).append("\r\n");
+    }
+    builder.append("\r\n");
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    request.write(builder.toString().getBytes(UTF_8));
+    if (postBody != null) {
+      request.write(postBody);
+    }
+    return request.toByteArray();
+  }
+
+  private synchronized void waitForResponse() throws IOException {
+    long deadlineMs = SystemClock.elapsedRealtime() + connectTimeoutMillis;
+    while (transfer.getResponseHeaders() == null) {
+      if (transfer.isEnded()) {
+        IOException error = transfer.getError();
+        throw error != null ? error : new EOFException();
+      }
+      waitUntil(deadlineMs, connectTimeoutMillis);
+    }
+  }
+
+  /**
+   * Reads or skips up to {@code readLength} bytes of response body data.
+   *
+   * @param buffer The array into which data should be read, or null.
+   * @param offset The start offset into {@code buffer}.
+   * @param target The buffer into which data should be read, or null. If both {@code buffer} and
+   *     {@code target} are null then the data is skipped.
+   * @param readLength The maximum number of bytes to read.
+   * @param blocking Whether to block until at least one byte is available or the end of the
+   *     response is reached.
+   * @return The number of bytes read, which may be 0 only if {@code blocking} is false, or
+   *     {@link C#RESULT_END_OF_INPUT}.
+   */
+  private int readInternal(byte[] buffer, int offset, ByteBuffer target, int readLength,
+      boolean blocking) throws IOException {
+    if (currentBuffer == null && blocking) {
+      currentBuffer = takeBuffer();
+      if (currentBuffer == null) {
+        return C.RESULT_END_OF_INPUT;
+      }
+    } else if (currentBuffer == null) {
+      // Check whether the transfer has ended before polling, since no buffers are queued after it
+      // ends.
+      boolean ended = transfer.isEnded();
+      currentBuffer = transfer.pollBuffer();
+      if (currentBuffer == null) {
+        if (!ended) {
+          return 0;
+        }
+        IOException error = transfer.getError();
+        if (error != null) {
+          throw error;
+        }
+        return C.RESULT_END_OF_INPUT;
+      }
+    }
+    int read = Math.min(readLength, currentBuffer.remaining());
+    if (buffer != null) {
+      currentBuffer.get(buffer, offset, read);
+    } else if (target != null) {
+      int limit = currentBuffer.limit();
+      currentBuffer.limit(currentBuffer.position() + read);
+      target.put(currentBuffer);
+      currentBuffer.limit(limit);
+    } else {
+      currentBuffer.position(currentBuffer.position() + read);
+    }
+    if (!currentBuffer.hasRemaining()) {
+      transfer.recycleBuffer(currentBuffer);
+      currentBuffer = null;
+    }
+    return read;
+  }
+
+  /**
+   * Blocks until a buffer of body data is available, returning it, or until the end of the
+   * response is reached, returning null.
+   */
+  private synchronized ByteBuffer takeBuffer() throws IOException {
+    long deadlineMs = SystemClock.elapsedRealtime() + readTimeoutMillis;
+    while (true) {
+      ByteBuffer buffer = transfer.pollBuffer();
+      if (buffer != null) {
+        return buffer;
+      } else if (transfer.isEnded()) {
+        IOException error = transfer.getError();
+        if (error != null) {
+          throw error;
+        }
+        return null;
+      }
+      waitUntil(deadlineMs, readTimeoutMillis);
+    }
+  }
+
+  private void waitUntil(long deadlineMs, int timeoutMillis) throws IOException {
+    long waitMs = timeoutMillis == 0 ? 0 : deadlineMs - SystemClock.elapsedRealtime();
+    if (timeoutMillis != 0 && waitMs <= 0) {
+      throw new SocketTimeoutException();
+    }
+    try {
+      wait(waitMs);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private String getHeader(String name) {
+    Map<String, List<String>> headers = transfer.getResponseHeaders();
+    List<String> values = headers == null ? null : headers.get(name);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  private long getContentLength() {
+    String contentLengthHeader = getHeader("Content-Length");
+    if (!TextUtils.isEmpty(contentLengthHeader)) {
+      try {
+        return Long.parseLong(contentLengthHeader);
+      } catch (NumberFormatException e) {
+        Log.e(TAG, "Unexpected Content-Length [" + contentLengthHeader + "]");
+      }
+    }
+    return C.LENGTH_UNBOUNDED;
+  }
+
+  private void cancelTransfer() {
+    if (transfer != null) {
+      if (currentBuffer != null) {
+        transfer.recycleBuffer(currentBuffer);
+        currentBuffer = null;
+      }
+      transfer.cancel();
+      transfer = null;
+    }
+  }
+
+}
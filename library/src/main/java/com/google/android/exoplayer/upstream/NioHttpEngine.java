@@ -0,0 +1,633 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.util.Assertions;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Performs HTTP transfers using non-blocking {@link SocketChannel}s, all of which are serviced by a
+ * single selector thread.
+ * <p>
+ * Response bodies are read into pooled {@link ByteBuffer}s, which are queued on the corresponding
+ * {@link Transfer} until the consumer polls them. Each transfer queues a bounded number of buffers.
+ * When the bound is reached, the engine stops reading from the transfer's socket until the consumer
+ * catches up, so a slow consumer applies backpressure to the server rather than growing memory.
+ * <p>
+ * Requests are issued as HTTP/1.0 requests, and the connection is closed when each transfer ends.
+ * This ensures that response bodies are delimited either by their Content-Length or by the end of
+ * the connection, and never use chunked transfer encoding. Only the http scheme is supported.
+ * <p>
+ * Most callers will want to use {@link NioHttpDataSource}, which exposes transfers through the
+ * blocking {@link DataSource} interface so that they can be used from {@link Loader.Loadable}s, and
+ * which also allows data to be read without blocking when the source reports that it's available.
+ */
+public final class NioHttpEngine {
+
+  /**
+   * Receives notifications about a {@link Transfer}.
+   * <p>
+   * Methods are invoked on the selector thread, and so implementations must not block.
+   */
+  public interface TransferCallback {
+
+    /**
+     * Invoked when the response headers have been received.
+     *
+     * @param transfer The transfer.
+     */
+    void onResponse(Transfer transfer);
+
+    /**
+     * Invoked when one or more buffers become available to {@link Transfer#pollBuffer()}.
+     *
+     * @param transfer The transfer.
+     */
+    void onDataAvailable(Transfer transfer);
+
+    /**
+     * Invoked when the transfer has ended, either because the response has been received in full
+     * or because an error occurred. {@link Transfer#getError()} returns the error, if any.
+     *
+     * @param transfer The transfer.
+     */
+    void onEnded(Transfer transfer);
+
+  }
+
+  /**
+   * The default size of each pooled buffer, in bytes.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+  /**
+   * The default maximum number of buffers that may be queued on a single transfer.
+   */
+  public static final int DEFAULT_MAX_QUEUED_BUFFERS_PER_TRANSFER = 16;
+
+  private static final String TAG = "NioHttpEngine";
+  private static final String THREAD_NAME = "NioHttpEngine";
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final int MAX_HEADER_SIZE = 16 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 64;
+
+  private final int bufferSize;
+  private final int maxQueuedBuffersPerTransfer;
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Runnable> pendingOperations;
+  private final ArrayDeque<ByteBuffer> bufferPool;
+  private final HashSet<Transfer> openTransfers;
+  private final Thread selectorThread;
+
+  // Written while holding the engine's lock, so that no operation can be posted after the selector
+  // thread has drained the queue for the final time.
+  private volatile boolean released;
+
+  /**
+   * Constructs an instance with default parameters.
+   *
+   * @throws IOException If the selector could not be opened.
+   */
+  public NioHttpEngine() throws IOException {
+    this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_QUEUED_BUFFERS_PER_TRANSFER);
+  }
+
+  /**
+   * @param bufferSize The size of each pooled buffer, in bytes.
+   * @param maxQueuedBuffersPerTransfer The maximum number of buffers that may be queued on a
+   *     single transfer before reading from its socket is suspended.
+   * @throws IOException If the selector could not be opened.
+   */
+  public NioHttpEngine(int bufferSize, int maxQueuedBuffersPerTransfer) throws IOException {
+    Assertions.checkArgument(maxQueuedBuffersPerTransfer > 0);
+    this.bufferSize = bufferSize;
+    this.maxQueuedBuffersPerTransfer = maxQueuedBuffersPerTransfer;
+    selector = Selector.open();
+    pendingOperations = new ConcurrentLinkedQueue<>();
+    bufferPool = new ArrayDeque<>();
+    openTransfers = new HashSet<>();
+    selectorThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runSelectorLoop();
+      }
+    }, THREAD_NAME);
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+  }
+
+  /**
+   * Starts a transfer.
+   * <p>
+   * The host name is resolved on the calling thread, which may therefore block.
+   *
+   * @param host The host to connect to.
+   * @param port The port to connect to.
+   * @param request The complete request, including the request line, headers and any body.
+   * @param callback A callback to receive notifications about the transfer.
+   * @return The transfer.
+   * @throws IOException If the host could not be resolved or the channel could not be opened.
+   * @throws IllegalStateException If the engine has been released.
+   */
+  public Transfer startTransfer(String host, int port, byte[] request, TransferCallback callback)
+      throws IOException {
+    InetSocketAddress address = new InetSocketAddress(host, port);
+    if (address.isUnresolved()) {
+      throw new IOException("Unable to resolve host: " + host);
+    }
+    final Transfer transfer = new Transfer(address, ByteBuffer.wrap(request), callback);
+    synchronized (this) {
+      if (released) {
+        throw new IllegalStateException("Engine released");
+      }
+      openTransfers.add(transfer);
+      post(new Runnable() {
+        @Override
+        public void run() {
+          connect(transfer);
+        }
+      });
+    }
+    return transfer;
+  }
+
+  /**
+   * Releases the engine.
+   * <p>
+   * Operations that have not yet been performed are discarded, and every transfer that has not
+   * already ended is ended with an {@link IOException}, which notifies its callback. Transfers
+   * cannot be started once the engine has been released.
+   */
+  public synchronized void release() {
+    released = true;
+    selector.wakeup();
+  }
+
+  /**
+   * Queues an operation to be performed on the selector thread.
+   *
+   * @param operation The operation.
+   * @return Whether the operation was queued. False if the engine has been released.
+   */
+  private synchronized boolean post(Runnable operation) {
+    if (released) {
+      return false;
+    }
+    pendingOperations.add(operation);
+    selector.wakeup();
+    return true;
+  }
+
+  private synchronized void onTransferEnded(Transfer transfer) {
+    openTransfers.remove(transfer);
+  }
+
+  private ByteBuffer acquireBuffer() {
+    synchronized (bufferPool) {
+      ByteBuffer buffer = bufferPool.pollFirst();
+      if (buffer != null) {
+        buffer.clear();
+        return buffer;
+      }
+    }
+    return ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  private void releaseBuffer(ByteBuffer buffer) {
+    synchronized (bufferPool) {
+      if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+        bufferPool.addFirst(buffer);
+      }
+    }
+  }
+
+  // Selector thread.
+
+  private void runSelectorLoop() {
+    while (!released) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        Log.e(TAG, "Selector failed", e);
+        break;
+      }
+      Runnable operation;
+      while ((operation = pendingOperations.poll()) != null) {
+        operation.run();
+      }
+      Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+      while (iterator.hasNext()) {
+        SelectionKey key = iterator.next();
+        iterator.remove();
+        Transfer transfer = (Transfer) key.attachment();
+        if (!key.isValid()) {
+          continue;
+        }
+        try {
+          if (key.isConnectable()) {
+            onConnectable(transfer);
+          } else if (key.isWritable()) {
+            onWritable(transfer);
+          } else if (key.isReadable()) {
+            onReadable(transfer);
+          }
+        } catch (IOException e) {
+          transfer.end(e);
+        }
+      }
+    }
+    // The loop may also exit because the selector failed, in which case the engine is released
+    // here. No further operations can then be posted, so the queue is drained for the final time.
+    // Transfers waiting to connect are ended along with those that have already been registered.
+    List<Transfer> remainingTransfers;
+    synchronized (this) {
+      released = true;
+      pendingOperations.clear();
+      remainingTransfers = new ArrayList<>(openTransfers);
+    }
+    for (Transfer transfer : remainingTransfers) {
+      transfer.end(new IOException("Engine released"));
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to close selector", e);
+    }
+  }
+
+  private void connect(Transfer transfer) {
+    if (transfer.isCanceled()) {
+      return;
+    }
+    try {
+      SocketChannel channel = SocketChannel.open();
+      transfer.channel = channel;
+      channel.configureBlocking(false);
+      if (channel.connect(transfer.address)) {
+        transfer.key = channel.register(selector, SelectionKey.OP_WRITE, transfer);
+      } else {
+        transfer.key = channel.register(selector, SelectionKey.OP_CONNECT, transfer);
+      }
+    } catch (IOException e) {
+      transfer.end(e);
+    }
+  }
+
+  private void onConnectable(Transfer transfer) throws IOException {
+    if (transfer.channel.finishConnect()) {
+      transfer.key.interestOps(SelectionKey.OP_WRITE);
+    }
+  }
+
+  private void onWritable(Transfer transfer) throws IOException {
+    transfer.channel.write(transfer.request);
+    if (!transfer.request.hasRemaining()) {
+      transfer.request = null;
+      transfer.headerBuffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+      transfer.key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private void onReadable(Transfer transfer) throws IOException {
+    if (transfer.headerBuffer != null) {
+      readHeaders(transfer);
+    } else {
+      readBody(transfer);
+    }
+  }
+
+  private void readHeaders(Transfer transfer) throws IOException {
+    ByteBuffer headerBuffer = transfer.headerBuffer;
+    int read = transfer.channel.read(headerBuffer);
+    int headerLength = findHeaderEnd(headerBuffer.array(), headerBuffer.position());
+    if (headerLength == C.LENGTH_UNBOUNDED) {
+      if (read == -1) {
+        throw new EOFException();
+      } else if (!headerBuffer.hasRemaining()) {
+        throw new ProtocolException("Response headers too large");
+      }
+      return;
+    }
+
+    parseHeaders(transfer, new String(headerBuffer.array(), 0, headerLength, ASCII));
+    transfer.headerBuffer = null;
+    List<String> contentLengthHeader = transfer.responseHeaders.get("Content-Length");
+    if (contentLengthHeader != null) {
+      try {
+        transfer.bodyBytesRemaining = Long.parseLong(contentLengthHeader.get(0).trim());
+      } catch (NumberFormatException e) {
+        Log.e(TAG, "Unexpected Content-Length [" + contentLengthHeader.get(0) + "]");
+      }
+    }
+    transfer.callback.onResponse(transfer);
+
+    // Any bytes following the headers are the start of the body.
+    headerBuffer.flip();
+    headerBuffer.position(headerLength);
+    if (headerBuffer.hasRemaining()) {
+      ByteBuffer bodyBuffer = ByteBuffer.allocateDirect(headerBuffer.remaining());
+      bodyBuffer.put(headerBuffer);
+      bodyBuffer.flip();
+      deliver(transfer, bodyBuffer);
+    }
+    if (transfer.bodyBytesRemaining == 0 || read == -1) {
+      finishBody(transfer);
+    } else {
+      readBody(transfer);
+    }
+  }
+
+  private void readBody(Transfer transfer) throws IOException {
+    while (!transfer.isEnded()) {
+      if (transfer.pauseIfBackpressured()) {
+        transfer.key.interestOps(0);
+        return;
+      }
+      ByteBuffer buffer = acquireBuffer();
+      if (transfer.bodyBytesRemaining != C.LENGTH_UNBOUNDED
+          && transfer.bodyBytesRemaining < buffer.remaining()) {
+        buffer.limit((int) transfer.bodyBytesRemaining);
+      }
+      int read = transfer.channel.read(buffer);
+      if (read > 0) {
+        buffer.flip();
+        deliver(transfer, buffer);
+        if (transfer.bodyBytesRemaining == 0) {
+          finishBody(transfer);
+        }
+      } else {
+        releaseBuffer(buffer);
+        if (read == -1) {
+          finishBody(transfer);
+        }
+        return;
+      }
+    }
+  }
+
+  private void deliver(Transfer transfer, ByteBuffer buffer) {
+    if (transfer.bodyBytesRemaining != C.LENGTH_UNBOUNDED) {
+      transfer.bodyBytesRemaining -= buffer.remaining();
+    }
+    transfer.enqueue(buffer);
+    transfer.callback.onDataAvailable(transfer);
+  }
+
+  private void finishBody(Transfer transfer) throws IOException {
+    if (transfer.bodyBytesRemaining > 0) {
+      // The server closed the connection having not sent sufficient data.
+      throw new EOFException();
+    }
+    transfer.end(null);
+  }
+
+  private static int findHeaderEnd(byte[] data, int limit) {
+    for (int i = 3; i < limit; i++) {
+      if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+        return i + 1;
+      }
+    }
+    return C.LENGTH_UNBOUNDED;
+  }
+
+  private static void parseHeaders(Transfer transfer, String headerString)
+      throws ProtocolException {
+    String[] lines = headerString.split("\r\n");
+    String[] statusLine = lines[0].split(" ", 3);
+    if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+      throw new ProtocolException("Unexpected status line: " + lines[0]);
+    }
+    try {
+      transfer.responseCode = Integer.parseInt(statusLine[1]);
+    } catch (NumberFormatException e) {
+      throw new ProtocolException("Unexpected status line: " + lines[0]);
+    }
+    TreeMap<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (int i = 1; i < lines.length; i++) {
+      int separatorIndex = lines[i].indexOf(':');
+      if (separatorIndex <= 0) {
+        continue;
+      }
+      String name = lines[i].substring(0, separatorIndex).trim();
+      String value = lines[i].substring(separatorIndex + 1).trim();
+      List<String> values = headers.get(name);
+      if (values == null) {
+        values = new ArrayList<>();
+        headers.put(name, values);
+      }
+      values.add(value);
+    }
+    transfer.responseHeaders = Collections.unmodifiableMap(headers);
+  }
+
+  /**
+   * A single HTTP request and its response.
+   * <p>
+   * Except where noted, the methods of this class may be called from any thread.
+   */
+  public final class Transfer {
+
+    private final InetSocketAddress address;
+    private final TransferCallback callback;
+    private final ArrayDeque<ByteBuffer> queuedBuffers;
+
+    // Accessed only on the selector thread.
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer request;
+    private ByteBuffer headerBuffer;
+    private long bodyBytesRemaining;
+
+    // Written on the selector thread before onResponse is invoked.
+    private volatile int responseCode;
+    private volatile Map<String, List<String>> responseHeaders;
+
+    // Guarded by this.
+    private boolean paused;
+    private boolean canceled;
+    private boolean ended;
+    private IOException error;
+
+    private Transfer(InetSocketAddress address, ByteBuffer request, TransferCallback callback) {
+      this.address = address;
+      this.request = request;
+      this.callback = callback;
+      this.queuedBuffers = new ArrayDeque<>();
+      this.bodyBytesRemaining = C.LENGTH_UNBOUNDED;
+    }
+
+    /**
+     * Returns the response code, or 0 if the response headers have not yet been received.
+     */
+    public int getResponseCode() {
+      return responseCode;
+    }
+
+    /**
+     * Returns the response headers, or null if they have not yet been received. Header names are
+     * compared case-insensitively.
+     */
+    public Map<String, List<String>> getResponseHeaders() {
+      return responseHeaders;
+    }
+
+    /**
+     * Returns the next buffer of response body data, or null if no data is currently available.
+     * <p>
+     * The returned buffer should be passed to {@link #recycleBuffer(ByteBuffer)} once its data has
+     * been consumed.
+     */
+    public synchronized ByteBuffer pollBuffer() {
+      ByteBuffer buffer = queuedBuffers.pollFirst();
+      if (buffer != null && paused) {
+        paused = false;
+        post(new Runnable() {
+          @Override
+          public void run() {
+            resume();
+          }
+        });
+      }
+      return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #pollBuffer()} to the engine's pool.
+     *
+     * @param buffer The buffer.
+     */
+    public void recycleBuffer(ByteBuffer buffer) {
+      if (buffer.capacity() == bufferSize) {
+        releaseBuffer(buffer);
+      }
+    }
+
+    /**
+     * Returns whether the transfer has ended. Buffers may still be available to
+     * {@link #pollBuffer()} after the transfer has ended.
+     */
+    public synchronized boolean isEnded() {
+      return ended;
+    }
+
+    /**
+     * Returns the error that ended the transfer, or null.
+     */
+    public synchronized IOException getError() {
+      return error;
+    }
+
+    /**
+     * Cancels the transfer, discarding any queued buffers.
+     */
+    public void cancel() {
+      synchronized (this) {
+        if (canceled) {
+          return;
+        }
+        canceled = true;
+        for (ByteBuffer buffer : queuedBuffers) {
+          recycleBuffer(buffer);
+        }
+        queuedBuffers.clear();
+      }
+      post(new Runnable() {
+        @Override
+        public void run() {
+          end(null);
+        }
+      });
+    }
+
+    private synchronized boolean isCanceled() {
+      return canceled;
+    }
+
+    private synchronized void enqueue(ByteBuffer buffer) {
+      if (canceled) {
+        recycleBuffer(buffer);
+      } else {
+        queuedBuffers.addLast(buffer);
+      }
+    }
+
+    private synchronized boolean isPaused() {
+      return paused;
+    }
+
+    private synchronized boolean pauseIfBackpressured() {
+      paused = queuedBuffers.size() >= maxQueuedBuffersPerTransfer;
+      return paused;
+    }
+
+    private void resume() {
+      if (key != null && key.isValid() && !isEnded()) {
+        try {
+          readBody(this);
+          if (key.isValid() && !isEnded() && !isPaused()) {
+            key.interestOps(SelectionKey.OP_READ);
+          }
+        } catch (IOException e) {
+          end(e);
+        }
+      }
+    }
+
+    private void end(IOException error) {
+      if (key != null) {
+        key.cancel();
+      }
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to close channel", e);
+        }
+      }
+      synchronized (this) {
+        if (ended) {
+          return;
+        }
+        ended = true;
+        this.error = error;
+      }
+      onTransferEnded(this);
+      callback.onEnded(this);
+    }
+
+  }
+
+}
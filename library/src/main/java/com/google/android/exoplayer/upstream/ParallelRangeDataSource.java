@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DataSource} that splits a large request into parts, which are fetched concurrently over
+ * several connections and reassembled in order.
+ * <p>
+ * The first part is read by a lead source. If the length of the request is known then the lead
+ * source requests only the first part. Otherwise it requests the whole range, which resolves the
+ * length, and is closed once the first part has been read. The remaining parts are fetched by
+ * worker threads, each using its own upstream {@link DataSource}. At most
+ * {@code maxBufferedParts} parts are held in memory at any one time. Workers wait for the reader to
+ * consume earlier parts before fetching further ones. Requests whose length is unknown and turns
+ * out to be small, or whose length is small, or that carry a POST body, are read sequentially from
+ * the lead source.
+ * <p>
+ * Buffered parts are held in {@link Allocation}s obtained from an {@link Allocator}, which must
+ * return allocations backed by arrays. When the allocator is the one used by the
+ * {@link com.google.android.exoplayer.LoadControl}, the buffered parts therefore count towards the
+ * buffer budget in the same way as loaded media.
+ * <p>
+ * Upstream sources are obtained from a {@link SourceFactory}. If they report to a
+ * {@link BandwidthMeter}, the meter observes the concurrent transfers as overlapping streams.
+ */
+public final class ParallelRangeDataSource implements DataSource {
+
+  /**
+   * Creates the upstream {@link DataSource}s used by a {@link ParallelRangeDataSource}.
+   */
+  public interface SourceFactory {
+
+    /**
+     * Creates a new {@link DataSource}. The returned source is used by one thread at a time.
+     *
+     * @return The new source.
+     */
+    DataSource createDataSource();
+
+  }
+
+  /**
+   * The default number of concurrent connections.
+   */
+  public static final int DEFAULT_CONNECTION_COUNT = 4;
+  /**
+   * The default part size, in bytes.
+   */
+  public static final int DEFAULT_PART_SIZE = 512 * 1024;
+
+  private static final int WORKER_KEEP_ALIVE_SECONDS = 10;
+
+  private final SourceFactory sourceFactory;
+  private final Allocator allocator;
+  private final int connectionCount;
+  private final int partSize;
+  private final int maxBufferedParts;
+  private final ThreadPoolExecutor executor;
+
+  private DataSource leadSource;
+  private Session session;
+  private long leadBytesRemaining;
+  private Part currentPart;
+  private int currentPartOffset;
+
+  /**
+   * Constructs an instance with default parameters.
+   *
+   * @param sourceFactory A factory for upstream sources.
+   * @param allocator The allocator from which buffered parts are allocated.
+   */
+  public ParallelRangeDataSource(SourceFactory sourceFactory, Allocator allocator) {
+    this(sourceFactory, allocator, DEFAULT_CONNECTION_COUNT, DEFAULT_PART_SIZE,
+        DEFAULT_CONNECTION_COUNT * 2);
+  }
+
+  /**
+   * @param sourceFactory A factory for upstream sources.
+   * @param allocator The allocator from which buffered parts are allocated.
+   * @param connectionCount The maximum number of concurrent connections.
+   * @param partSize The size of each part, in bytes.
+   * @param maxBufferedParts The maximum number of parts held in memory at any one time. Must be at
+   *     least {@code connectionCount - 1}, so that all of the worker connections can be used.
+   */
+  public ParallelRangeDataSource(SourceFactory sourceFactory, Allocator allocator,
+      int connectionCount, int partSize, int maxBufferedParts) {
+    Assertions.checkArgument(connectionCount > 1);
+    Assertions.checkArgument(maxBufferedParts >= connectionCount - 1);
+    this.sourceFactory = Assertions.checkNotNull(sourceFactory);
+    this.allocator = Assertions.checkNotNull(allocator);
+    this.connectionCount = connectionCount;
+    this.partSize = partSize;
+    this.maxBufferedParts = maxBufferedParts;
+    executor = new ThreadPoolExecutor(connectionCount - 1, connectionCount - 1,
+        WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "ParallelRangeDataSource");
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    if (leadSource == null) {
+      leadSource = sourceFactory.createDataSource();
+    }
+    // Until the lead source is known to serve only the first part, it must be closed on close.
+    leadBytesRemaining = C.LENGTH_UNBOUNDED;
+    if (dataSpec.postBody != null
+        || (dataSpec.length != C.LENGTH_UNBOUNDED && dataSpec.length <= 2L * partSize)) {
+      // Read the whole request sequentially from the lead source.
+      return leadSource.open(dataSpec);
+    }
+
+    long length;
+    if (dataSpec.length != C.LENGTH_UNBOUNDED) {
+      // Request only the first part, so that the lead connection ends with it.
+      leadSource.open(getSubrangeDataSpec(dataSpec, 0, partSize));
+      length = dataSpec.length;
+    } else {
+      length = leadSource.open(dataSpec);
+      if (length == C.LENGTH_UNBOUNDED || length <= 2L * partSize) {
+        // Read the whole request sequentially from the lead source.
+        return length;
+      }
+    }
+
+    // The lead source serves the first part. Workers fetch the remainder.
+    leadBytesRemaining = partSize;
+    session = new Session(dataSpec, length);
+    for (int i = 0; i < connectionCount - 1; i++) {
+      executor.execute(new Worker(session));
+    }
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (session == null) {
+      return leadSource.read(buffer, offset, readLength);
+    }
+    if (leadBytesRemaining > 0) {
+      int bytesRead = leadSource.read(buffer, offset, (int) Math.min(readLength,
+          leadBytesRemaining));
+      if (bytesRead == C.RESULT_END_OF_INPUT) {
+        throw new EOFException();
+      }
+      leadBytesRemaining -= bytesRead;
+      if (leadBytesRemaining == 0) {
+        // Stop reading from the lead source. The remaining data is fetched by the workers.
+        leadSource.close();
+      }
+      return bytesRead;
+    }
+
+    if (currentPart == null) {
+      currentPart = session.nextPart();
+      currentPartOffset = 0;
+      if (currentPart == null) {
+        return C.RESULT_END_OF_INPUT;
+      }
+    }
+    int bytesRead = currentPart.read(currentPartOffset, buffer, offset, readLength);
+    currentPartOffset += bytesRead;
+    if (currentPartOffset == currentPart.length) {
+      session.releasePart(currentPart);
+      currentPart = null;
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (session != null) {
+      session.cancel();
+      session = null;
+      currentPart = null;
+    }
+    if (leadBytesRemaining != 0) {
+      // The lead source has not already been closed.
+      leadSource.close();
+    }
+    leadBytesRemaining = 0;
+  }
+
+  private static DataSpec getSubrangeDataSpec(DataSpec dataSpec, long offset, long length) {
+    return new DataSpec(dataSpec.uri, null, dataSpec.absoluteStreamPosition + offset,
+        dataSpec.position + offset, length, dataSpec.key, dataSpec.flags,
+        dataSpec.httpRequestHeaders);
+  }
+
+  /**
+   * The state of a single parallel read.
+   */
+  private final class Session {
+
+    private final DataSpec dataSpec;
+    private final Part[] parts;
+
+    // Guarded by this.
+    private int nextFetchIndex;
+    private int nextReadIndex;
+    private boolean canceled;
+
+    public Session(DataSpec dataSpec, long length) {
+      this.dataSpec = dataSpec;
+      int partCount = (int) Util.ceilDivide(length, partSize);
+      parts = new Part[partCount];
+      for (int i = 0; i < partCount; i++) {
+        long partOffset = (long) i * partSize;
+        parts[i] = new Part((int) Math.min(partSize, length - partOffset), partOffset);
+      }
+      // The first part is served by the lead source.
+      nextFetchIndex = 1;
+      nextReadIndex = 1;
+    }
+
+    /**
+     * Returns the next part to fetch, blocking whilst the maximum number of parts are buffered.
+     * Returns null if there are no more parts to fetch, or if the session is canceled.
+     */
+    public synchronized Part takePartToFetch() throws InterruptedException {
+      while (!canceled && nextFetchIndex < parts.length
+          && nextFetchIndex - nextReadIndex >= maxBufferedParts) {
+        wait();
+      }
+      if (canceled || nextFetchIndex == parts.length) {
+        return null;
+      }
+      return parts[nextFetchIndex++];
+    }
+
+    /**
+     * Returns the next part to read, or null if all parts have been read.
+     */
+    public synchronized Part nextPart() {
+      return nextReadIndex < parts.length ? parts[nextReadIndex] : null;
+    }
+
+    public synchronized void releasePart(Part part) {
+      part.onConsumed();
+      nextReadIndex++;
+      notifyAll();
+    }
+
+    public synchronized boolean isCanceled() {
+      return canceled;
+    }
+
+    public void cancel() {
+      synchronized (this) {
+        canceled = true;
+        notifyAll();
+      }
+      for (Part part : parts) {
+        part.cancel(new InterruptedIOException("Canceled"));
+      }
+    }
+
+    public DataSpec getPartDataSpec(Part part) {
+      return getSubrangeDataSpec(dataSpec, part.offset, part.length);
+    }
+
+  }
+
+  /**
+   * A part of the requested data.
+   * <p>
+   * The allocations holding a part are returned to the allocator once the part has been consumed or
+   * canceled, and no worker is fetching into them.
+   */
+  private final class Part {
+
+    public final int length;
+    public final long offset;
+
+    // Guarded by this.
+    private Allocation[] allocations;
+    private int bytesFetched;
+    private boolean fetching;
+    private boolean finished;
+    private IOException error;
+
+    public Part(int length, long offset) {
+      this.length = length;
+      this.offset = offset;
+    }
+
+    /**
+     * Allocates the part's memory, and marks the part as being fetched. May block if the allocator
+     * blocks. Must only be called by the worker that is fetching the part.
+     *
+     * @return The allocations into which the part should be fetched, or null if the part has been
+     *     canceled, in which case it should not be fetched.
+     */
+    public Allocation[] startFetch() {
+      int allocationLength = allocator.getIndividualAllocationLength();
+      Allocation[] allocations = new Allocation[(int) Util.ceilDivide(length, allocationLength)];
+      for (int i = 0; i < allocations.length; i++) {
+        allocations[i] = allocator.allocate();
+        Assertions.checkState(!allocations[i].isDirect());
+      }
+      synchronized (this) {
+        if (!finished) {
+          this.allocations = allocations;
+          fetching = true;
+          return allocations;
+        }
+      }
+      for (Allocation allocation : allocations) {
+        allocator.release(allocation);
+      }
+      return null;
+    }
+
+    public synchronized void onFetched(int bytesFetched) {
+      this.bytesFetched += bytesFetched;
+      notifyAll();
+    }
+
+    /**
+     * Marks the part as no longer being fetched. Must only be called by the worker that is fetching
+     * the part.
+     */
+    public synchronized void endFetch() {
+      fetching = false;
+      maybeReleaseAllocations();
+    }
+
+    public synchronized void onConsumed() {
+      finished = true;
+      maybeReleaseAllocations();
+    }
+
+    public synchronized void fail(IOException error) {
+      if (this.error == null) {
+        this.error = error;
+      }
+      notifyAll();
+    }
+
+    public synchronized void cancel(IOException error) {
+      fail(error);
+      finished = true;
+      maybeReleaseAllocations();
+    }
+
+    /**
+     * Copies fetched data into {@code buffer}, blocking until at least one byte is available.
+     */
+    public synchronized int read(int partOffset, byte[] buffer, int offset, int readLength)
+        throws IOException {
+      while (bytesFetched == partOffset) {
+        if (error != null) {
+          throw error;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+      int bytesToCopy = Math.min(readLength, bytesFetched - partOffset);
+      int allocationLength = allocator.getIndividualAllocationLength();
+      int bytesCopied = 0;
+      while (bytesCopied < bytesToCopy) {
+        int position = partOffset + bytesCopied;
+        Allocation allocation = allocations[position / allocationLength];
+        int allocationOffset = position % allocationLength;
+        int length = Math.min(bytesToCopy - bytesCopied, allocationLength - allocationOffset);
+        System.arraycopy(allocation.data, allocation.translateOffset(allocationOffset), buffer,
+            offset + bytesCopied, length);
+        bytesCopied += length;
+      }
+      return bytesToCopy;
+    }
+
+    private void maybeReleaseAllocations() {
+      if (finished && !fetching && allocations != null) {
+        for (Allocation allocation : allocations) {
+          allocator.release(allocation);
+        }
+        allocations = null;
+      }
+    }
+
+  }
+
+  /**
+   * Fetches parts using its own upstream source until none remain.
+   */
+  private final class Worker implements Runnable {
+
+    private final Session session;
+
+    public Worker(Session session) {
+      this.session = session;
+    }
+
+    @Override
+    public void run() {
+      DataSource source = sourceFactory.createDataSource();
+      Part part;
+      try {
+        part = session.takePartToFetch();
+      } catch (InterruptedException e) {
+        return;
+      }
+      while (part != null) {
+        try {
+          fetch(source, part);
+          part = session.takePartToFetch();
+        } catch (IOException e) {
+          part.fail(e);
+          part = null;
+        } catch (InterruptedException e) {
+          part = null;
+        }
+      }
+    }
+
+    private void fetch(DataSource source, Part part) throws IOException {
+      Allocation[] allocations = part.startFetch();
+      if (allocations == null) {
+        return;
+      }
+      int allocationLength = allocator.getIndividualAllocationLength();
+      int bytesFetched = 0;
+      try {
+        source.open(session.getPartDataSpec(part));
+        while (bytesFetched < part.length) {
+          if (session.isCanceled()) {
+            return;
+          }
+          Allocation allocation = allocations[bytesFetched / allocationLength];
+          int allocationOffset = bytesFetched % allocationLength;
+          int bytesRead = source.read(allocation.data, allocation.translateOffset(allocationOffset),
+              Math.min(part.length - bytesFetched, allocationLength - allocationOffset));
+          if (bytesRead == C.RESULT_END_OF_INPUT) {
+            throw new EOFException();
+          }
+          bytesFetched += bytesRead;
+          part.onFetched(bytesRead);
+        }
+      } finally {
+        try {
+          source.close();
+        } finally {
+          part.endFetch();
+        }
+      }
+    }
+
+  }
+
+}
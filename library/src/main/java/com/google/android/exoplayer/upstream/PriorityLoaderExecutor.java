@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link LoaderExecutor} that executes tasks on a fixed number of threads, in order of priority.
+ * <p>
+ * A single instance can be shared between any number of {@link Loader}s, so that the number of
+ * loading threads stays constant regardless of how many players exist. Tasks with priorities lower
+ * than {@link #PRIORITY_MEDIA} are considered urgent. A number of threads are reserved
+ * for urgent tasks, so that an urgent task never waits for bulk media loads to complete.
+ * <p>
+ * A {@link Loader} constructed with the shared instance and a priority obtained from
+ * {@link #getPriority(int, int)} has its loads ordered before those of lower priority, so manifest
+ * loads precede initialization loads, which precede media loads, and audio loads precede video
+ * loads, which precede text loads.
+ * <p>
+ * Running tasks are never interrupted to make way for more urgent ones. A {@link Loader.Loadable}
+ * interprets interruption as cancelation, and so preemption is instead achieved by reserving
+ * threads and by ordering the queue.
+ */
+public final class PriorityLoaderExecutor implements LoaderExecutor {
+
+  /**
+   * Priority for loading manifests and other timing critical metadata.
+   */
+  public static final int PRIORITY_MANIFEST = 0;
+  /**
+   * Base priority for loading initialization data.
+   */
+  public static final int PRIORITY_INITIALIZATION = 10;
+  /**
+   * Base priority for loading media.
+   */
+  public static final int PRIORITY_MEDIA = 20;
+
+  /**
+   * Offset added to a base priority for audio tracks.
+   */
+  public static final int TRACK_TYPE_AUDIO = 0;
+  /**
+   * Offset added to a base priority for video tracks.
+   */
+  public static final int TRACK_TYPE_VIDEO = 1;
+  /**
+   * Offset added to a base priority for text tracks.
+   */
+  public static final int TRACK_TYPE_TEXT = 2;
+
+  /**
+   * The default number of threads.
+   */
+  public static final int DEFAULT_THREAD_COUNT = 4;
+  /**
+   * The default number of threads reserved for urgent tasks.
+   */
+  public static final int DEFAULT_RESERVED_THREAD_COUNT = 1;
+
+  private static final String THREAD_NAME = "ExoPlayerLoader";
+
+  private static PriorityLoaderExecutor sharedInstance;
+
+  private final int threadCount;
+  private final int reservedThreadCount;
+  private final PriorityQueue<Task> queue;
+
+  private boolean threadsStarted;
+  private int runningBulkTaskCount;
+  private long nextSequenceNumber;
+
+  /**
+   * Returns a process-wide instance with the default number of threads.
+   *
+   * @return The shared instance.
+   */
+  public static synchronized PriorityLoaderExecutor getSharedInstance() {
+    if (sharedInstance == null) {
+      sharedInstance = new PriorityLoaderExecutor(DEFAULT_THREAD_COUNT,
+          DEFAULT_RESERVED_THREAD_COUNT);
+    }
+    return sharedInstance;
+  }
+
+  /**
+   * Returns the priority of a load.
+   *
+   * @param basePriority The base priority of the load. One of {@link #PRIORITY_MANIFEST},
+   *     {@link #PRIORITY_INITIALIZATION} and {@link #PRIORITY_MEDIA}.
+   * @param trackType The type of the track being loaded. One of {@link #TRACK_TYPE_AUDIO},
+   *     {@link #TRACK_TYPE_VIDEO} and {@link #TRACK_TYPE_TEXT}.
+   * @return The priority of the load.
+   */
+  public static int getPriority(int basePriority, int trackType) {
+    return basePriority + trackType;
+  }
+
+  /**
+   * @param threadCount The number of threads.
+   * @param reservedThreadCount The number of threads that may only execute urgent tasks. Must be
+   *     less than {@code threadCount}.
+   */
+  public PriorityLoaderExecutor(int threadCount, int reservedThreadCount) {
+    Assertions.checkArgument(reservedThreadCount >= 0 && reservedThreadCount < threadCount);
+    this.threadCount = threadCount;
+    this.reservedThreadCount = reservedThreadCount;
+    this.queue = new PriorityQueue<>();
+  }
+
+  @Override
+  public synchronized void execute(Runnable task, int priority) {
+    if (!threadsStarted) {
+      startThreads();
+    }
+    queue.add(new Task(task, priority, nextSequenceNumber++));
+    notifyAll();
+  }
+
+  @Override
+  public synchronized boolean remove(Runnable task) {
+    Iterator<Task> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().runnable == task) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void startThreads() {
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread(new Worker(), THREAD_NAME + ":" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    threadsStarted = true;
+  }
+
+  private synchronized Task takeTask() throws InterruptedException {
+    while (true) {
+      // Urgent tasks are always ordered before bulk tasks, so if the head of the queue is a bulk
+      // task then there are no urgent tasks waiting.
+      Task task = queue.peek();
+      if (task != null && (task.isUrgent()
+          || runningBulkTaskCount < threadCount - reservedThreadCount)) {
+        queue.poll();
+        if (!task.isUrgent()) {
+          runningBulkTaskCount++;
+        }
+        return task;
+      }
+      wait();
+    }
+  }
+
+  private synchronized void onTaskFinished(Task task) {
+    if (!task.isUrgent()) {
+      runningBulkTaskCount--;
+      notifyAll();
+    }
+  }
+
+  private final class Worker implements Runnable {
+
+    @Override
+    public void run() {
+      while (true) {
+        Task task;
+        try {
+          task = takeTask();
+        } catch (InterruptedException e) {
+          // The thread is shared, so an interrupt intended for a load that has already ended must
+          // not stop it.
+          continue;
+        }
+        // Clear any such interrupt before and after each task, so that it's only seen by the load
+        // for which it was intended.
+        Thread.interrupted();
+        try {
+          task.runnable.run();
+        } finally {
+          Thread.interrupted();
+          onTaskFinished(task);
+        }
+      }
+    }
+
+  }
+
+  private static final class Task implements Comparable<Task> {
+
+    public final Runnable runnable;
+    public final int priority;
+    public final long sequenceNumber;
+
+    public Task(Runnable runnable, int priority, long sequenceNumber) {
+      this.runnable = runnable;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    public boolean isUrgent() {
+      return priority < PRIORITY_MEDIA;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (priority != other.priority) {
+        return priority < other.priority ? -1 : 1;
+      }
+      return sequenceNumber < other.sequenceNumber ? -1
+          : sequenceNumber == other.sequenceNumber ? 0 : 1;
+    }
+
+  }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.util.Arrays;
+
+/**
+ * An {@link Allocator} that serves allocations of several sizes from a single byte budget.
+ * <p>
+ * Each size class has its own free list, and is accessed through a view obtained by calling
+ * {@link #getAllocator(int)} or {@link #getAllocatorForLength(int)}. Components that buffer small
+ * units of data, such as audio frames or subtitles, can use a small size class so that they do not
+ * pin a full sized allocation. The views report and block on the total number of bytes allocated
+ * across all size classes, as does this allocator, so a load control can continue to reason about a
+ * single buffer size. Calling {@link #allocate()} on this allocator
+ * directly allocates from the largest size class.
+ */
+public final class SizeClassAllocator implements Allocator {
+
+  private static final int AVAILABLE_EXTRA_CAPACITY = 100;
+
+  private final int[] individualAllocationSizes;
+  private final Allocator[] sizeClassAllocators;
+  private final int[] allocatedCounts;
+  private final int[] availableCounts;
+  private final Allocation[][] availableAllocations;
+
+  private int totalBytesAllocated;
+  private int totalBytesAvailable;
+  private AllocatorStats stats;
+
+  /**
+   * @param individualAllocationSizes The length of each individual allocation in each size class,
+   *     in strictly ascending order.
+   */
+  public SizeClassAllocator(int... individualAllocationSizes) {
+    Assertions.checkArgument(individualAllocationSizes.length > 0);
+    Assertions.checkArgument(individualAllocationSizes[0] > 0);
+    for (int i = 1; i < individualAllocationSizes.length; i++) {
+      Assertions.checkArgument(individualAllocationSizes[i] > individualAllocationSizes[i - 1]);
+    }
+    int sizeClassCount = individualAllocationSizes.length;
+    this.individualAllocationSizes = Arrays.copyOf(individualAllocationSizes, sizeClassCount);
+    sizeClassAllocators = new Allocator[sizeClassCount];
+    allocatedCounts = new int[sizeClassCount];
+    availableCounts = new int[sizeClassCount];
+    availableAllocations = new Allocation[sizeClassCount][];
+    for (int i = 0; i < sizeClassCount; i++) {
+      sizeClassAllocators[i] = new SizeClassView(i);
+      availableAllocations[i] = new Allocation[AVAILABLE_EXTRA_CAPACITY];
+    }
+  }
+
+  /**
+   * Returns the number of size classes.
+   */
+  public int getSizeClassCount() {
+    return individualAllocationSizes.length;
+  }
+
+  /**
+   * Returns a view of this allocator that allocates from the specified size class.
+   *
+   * @param sizeClass The index of the size class.
+   * @return The view.
+   */
+  public Allocator getAllocator(int sizeClass) {
+    return sizeClassAllocators[sizeClass];
+  }
+
+  /**
+   * Returns a view of this allocator that allocates from the smallest size class whose allocations
+   * are at least the specified length, or from the largest size class if there's no such class.
+   *
+   * @param length The required length of each allocation.
+   * @return The view.
+   */
+  public Allocator getAllocatorForLength(int length) {
+    for (int i = 0; i < individualAllocationSizes.length - 1; i++) {
+      if (individualAllocationSizes[i] >= length) {
+        return sizeClassAllocators[i];
+      }
+    }
+    return sizeClassAllocators[individualAllocationSizes.length - 1];
+  }
+
+  /**
+   * Returns the number of bytes currently allocated from the specified size class.
+   *
+   * @param sizeClass The index of the size class.
+   * @return The number of bytes allocated from the size class.
+   */
+  public synchronized int getBytesAllocated(int sizeClass) {
+    return allocatedCounts[sizeClass] * individualAllocationSizes[sizeClass];
+  }
+
+  /**
+   * Sets the statistics to which this allocator reports its use, across all size classes.
+   *
+   * @param stats The statistics, or null to stop reporting.
+   */
+  public synchronized void setStats(AllocatorStats stats) {
+    if (this.stats != null) {
+      this.stats.setSource(null);
+    }
+    this.stats = stats;
+    if (stats != null) {
+      stats.setSource(new AllocatorStats.Source() {
+        @Override
+        public int getBytesAllocated() {
+          return getTotalBytesAllocated();
+        }
+
+        @Override
+        public int getAvailableBytes() {
+          synchronized (SizeClassAllocator.this) {
+            return totalBytesAvailable;
+          }
+        }
+      });
+    }
+  }
+
+  @Override
+  public Allocation allocate() {
+    return allocate(individualAllocationSizes.length - 1);
+  }
+
+  @Override
+  public synchronized void release(Allocation allocation) {
+    // Weak sanity check that the allocation probably originated from this pool. Allocations backed
+    // by direct buffers only originate from DirectBufferAllocator.
+    Assertions.checkArgument(!allocation.isDirect());
+    int sizeClass = Arrays.binarySearch(individualAllocationSizes, allocation.data.length);
+    Assertions.checkArgument(sizeClass >= 0);
+    allocatedCounts[sizeClass]--;
+    totalBytesAllocated -= individualAllocationSizes[sizeClass];
+    Allocation[] available = availableAllocations[sizeClass];
+    if (availableCounts[sizeClass] == available.length) {
+      available = Arrays.copyOf(available, available.length * 2);
+      availableAllocations[sizeClass] = available;
+    }
+    available[availableCounts[sizeClass]++] = allocation;
+    totalBytesAvailable += individualAllocationSizes[sizeClass];
+    if (stats != null) {
+      stats.onRelease();
+    }
+    // Wake up threads waiting for the allocated size to drop.
+    notifyAll();
+  }
+
+  /**
+   * Discards available allocations until the number of bytes allocated and available across all
+   * size classes is at or below the target. Allocations in the largest size classes are discarded
+   * first.
+   */
+  @Override
+  public synchronized void trim(int targetSize) {
+    int targetAvailableBytes = Math.max(0, targetSize - totalBytesAllocated);
+    int totalDiscardCount = 0;
+    for (int i = individualAllocationSizes.length - 1; i >= 0; i--) {
+      if (totalBytesAvailable <= targetAvailableBytes) {
+        break;
+      }
+      int discardCount = Math.min(availableCounts[i], Util.ceilDivide(
+          totalBytesAvailable - targetAvailableBytes, individualAllocationSizes[i]));
+      int targetAvailableCount = availableCounts[i] - discardCount;
+      Arrays.fill(availableAllocations[i], targetAvailableCount, availableCounts[i], null);
+      availableCounts[i] = targetAvailableCount;
+      totalBytesAvailable -= discardCount * individualAllocationSizes[i];
+      totalDiscardCount += discardCount;
+    }
+    if (stats != null && totalDiscardCount > 0) {
+      stats.onTrim(totalDiscardCount);
+    }
+  }
+
+  @Override
+  public synchronized int getTotalBytesAllocated() {
+    return totalBytesAllocated;
+  }
+
+  @Override
+  public synchronized void blockWhileTotalBytesAllocatedExceeds(int limit)
+      throws InterruptedException {
+    if (totalBytesAllocated <= limit) {
+      return;
+    }
+    long blockStartTimeNs = System.nanoTime();
+    try {
+      while (totalBytesAllocated > limit) {
+        wait();
+      }
+    } finally {
+      if (stats != null) {
+        stats.onBlocked((System.nanoTime() - blockStartTimeNs) / 1000);
+      }
+    }
+  }
+
+  /**
+   * Returns the length of each individual allocation in the largest size class.
+   */
+  @Override
+  public int getIndividualAllocationLength() {
+    return individualAllocationSizes[individualAllocationSizes.length - 1];
+  }
+
+  private synchronized Allocation allocate(int sizeClass) {
+    allocatedCounts[sizeClass]++;
+    totalBytesAllocated += individualAllocationSizes[sizeClass];
+    Allocation allocation;
+    boolean isNew = availableCounts[sizeClass] == 0;
+    if (!isNew) {
+      allocation = availableAllocations[sizeClass][--availableCounts[sizeClass]];
+      availableAllocations[sizeClass][availableCounts[sizeClass]] = null;
+      totalBytesAvailable -= individualAllocationSizes[sizeClass];
+    } else {
+      allocation = new Allocation(new byte[individualAllocationSizes[sizeClass]], 0);
+    }
+    if (stats != null) {
+      stats.onAllocate(isNew, totalBytesAllocated);
+    }
+    return allocation;
+  }
+
+  /**
+   * A view that allocates from a single size class. Other than {@link #allocate()} and
+   * {@link #getIndividualAllocationLength()}, methods operate on the enclosing allocator.
+   */
+  private final class SizeClassView implements Allocator {
+
+    private final int sizeClass;
+
+    public SizeClassView(int sizeClass) {
+      this.sizeClass = sizeClass;
+    }
+
+    @Override
+    public Allocation allocate() {
+      return SizeClassAllocator.this.allocate(sizeClass);
+    }
+
+    @Override
+    public void release(Allocation allocation) {
+      SizeClassAllocator.this.release(allocation);
+    }
+
+    @Override
+    public void trim(int targetSize) {
+      SizeClassAllocator.this.trim(targetSize);
+    }
+
+    @Override
+    public void blockWhileTotalBytesAllocatedExceeds(int limit) throws InterruptedException {
+      SizeClassAllocator.this.blockWhileTotalBytesAllocatedExceeds(limit);
+    }
+
+    @Override
+    public int getTotalBytesAllocated() {
+      return SizeClassAllocator.this.getTotalBytesAllocated();
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return individualAllocationSizes[sizeClass];
+    }
+
+  }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * An optional extension of {@link TransferListener} that is notified when an HTTP source needs to
+ * skip data because a server ignored a request for a range starting at a non-zero position.
+ * <p>
+ * {@link DefaultHttpDataSource} and {@link NioHttpDataSource} notify their listener if it
+ * implements this interface.
+ */
+public interface SkipListener extends TransferListener {
+
+  /**
+   * The data preceding the requested position is read and discarded.
+   */
+  int SKIP_BY_READING = 0;
+  /**
+   * The source fails, since more data would need to be skipped than is permitted.
+   */
+  int SKIP_FAILED = 1;
+
+  /**
+   * Invoked when a request for data starting at a non-zero position was answered with data starting
+   * from the beginning of the resource, and so the source needs to skip data to reach the requested
+   * position.
+   *
+   * @param bytesToSkip The number of bytes that need to be skipped.
+   * @param decision How the source handles the skip. One of {@link #SKIP_BY_READING} and
+   *     {@link #SKIP_FAILED}.
+   */
+  void onSkipRequired(long bytesToSkip, int decision);
+
+}
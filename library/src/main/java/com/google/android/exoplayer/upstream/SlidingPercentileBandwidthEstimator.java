@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.MemoryBudgetManager;
+import com.google.android.exoplayer.util.SlidingPercentile;
+
+/**
+ * A {@link BandwidthEstimator} that estimates a percentile of the throughput of recent samples,
+ * each weighted by the square root of the number of bytes that it covers. The history can be
+ * registered with a {@link MemoryBudgetManager} by calling {@link #registerWithMemoryBudget}.
+ * <p>
+ * This is the estimator used by {@link DefaultBandwidthMeter} by default.
+ */
+public final class SlidingPercentileBandwidthEstimator implements BandwidthEstimator {
+
+  public static final int DEFAULT_MAX_WEIGHT = 2000;
+  public static final float DEFAULT_PERCENTILE = 0.5f;
+
+  private final SlidingPercentile slidingPercentile;
+  private final float percentile;
+
+  private MemoryBudgetManager memoryBudgetManager;
+  private long bitrateEstimate;
+
+  public SlidingPercentileBandwidthEstimator() {
+    this(DEFAULT_MAX_WEIGHT, DEFAULT_PERCENTILE);
+  }
+
+  /**
+   * @param maxWeight The maximum total weight of the samples in the history.
+   * @param percentile The percentile of the history to estimate, in the range (0,1].
+   */
+  public SlidingPercentileBandwidthEstimator(int maxWeight, float percentile) {
+    this.slidingPercentile = new SlidingPercentile(maxWeight);
+    this.percentile = percentile;
+    bitrateEstimate = BandwidthMeter.NO_ESTIMATE;
+  }
+
+  @Override
+  public void addSample(long bytes, long elapsedMs) {
+    float bitsPerSecond = (bytes * 8000) / elapsedMs;
+    slidingPercentile.addSample((int) Math.sqrt(bytes), bitsPerSecond);
+    float bandwidthEstimateFloat = slidingPercentile.getPercentile(percentile);
+    bitrateEstimate = Float.isNaN(bandwidthEstimateFloat) ? BandwidthMeter.NO_ESTIMATE
+        : (long) bandwidthEstimateFloat;
+  }
+
+  @Override
+  public long getBitrateEstimate() {
+    return bitrateEstimate;
+  }
+
+  /**
+   * Registers the history with a {@link MemoryBudgetManager}, requesting the maximum number of
+   * bytes that it can use.
+   *
+   * @param memoryBudgetManager The manager.
+   * @param priority The priority of the history, as defined by {@link MemoryBudgetManager}.
+   */
+  public synchronized void registerWithMemoryBudget(MemoryBudgetManager memoryBudgetManager,
+      int priority) {
+    Assertions.checkState(this.memoryBudgetManager == null);
+    this.memoryBudgetManager = memoryBudgetManager;
+    memoryBudgetManager.register(slidingPercentile, slidingPercentile.getMaxBytesUsed(), priority);
+  }
+
+  /**
+   * Sets the priority of the history within the {@link MemoryBudgetManager} with which it's
+   * registered. Does nothing if the history is not registered.
+   *
+   * @param priority The priority, as defined by {@link MemoryBudgetManager}.
+   */
+  public synchronized void setMemoryBudgetPriority(int priority) {
+    if (memoryBudgetManager != null) {
+      memoryBudgetManager.setPriority(slidingPercentile, priority);
+    }
+  }
+
+  /**
+   * Unregisters the history from the {@link MemoryBudgetManager} with which it's registered, if
+   * any.
+   */
+  public synchronized void unregisterFromMemoryBudget() {
+    if (memoryBudgetManager != null) {
+      memoryBudgetManager.unregister(slidingPercentile);
+      memoryBudgetManager = null;
+    }
+  }
+
+}
@@ -15,16 +15,29 @@
  */
 package com.google.android.exoplayer.upstream;
 
+import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.upstream.HttpDataSource.InvalidResponseCodeException;
 import com.google.android.exoplayer.upstream.Loader.Loadable;
 
 import android.net.Uri;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A {@link Loadable} for loading an object from a URI.
+ * <p>
+ * A load can be made conditional on the object having changed since a previous load, by passing the
+ * validators returned by {@link #getETag()} and {@link #getLastModified()} for that load. They are
+ * sent as headers of the {@link DataSpec}, and so apply whenever the {@link UriDataSource} makes an
+ * HTTP request, including through a {@link DefaultUriDataSource}. If the server responds that the
+ * object has not been modified then the parser is not invoked, {@link #isNotModified()} returns
+ * true and {@link #getResult()} returns null.
  *
  * @param <T> The type of the object being loaded.
  */
@@ -51,8 +64,13 @@ public final class UriLoadable<T> implements Loadable {
   private final DataSpec dataSpec;
   private final UriDataSource uriDataSource;
   private final Parser<T> parser;
+  private final String requestETag;
+  private final String requestLastModified;
 
   private volatile T result;
+  private volatile boolean notModified;
+  private volatile String eTag;
+  private volatile String lastModified;
   private volatile boolean isCanceled;
 
   /**
@@ -61,9 +79,40 @@ public final class UriLoadable<T> implements Loadable {
    * @param parser Parses the object from the response.
    */
   public UriLoadable(String url, UriDataSource uriDataSource, Parser<T> parser) {
+    this(url, uriDataSource, parser, null, null);
+  }
+
+  /**
+   * @param url The url from which the object should be loaded.
+   * @param uriDataSource A {@link UriDataSource} to use when loading the data.
+   * @param parser Parses the object from the response.
+   * @param eTag The entity tag of a previously loaded object, sent as {@code If-None-Match}. May
+   *     be null.
+   * @param lastModified The last modified date of a previously loaded object, sent as
+   *     {@code If-Modified-Since}. May be null.
+   */
+  public UriLoadable(String url, UriDataSource uriDataSource, Parser<T> parser, String eTag,
+      String lastModified) {
     this.uriDataSource = uriDataSource;
     this.parser = parser;
-    dataSpec = new DataSpec(Uri.parse(url), DataSpec.FLAG_ALLOW_GZIP);
+    this.requestETag = eTag;
+    this.requestLastModified = lastModified;
+    HashMap<String, String> httpRequestHeaders = new HashMap<>();
+    if (eTag != null) {
+      httpRequestHeaders.put("If-None-Match", eTag);
+    }
+    if (lastModified != null) {
+      httpRequestHeaders.put("If-Modified-Since", lastModified);
+    }
+    dataSpec = new DataSpec(Uri.parse(url), null, 0, 0, C.LENGTH_UNBOUNDED, null,
+        DataSpec.FLAG_ALLOW_GZIP, httpRequestHeaders);
+  }
+
+  /**
+   * Returns the url from which the object is loaded.
+   */
+  public final String getUrl() {
+    return dataSpec.uri.toString();
   }
 
   /**
@@ -73,6 +122,30 @@ public final class UriLoadable<T> implements Loadable {
     return result;
   }
 
+  /**
+   * Returns whether the load completed because the server reported that the object has not been
+   * modified since the load that returned the validators passed to the constructor.
+   */
+  public final boolean isNotModified() {
+    return notModified;
+  }
+
+  /**
+   * Returns the value of the {@code ETag} header of the response, or null if the header was not
+   * present or the response headers are not available.
+   */
+  public final String getETag() {
+    return eTag;
+  }
+
+  /**
+   * Returns the value of the {@code Last-Modified} header of the response, or null if the header
+   * was not present or the response headers are not available.
+   */
+  public final String getLastModified() {
+    return lastModified;
+  }
+
   @Override
   public final void cancelLoad() {
     // We don't actually cancel anything, but we need to record the cancellation so that
@@ -90,10 +163,45 @@ public final class UriLoadable<T> implements Loadable {
     DataSourceInputStream inputStream = new DataSourceInputStream(uriDataSource, dataSpec);
     try {
       inputStream.open();
+      Map<String, List<String>> headers = getResponseHeaders(uriDataSource);
+      eTag = getHeader(headers, "ETag");
+      lastModified = getHeader(headers, "Last-Modified");
       result = parser.parse(uriDataSource.getUri(), inputStream);
+    } catch (InvalidResponseCodeException e) {
+      if (dataSpec.httpRequestHeaders.isEmpty()
+          || e.responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+        throw e;
+      }
+      // The previously loaded object is still current.
+      eTag = requestETag;
+      lastModified = requestLastModified;
+      notModified = true;
     } finally {
       inputStream.close();
     }
   }
 
+  private static Map<String, List<String>> getResponseHeaders(UriDataSource uriDataSource) {
+    if (uriDataSource instanceof HttpDataSource) {
+      return ((HttpDataSource) uriDataSource).getResponseHeaders();
+    } else if (uriDataSource instanceof DefaultUriDataSource) {
+      return ((DefaultUriDataSource) uriDataSource).getResponseHeaders();
+    }
+    return null;
+  }
+
+  private static String getHeader(Map<String, List<String>> headers, String name) {
+    if (headers == null) {
+      return null;
+    }
+    // Header names are case insensitive, but the keys of the map may not be.
+    for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+      if (name.equalsIgnoreCase(entry.getKey())) {
+        List<String> values = entry.getValue();
+        return values == null || values.isEmpty() ? null : values.get(0);
+      }
+    }
+    return null;
+  }
+
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSink;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes data into a cache.
+ * <p>
+ * Data is only written for {@link DataSpec}s of known length. Data of unknown length is consumed
+ * without being written, since the space it requires can't be reserved in the cache.
+ * <p>
+ * Data is written on the thread that calls {@link #write(byte[], int, int)}, which is the loading
+ * thread when the sink is used by {@link CacheDataSource}. By default cache files are not synced
+ * to disk when they're committed, so that loads only wait for writes into the file system's
+ * buffers. Cache files written shortly before the device loses power may then be incomplete. Pass
+ * {@code syncFileDescriptor} to sync each file instead.
+ */
+public final class CacheDataSink implements DataSink {
+
+  /**
+   * Thrown when IOException is encountered when writing data into the sink.
+   */
+  public static class CacheDataSinkException extends IOException {
+
+    public CacheDataSinkException(IOException cause) {
+      super(cause);
+    }
+
+  }
+
+  private final Cache cache;
+  private final long maxCacheFileSize;
+  private final boolean syncFileDescriptor;
+
+  private DataSpec dataSpec;
+  private File file;
+  private FileOutputStream outputStream;
+  private long outputStreamBytesWritten;
+  private long dataSpecBytesWritten;
+
+  /**
+   * @param cache The cache into which data should be written.
+   * @param maxCacheFileSize The maximum size of a cache file, in bytes. If the sink is opened for
+   *    a {@link DataSpec} whose size exceeds this value, then the data will be fragmented into
+   *    multiple cache files.
+   */
+  public CacheDataSink(Cache cache, long maxCacheFileSize) {
+    this(cache, maxCacheFileSize, false);
+  }
+
+  /**
+   * @param cache The cache into which data should be written.
+   * @param maxCacheFileSize The maximum size of a cache file, in bytes. If the sink is opened for
+   *    a {@link DataSpec} whose size exceeds this value, then the data will be fragmented into
+   *    multiple cache files.
+   * @param syncFileDescriptor Whether each cache file is synced to disk before it's committed.
+   */
+  public CacheDataSink(Cache cache, long maxCacheFileSize, boolean syncFileDescriptor) {
+    this.cache = Assertions.checkNotNull(cache);
+    this.maxCacheFileSize = maxCacheFileSize;
+    this.syncFileDescriptor = syncFileDescriptor;
+  }
+
+  @Override
+  public DataSink open(DataSpec dataSpec) throws CacheDataSinkException {
+    if (dataSpec.length == C.LENGTH_UNBOUNDED) {
+      this.dataSpec = null;
+      return this;
+    }
+    try {
+      this.dataSpec = dataSpec;
+      dataSpecBytesWritten = 0;
+      openNextOutputStream();
+      return this;
+    } catch (FileNotFoundException e) {
+      throw new CacheDataSinkException(e);
+    }
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws CacheDataSinkException {
+    if (dataSpec == null) {
+      return;
+    }
+    try {
+      int bytesWritten = 0;
+      while (bytesWritten < length) {
+        if (outputStreamBytesWritten == maxCacheFileSize) {
+          closeCurrentOutputStream();
+          openNextOutputStream();
+        }
+        int bytesToWrite = (int) Math.min(length - bytesWritten,
+            maxCacheFileSize - outputStreamBytesWritten);
+        outputStream.write(buffer, offset + bytesWritten, bytesToWrite);
+        bytesWritten += bytesToWrite;
+        outputStreamBytesWritten += bytesToWrite;
+        dataSpecBytesWritten += bytesToWrite;
+      }
+    } catch (IOException e) {
+      throw new CacheDataSinkException(e);
+    }
+  }
+
+  @Override
+  public void close() throws CacheDataSinkException {
+    try {
+      closeCurrentOutputStream();
+    } catch (IOException e) {
+      throw new CacheDataSinkException(e);
+    }
+  }
+
+  private void openNextOutputStream() throws FileNotFoundException {
+    file = cache.startFile(dataSpec.key, dataSpec.absoluteStreamPosition + dataSpecBytesWritten,
+        Math.min(dataSpec.length - dataSpecBytesWritten, maxCacheFileSize));
+    outputStream = new FileOutputStream(file);
+    outputStreamBytesWritten = 0;
+  }
+
+  private void closeCurrentOutputStream() throws IOException {
+    if (outputStream == null) {
+      return;
+    }
+    boolean success = false;
+    try {
+      outputStream.flush();
+      if (syncFileDescriptor) {
+        outputStream.getFD().sync();
+      }
+      success = true;
+    } finally {
+      Util.closeQuietly(outputStream);
+      if (success) {
+        cache.commitFile(file);
+      } else {
+        file.delete();
+      }
+      outputStream = null;
+      file = null;
+    }
+  }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSink;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.FileDataSource;
+import com.google.android.exoplayer.upstream.HttpDataSource.InvalidResponseCodeException;
+import com.google.android.exoplayer.upstream.TeeDataSource;
+import com.google.android.exoplayer.upstream.cache.CacheDataSink.CacheDataSinkException;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+
+/**
+ * A {@link DataSource} that reads and writes a {@link Cache}. Requests are fulfilled from the cache
+ * when possible. When data is not cached it is requested from upstream and written into the cache.
+ * <p>
+ * Spans are looked up by {@link DataSpec#key} and byte position. A request that is only partially
+ * cached is served as a sequence of reads, alternating between cached spans and upstream requests
+ * for the holes between them.
+ * <p>
+ * The length of a request whose length is {@link C#LENGTH_UNBOUNDED} is resolved by upstream when
+ * data is first read from it, and is then recorded in the cache with
+ * {@link Cache#setContentLength(String, long)}. A later request of unknown length for the same key
+ * is then bounded by the recorded length, and can be served from the cache alone. If the length is
+ * not known, then a request of unknown length continues from upstream at the end of the last
+ * cached span, and an HTTP 416 (range not satisfiable) response at that point is treated as the end
+ * of the data.
+ */
+public final class CacheDataSource implements DataSource {
+
+  /**
+   * Interface definition for a callback to be notified of {@link CacheDataSource} events.
+   */
+  public interface EventListener {
+
+    /**
+     * Invoked when bytes have been read from the cache.
+     *
+     * @param cacheSizeBytes Current cache size in bytes.
+     * @param cachedBytesRead Total bytes read from the cache since this method was last invoked.
+     */
+    void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead);
+
+  }
+
+  private static final String TAG = "CacheDataSource";
+
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  private final Cache cache;
+  private final DataSource cacheReadDataSource;
+  private final DataSource cacheWriteDataSource;
+  private final DataSource upstreamDataSource;
+  private final EventListener eventListener;
+
+  private final boolean blockOnCache;
+  private final boolean ignoreCacheOnError;
+
+  private DataSource currentDataSource;
+  private boolean currentRequestUnbounded;
+  private Uri uri;
+  private int flags;
+  private String key;
+  private Map<String, String> httpRequestHeaders;
+  private long readPosition;
+  private long bytesRemaining;
+  private CacheSpan lockedSpan;
+  private boolean ignoreCache;
+  private long totalCachedBytesRead;
+
+  /**
+   * Constructs an instance with default {@link DataSource} and {@link DataSink} instances for
+   * reading and writing the cache.
+   *
+   * @param cache The cache.
+   * @param upstream A {@link DataSource} for reading data not in the cache.
+   * @param blockOnCache A flag indicating whether we will block reads if the cache key is locked.
+   *     If this flag is false, then we will read from upstream if the cache key is locked.
+   * @param ignoreCacheOnError Whether the cache is bypassed following any cache related error. If
+   *     true, then cache related exceptions may be thrown for one cycle of open, read and close
+   *     calls. Subsequent cycles of these calls will then bypass the cache.
+   */
+  public CacheDataSource(Cache cache, DataSource upstream, boolean blockOnCache,
+      boolean ignoreCacheOnError) {
+    this(cache, upstream, blockOnCache, ignoreCacheOnError, Long.MAX_VALUE);
+  }
+
+  /**
+   * Constructs an instance with default {@link DataSource} and {@link DataSink} instances for
+   * reading and writing the cache. The sink is configured to fragment data such that no single
+   * cache file is greater than maxCacheFileSize bytes.
+   *
+   * @param cache The cache.
+   * @param upstream A {@link DataSource} for reading data not in the cache.
+   * @param blockOnCache A flag indicating whether we will block reads if the cache key is locked.
+   *     If this flag is false, then we will read from upstream if the cache key is locked.
+   * @param ignoreCacheOnError Whether the cache is bypassed following any cache related error. If
+   *     true, then cache related exceptions may be thrown for one cycle of open, read and close
+   *     calls. Subsequent cycles of these calls will then bypass the cache.
+   * @param maxCacheFileSize The maximum size of a cache file, in bytes.
+   */
+  public CacheDataSource(Cache cache, DataSource upstream, boolean blockOnCache,
+      boolean ignoreCacheOnError, long maxCacheFileSize) {
+    this(cache, upstream, new FileDataSource(), new CacheDataSink(cache, maxCacheFileSize),
+        blockOnCache, ignoreCacheOnError, null);
+  }
+
+  /**
+   * Constructs an instance with arbitrary {@link DataSource} and {@link DataSink} instances for
+   * reading and writing the cache. One use of this constructor is to allow data to be transformed
+   * before it is written to disk.
+   *
+   * @param cache The cache.
+   * @param upstream A {@link DataSource} for reading data not in the cache.
+   * @param cacheReadDataSource A {@link DataSource} for reading data from the cache.
+   * @param cacheWriteDataSink A {@link DataSink} for writing data to the cache. May be null, in
+   *     which case data read from upstream is not written to the cache.
+   * @param blockOnCache A flag indicating whether we will block reads if the cache key is locked.
+   *     If this flag is false, then we will read from upstream if the cache key is locked.
+   * @param ignoreCacheOnError Whether the cache is bypassed following any cache related error. If
+   *     true, then cache related exceptions may be thrown for one cycle of open, read and close
+   *     calls. Subsequent cycles of these calls will then bypass the cache.
+   * @param eventListener An optional {@link EventListener} to receive events.
+   */
+  public CacheDataSource(Cache cache, DataSource upstream, DataSource cacheReadDataSource,
+      DataSink cacheWriteDataSink, boolean blockOnCache, boolean ignoreCacheOnError,
+      EventListener eventListener) {
+    this.cache = cache;
+    this.cacheReadDataSource = cacheReadDataSource;
+    this.blockOnCache = blockOnCache;
+    this.ignoreCacheOnError = ignoreCacheOnError;
+    this.upstreamDataSource = upstream;
+    if (cacheWriteDataSink != null) {
+      this.cacheWriteDataSource = new TeeDataSource(upstream, cacheWriteDataSink);
+    } else {
+      this.cacheWriteDataSource = null;
+    }
+    this.eventListener = eventListener;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    try {
+      uri = dataSpec.uri;
+      flags = dataSpec.flags;
+      key = dataSpec.key;
+      httpRequestHeaders = dataSpec.httpRequestHeaders;
+      readPosition = dataSpec.position;
+      bytesRemaining = dataSpec.length;
+      if (bytesRemaining == C.LENGTH_UNBOUNDED && key != null && !ignoreCache) {
+        long contentLength = cache.getContentLength(key);
+        if (contentLength != C.LENGTH_UNBOUNDED) {
+          bytesRemaining = Math.max(0, contentLength - readPosition);
+        }
+      }
+      if (bytesRemaining != 0) {
+        openNextSource(false);
+      }
+      return bytesRemaining;
+    } catch (IOException e) {
+      handleBeforeThrow(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int max) throws IOException {
+    if (bytesRemaining == 0) {
+      return -1;
+    }
+    try {
+      int num = currentDataSource.read(buffer, offset, max);
+      if (num >= 0) {
+        if (currentDataSource == cacheReadDataSource) {
+          totalCachedBytesRead += num;
+        }
+        readPosition += num;
+        if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+          bytesRemaining -= num;
+        }
+      } else {
+        boolean reachedEndOfData = currentRequestUnbounded;
+        closeCurrentSource();
+        if (bytesRemaining > 0
+            || (bytesRemaining == C.LENGTH_UNBOUNDED && !reachedEndOfData)) {
+          // The current span ended before the requested range, or before the end of data of
+          // unknown length. Move on to the next one, which is either cached or a hole that needs to
+          // be filled from upstream.
+          if (openNextSource(bytesRemaining == C.LENGTH_UNBOUNDED)) {
+            return read(buffer, offset, max);
+          }
+        }
+      }
+      return num;
+    } catch (IOException e) {
+      handleBeforeThrow(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    notifyBytesRead();
+    try {
+      closeCurrentSource();
+    } catch (IOException e) {
+      handleBeforeThrow(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Opens the next source. If the cache contains data spanning the current read position then
+   * {@link #cacheReadDataSource} is opened to read from it. Else {@link #upstreamDataSource} is
+   * opened to read from the upstream source and write into the cache.
+   *
+   * @param mayBeAtEnd Whether the read position may be the end of data of unknown length.
+   * @return Whether a source was opened. False if upstream reported that the read position is the
+   *     end of the data.
+   */
+  private boolean openNextSource(boolean mayBeAtEnd) throws IOException {
+    DataSpec dataSpec;
+    CacheSpan span;
+    if (ignoreCache || key == null) {
+      span = null;
+    } else if (blockOnCache) {
+      try {
+        span = cache.startReadWrite(key, readPosition);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    } else {
+      span = cache.startReadWriteNonBlocking(key, readPosition);
+    }
+
+    if (span == null) {
+      // The data is locked in the cache, or we're ignoring the cache. Bypass the cache and read
+      // from upstream.
+      currentDataSource = upstreamDataSource;
+      dataSpec = new DataSpec(uri, null, readPosition, readPosition, bytesRemaining, key, flags,
+          httpRequestHeaders);
+    } else if (span.isCached) {
+      // Data is cached, read from cache.
+      Uri fileUri = Uri.fromFile(span.file);
+      long filePosition = readPosition - span.position;
+      long length = span.length - filePosition;
+      if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+        length = Math.min(length, bytesRemaining);
+      }
+      dataSpec = new DataSpec(fileUri, readPosition, filePosition, length, key, flags);
+      currentDataSource = cacheReadDataSource;
+    } else {
+      // Data is not cached, and data is not locked, read from upstream with cache backing.
+      lockedSpan = span;
+      long length = span.isOpenEnded() ? bytesRemaining
+          : bytesRemaining == C.LENGTH_UNBOUNDED ? span.length
+          : Math.min(span.length, bytesRemaining);
+      dataSpec = new DataSpec(uri, null, readPosition, readPosition, length, key, flags,
+          httpRequestHeaders);
+      currentDataSource = cacheWriteDataSource != null ? cacheWriteDataSource
+          : upstreamDataSource;
+    }
+    currentRequestUnbounded = dataSpec.length == C.LENGTH_UNBOUNDED;
+    long resolvedLength;
+    try {
+      resolvedLength = currentDataSource.open(dataSpec);
+    } catch (InvalidResponseCodeException e) {
+      if (!mayBeAtEnd || e.responseCode != HTTP_RANGE_NOT_SATISFIABLE) {
+        throw e;
+      }
+      // The read position is the end of the data.
+      currentDataSource = null;
+      releaseLockedSpan();
+      bytesRemaining = 0;
+      setContentLength(readPosition);
+      return false;
+    }
+    if (currentRequestUnbounded && resolvedLength != C.LENGTH_UNBOUNDED) {
+      currentRequestUnbounded = false;
+      bytesRemaining = resolvedLength;
+      setContentLength(readPosition + resolvedLength);
+    }
+    return true;
+  }
+
+  private void setContentLength(long contentLength) {
+    if (key != null && !ignoreCache) {
+      cache.setContentLength(key, contentLength);
+    }
+  }
+
+  private void closeCurrentSource() throws IOException {
+    if (currentDataSource == null) {
+      return;
+    }
+    try {
+      currentDataSource.close();
+      currentDataSource = null;
+    } finally {
+      releaseLockedSpan();
+    }
+  }
+
+  private void releaseLockedSpan() {
+    if (lockedSpan != null) {
+      cache.releaseHoleSpan(lockedSpan);
+      lockedSpan = null;
+    }
+  }
+
+  private void handleBeforeThrow(IOException exception) {
+    if (ignoreCacheOnError && (currentDataSource == cacheReadDataSource
+        || exception instanceof CacheDataSinkException)) {
+      // Ignore the cache from now on.
+      Log.w(TAG, "Bypassing cache following error", exception);
+      ignoreCache = true;
+    }
+  }
+
+  private void notifyBytesRead() {
+    if (eventListener != null && totalCachedBytesRead > 0) {
+      eventListener.onCachedBytesRead(cache.getCacheSpace(), totalCachedBytesRead);
+      totalCachedBytesRead = 0;
+    }
+  }
+
+}
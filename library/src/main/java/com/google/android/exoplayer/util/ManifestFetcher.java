@@ -17,6 +17,7 @@ package com.google.android.exoplayer.util;
 
 import com.google.android.exoplayer.upstream.Loader;
 import com.google.android.exoplayer.upstream.Loader.Loadable;
+import com.google.android.exoplayer.upstream.PriorityLoaderExecutor;
 import com.google.android.exoplayer.upstream.UriDataSource;
 import com.google.android.exoplayer.upstream.UriLoadable;
 
@@ -43,6 +44,13 @@ import java.util.concurrent.CancellationException;
  *     components that require it. These components will call {@link #requestRefresh()} on the
  *     loader whenever a refresh is required.</li>
  * </ol>
+ * <p>
+ * Refreshes made over HTTP are sent as conditional requests using the {@code ETag} and
+ * {@code Last-Modified} validators of the current manifest. If the server responds that the
+ * manifest has not changed then the current manifest is retained, so that components comparing the
+ * result of {@link #getManifest()} with the manifest they last processed can skip processing it
+ * again. An {@link EventListener} that also implements {@link UnchangedManifestListener} is
+ * notified of such refreshes.
  *
  * @param <T> The type of manifest.
  */
@@ -69,6 +77,20 @@ public class ManifestFetcher<T> implements Loader.Callback {
 
   }
 
+  /**
+   * An optional extension of {@link EventListener} that is also notified when a refresh finds the
+   * manifest unchanged.
+   */
+  public interface UnchangedManifestListener extends EventListener {
+
+    /**
+     * Invoked when a refresh completes because the server reported that the manifest has not
+     * changed. The previously loaded manifest remains current, and is not parsed again.
+     */
+    public void onManifestUnchanged();
+
+  }
+
   /**
    * Callback for the result of a single load.
    *
@@ -123,6 +145,9 @@ public class ManifestFetcher<T> implements Loader.Callback {
   private ManifestIOException loadException;
 
   private volatile T manifest;
+  private volatile String manifestETag;
+  private volatile String manifestLastModified;
+  private volatile String manifestValidatorUri;
   private volatile long manifestLoadStartTimestamp;
   private volatile long manifestLoadCompleteTimestamp;
 
@@ -252,10 +277,14 @@ public class ManifestFetcher<T> implements Loader.Callback {
       return;
     }
     if (loader == null) {
-      loader = new Loader("manifestLoader");
+      loader = new Loader(PriorityLoaderExecutor.getSharedInstance(),
+          PriorityLoaderExecutor.PRIORITY_MANIFEST);
     }
     if (!loader.isLoading()) {
-      currentLoadable = new UriLoadable<>(manifestUri, uriDataSource, parser);
+      String uri = manifestUri;
+      boolean validatorsApply = manifest != null && uri.equals(manifestValidatorUri);
+      currentLoadable = new UriLoadable<>(uri, uriDataSource, parser,
+          validatorsApply ? manifestETag : null, validatorsApply ? manifestLastModified : null);
       currentLoadStartTimestamp = SystemClock.elapsedRealtime();
       loader.startLoading(currentLoadable, this);
       notifyManifestRefreshStarted();
@@ -269,12 +298,19 @@ public class ManifestFetcher<T> implements Loader.Callback {
       return;
     }
 
-    manifest = currentLoadable.getResult();
     manifestLoadStartTimestamp = currentLoadStartTimestamp;
     manifestLoadCompleteTimestamp = SystemClock.elapsedRealtime();
     loadExceptionCount = 0;
     loadException = null;
 
+    if (currentLoadable.isNotModified()) {
+      notifyManifestUnchanged();
+      return;
+    }
+
+    manifest = currentLoadable.getResult();
+    updateValidators(currentLoadable);
+
     if (manifest instanceof RedirectingManifest) {
       RedirectingManifest redirectingManifest = (RedirectingManifest) manifest;
       String nextLocation = redirectingManifest.getNextManifestUri();
@@ -305,12 +341,19 @@ public class ManifestFetcher<T> implements Loader.Callback {
     notifyManifestError(loadException);
   }
 
-  /* package */ void onSingleFetchCompleted(T result, long loadStartTimestamp) {
-    manifest = result;
+  /* package */ void onSingleFetchCompleted(UriLoadable<T> loadable, long loadStartTimestamp) {
+    manifest = loadable.getResult();
+    updateValidators(loadable);
     manifestLoadStartTimestamp = loadStartTimestamp;
     manifestLoadCompleteTimestamp = SystemClock.elapsedRealtime();
   }
 
+  private void updateValidators(UriLoadable<T> loadable) {
+    manifestETag = loadable.getETag();
+    manifestLastModified = loadable.getLastModified();
+    manifestValidatorUri = loadable.getUrl();
+  }
+
   private long getRetryDelayMillis(long errorCount) {
     return Math.min((errorCount - 1) * 1000, 5000);
   }
@@ -337,6 +380,17 @@ public class ManifestFetcher<T> implements Loader.Callback {
     }
   }
 
+  private void notifyManifestUnchanged() {
+    if (eventHandler != null && eventListener instanceof UnchangedManifestListener) {
+      eventHandler.post(new Runnable()  {
+        @Override
+        public void run() {
+          ((UnchangedManifestListener) eventListener).onManifestUnchanged();
+        }
+      });
+    }
+  }
+
   private void notifyManifestError(final IOException e) {
     if (eventHandler != null && eventListener != null) {
       eventHandler.post(new Runnable()  {
@@ -362,7 +416,8 @@ public class ManifestFetcher<T> implements Loader.Callback {
       this.singleUseLoadable = singleUseLoadable;
       this.callbackLooper = callbackLooper;
       this.wrappedCallback = wrappedCallback;
-      singleUseLoader = new Loader("manifestLoader:single");
+      singleUseLoader = new Loader(PriorityLoaderExecutor.getSharedInstance(),
+          PriorityLoaderExecutor.PRIORITY_MANIFEST);
     }
 
     public void startLoading() {
@@ -374,7 +429,7 @@ public class ManifestFetcher<T> implements Loader.Callback {
     public void onLoadCompleted(Loadable loadable) {
       try {
         T result = singleUseLoadable.getResult();
-        onSingleFetchCompleted(result, loadStartTimestamp);
+        onSingleFetchCompleted(singleUseLoadable, loadStartTimestamp);
         wrappedCallback.onSingleManifest(result);
       } finally {
         releaseLoader();
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Divides a memory budget between the consumers of memory in a process, such as the allocators of
+ * several players and their bandwidth histories.
+ * <p>
+ * Each registered {@link Consumer} requests a number of bytes and has a priority. Whenever the
+ * registrations change, the budget is rebalanced. Consumers are granted their requests in order of
+ * priority until the budget is exhausted. Consumers of the priority at which the budget runs out
+ * share what remains in proportion to their requests, and consumers of lower priorities are
+ * granted nothing. Consumers are informed of their new targets, and are expected to release memory
+ * beyond them.
+ * <p>
+ * Consumers are held by weak references, so a consumer that becomes unreachable without being
+ * unregistered does not continue to hold any of the budget once it has been garbage collected.
+ * <p>
+ * Note that lower integer values correspond to higher priorities.
+ */
+public final class MemoryBudgetManager {
+
+  /**
+   * A consumer of memory.
+   */
+  public interface Consumer {
+
+    /**
+     * Returns the number of bytes currently used by the consumer.
+     */
+    long getBytesUsed();
+
+    /**
+     * Invoked when the number of bytes that the consumer may use changes. The consumer should
+     * release memory beyond the target. May be invoked on any thread.
+     *
+     * @param targetBytes The number of bytes that the consumer may use.
+     */
+    void setByteTarget(long targetBytes);
+
+  }
+
+  /**
+   * Priority for consumers associated with foreground playbacks.
+   */
+  public static final int PRIORITY_FOREGROUND = 0;
+  /**
+   * Priority for consumers associated with background playbacks.
+   */
+  public static final int PRIORITY_BACKGROUND = 10;
+
+  /**
+   * The fraction of the maximum heap size used as the budget of the shared instance.
+   */
+  public static final float DEFAULT_BUDGET_FRACTION = 0.5f;
+
+  private static MemoryBudgetManager sharedInstance;
+
+  private final long budgetBytes;
+  private final WeakHashMap<Consumer, Registration> registrations;
+  private final Comparator<Consumer> priorityComparator;
+  private final Object rebalanceLock;
+
+  /**
+   * Returns a process-wide instance, whose budget is {@link #DEFAULT_BUDGET_FRACTION} of the
+   * maximum heap size.
+   */
+  public static synchronized MemoryBudgetManager getInstance() {
+    if (sharedInstance == null) {
+      sharedInstance = new MemoryBudgetManager(
+          (long) (Runtime.getRuntime().maxMemory() * DEFAULT_BUDGET_FRACTION));
+    }
+    return sharedInstance;
+  }
+
+  /**
+   * @param budgetBytes The total number of bytes to divide between consumers.
+   */
+  public MemoryBudgetManager(long budgetBytes) {
+    Assertions.checkArgument(budgetBytes > 0);
+    this.budgetBytes = budgetBytes;
+    registrations = new WeakHashMap<>();
+    rebalanceLock = new Object();
+    priorityComparator = new Comparator<Consumer>() {
+      @Override
+      public int compare(Consumer a, Consumer b) {
+        int aPriority = registrations.get(a).priority;
+        int bPriority = registrations.get(b).priority;
+        return aPriority < bPriority ? -1 : bPriority < aPriority ? 1 : 0;
+      }
+    };
+  }
+
+  /**
+   * Returns the total number of bytes divided between consumers.
+   */
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  /**
+   * Registers a consumer, and rebalances the budget.
+   *
+   * @param consumer The consumer.
+   * @param requestedBytes The number of bytes that the consumer would like to use.
+   * @param priority The priority of the consumer.
+   */
+  public void register(Consumer consumer, long requestedBytes, int priority) {
+    synchronized (this) {
+      Assertions.checkState(!registrations.containsKey(consumer));
+      registrations.put(consumer, new Registration(requestedBytes, priority));
+    }
+    rebalance();
+  }
+
+  /**
+   * Unregisters a consumer, and rebalances the budget.
+   *
+   * @param consumer The consumer.
+   */
+  public void unregister(Consumer consumer) {
+    synchronized (this) {
+      registrations.remove(consumer);
+    }
+    rebalance();
+  }
+
+  /**
+   * Updates the priority of a registered consumer, and rebalances the budget.
+   *
+   * @param consumer The consumer.
+   * @param priority The priority of the consumer.
+   */
+  public void setPriority(Consumer consumer, int priority) {
+    synchronized (this) {
+      getRegistration(consumer).priority = priority;
+    }
+    rebalance();
+  }
+
+  /**
+   * Updates the number of bytes that a registered consumer would like to use, and rebalances the
+   * budget.
+   *
+   * @param consumer The consumer.
+   * @param requestedBytes The number of bytes that the consumer would like to use.
+   */
+  public void setRequestedBytes(Consumer consumer, long requestedBytes) {
+    synchronized (this) {
+      Registration registration = getRegistration(consumer);
+      if (registration.requestedBytes == requestedBytes) {
+        return;
+      }
+      registration.requestedBytes = requestedBytes;
+    }
+    rebalance();
+  }
+
+  /**
+   * Returns the number of bytes that a registered consumer may use.
+   *
+   * @param consumer The consumer.
+   * @return The number of bytes that the consumer may use.
+   */
+  public synchronized long getByteTarget(Consumer consumer) {
+    return getRegistration(consumer).targetBytes;
+  }
+
+  /**
+   * Returns the number of bytes currently used by each registered consumer.
+   *
+   * @return A map from each consumer to the number of bytes it currently uses.
+   */
+  public Map<Consumer, Long> getBytesUsed() {
+    ArrayList<Consumer> consumers;
+    synchronized (this) {
+      consumers = new ArrayList<>(registrations.keySet());
+    }
+    Map<Consumer, Long> bytesUsed = new HashMap<>();
+    for (int i = 0; i < consumers.size(); i++) {
+      Consumer consumer = consumers.get(i);
+      bytesUsed.put(consumer, consumer.getBytesUsed());
+    }
+    return bytesUsed;
+  }
+
+  /**
+   * Returns the total number of bytes currently used by the registered consumers.
+   */
+  public long getTotalBytesUsed() {
+    long totalBytesUsed = 0;
+    for (long bytesUsed : getBytesUsed().values()) {
+      totalBytesUsed += bytesUsed;
+    }
+    return totalBytesUsed;
+  }
+
+  /**
+   * Recalculates the targets of the registered consumers, and informs those whose targets have
+   * changed.
+   */
+  public void rebalance() {
+    // Rebalances are serialized so that consumers are informed of their targets in order.
+    synchronized (rebalanceLock) {
+      rebalanceInternal();
+    }
+  }
+
+  private void rebalanceInternal() {
+    ArrayList<Consumer> changedConsumers = new ArrayList<>();
+    ArrayList<Long> changedTargets = new ArrayList<>();
+    synchronized (this) {
+      ArrayList<Consumer> consumers = new ArrayList<>(registrations.keySet());
+      Collections.sort(consumers, priorityComparator);
+      long remainingBytes = budgetBytes;
+      int groupStart = 0;
+      while (groupStart < consumers.size()) {
+        // Find the consumers with the same priority.
+        int priority = registrations.get(consumers.get(groupStart)).priority;
+        int groupEnd = groupStart;
+        long groupRequestedBytes = 0;
+        while (groupEnd < consumers.size()
+            && registrations.get(consumers.get(groupEnd)).priority == priority) {
+          groupRequestedBytes += registrations.get(consumers.get(groupEnd)).requestedBytes;
+          groupEnd++;
+        }
+        for (int i = groupStart; i < groupEnd; i++) {
+          Consumer consumer = consumers.get(i);
+          Registration registration = registrations.get(consumer);
+          long targetBytes = groupRequestedBytes <= remainingBytes ? registration.requestedBytes
+              : (long) ((double) registration.requestedBytes * remainingBytes
+                  / groupRequestedBytes);
+          if (registration.targetBytes != targetBytes) {
+            registration.targetBytes = targetBytes;
+            changedConsumers.add(consumer);
+            changedTargets.add(targetBytes);
+          }
+        }
+        remainingBytes = Math.max(0, remainingBytes - groupRequestedBytes);
+        groupStart = groupEnd;
+      }
+    }
+    // Consumers are informed without holding the lock, since they may call back into the manager.
+    for (int i = 0; i < changedConsumers.size(); i++) {
+      changedConsumers.get(i).setByteTarget(changedTargets.get(i));
+    }
+  }
+
+  private Registration getRegistration(Consumer consumer) {
+    Registration registration = registrations.get(consumer);
+    Assertions.checkState(registration != null);
+    return registration;
+  }
+
+  /**
+   * The registration of a consumer. Must not reference the consumer, which is held weakly.
+   */
+  private static final class Registration {
+
+    public long requestedBytes;
+    public int priority;
+    public long targetBytes;
+
+    public Registration(long requestedBytes, int priority) {
+      this.requestedBytes = requestedBytes;
+      this.priority = priority;
+      targetBytes = -1;
+    }
+
+  }
+
+}
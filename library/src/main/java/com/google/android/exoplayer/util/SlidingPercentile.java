@@ -15,9 +15,7 @@
  */
 package com.google.android.exoplayer.util;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 
 /**
  * Calculate any percentile over a sliding window of weighted values. A maximum total weight is
@@ -27,48 +25,83 @@ import java.util.Comparator;
  * SlidingPercentile can be used for bandwidth estimation based on a sliding window of past
  * download rate observations. This is an alternative to sliding mean and exponential averaging
  * which suffer from susceptibility to outliers and slow adaptation to step functions.
+ * <p>
+ * Samples are held in primitive arrays that form a ring buffer in order of age, and are also
+ * linked into a treap ordered by value in which each node records the total weight of its subtree.
+ * Adding a sample, removing the oldest sample and calculating a percentile each take O(log n)
+ * expected time, and no objects are allocated once the arrays have grown to hold the window.
+ * <p>
+ * The history can be registered with a {@link MemoryBudgetManager}. If the history is given a
+ * byte target that's too small to hold all of the samples in the window, then the oldest samples
+ * are discarded early.
  *
  * @see <a href="http://en.wikipedia.org/wiki/Moving_average">Wiki: Moving average</a>
  * @see <a href="http://en.wikipedia.org/wiki/Selection_algorithm">Wiki: Selection algorithm</a>
+ * @see <a href="http://en.wikipedia.org/wiki/Treap">Wiki: Treap</a>
  */
-public final class SlidingPercentile {
-
-  // Orderings.
-  private static final Comparator<Sample> INDEX_COMPARATOR = new Comparator<Sample>() {
-    @Override
-    public int compare(Sample a, Sample b) {
-      return a.index - b.index;
-    }
-  };
+public final class SlidingPercentile implements MemoryBudgetManager.Consumer {
 
-  private static final Comparator<Sample> VALUE_COMPARATOR = new Comparator<Sample>() {
-    @Override
-    public int compare(Sample a, Sample b) {
-      return a.value < b.value ? -1 : b.value < a.value ? 1 : 0;
-    }
-  };
-
-  private static final int SORT_ORDER_NONE = -1;
-  private static final int SORT_ORDER_BY_VALUE = 0;
-  private static final int SORT_ORDER_BY_INDEX = 1;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int NIL = -1;
 
-  private static final int MAX_RECYCLED_SAMPLES = 5;
+  /**
+   * The approximate number of bytes used to hold each sample.
+   */
+  private static final int SAMPLE_SIZE_BYTES = 32;
 
   private final int maxWeight;
-  private final ArrayList<Sample> samples;
 
-  private final Sample[] recycledSamples;
+  // Per sample state, indexed by position in the ring buffer.
+  private int[] indices;
+  private int[] weights;
+  private float[] values;
+  private int[] priorities;
+  private int[] lefts;
+  private int[] rights;
+  private int[] subtreeWeights;
 
-  private int currentSortOrder;
+  private int oldestSample;
+  private int sampleCount;
+  private int root;
   private int nextSampleIndex;
   private int totalWeight;
-  private int recycledSampleCount;
+  private int randomState;
+  private volatile int maxSampleCount;
 
   public SlidingPercentile(int maxWeight) {
     this.maxWeight = maxWeight;
-    recycledSamples = new Sample[MAX_RECYCLED_SAMPLES];
-    samples = new ArrayList<>();
-    currentSortOrder = SORT_ORDER_NONE;
+    indices = new int[INITIAL_CAPACITY];
+    weights = new int[INITIAL_CAPACITY];
+    values = new float[INITIAL_CAPACITY];
+    priorities = new int[INITIAL_CAPACITY];
+    lefts = new int[INITIAL_CAPACITY];
+    rights = new int[INITIAL_CAPACITY];
+    subtreeWeights = new int[INITIAL_CAPACITY];
+    root = NIL;
+    randomState = 0x2545F491;
+    maxSampleCount = Integer.MAX_VALUE;
+  }
+
+  /**
+   * Returns the approximate number of bytes used by the history when it holds a sample for each
+   * unit of the maximum weight.
+   */
+  public long getMaxBytesUsed() {
+    return (long) maxWeight * SAMPLE_SIZE_BYTES;
+  }
+
+  @Override
+  public long getBytesUsed() {
+    return (long) sampleCount * SAMPLE_SIZE_BYTES;
+  }
+
+  /**
+   * Limits the number of samples held, taking effect when the next sample is added.
+   */
+  @Override
+  public void setByteTarget(long targetBytes) {
+    maxSampleCount = (int) Math.max(1, Math.min(targetBytes / SAMPLE_SIZE_BYTES,
+        Integer.MAX_VALUE));
   }
 
   /**
@@ -79,30 +112,33 @@ public final class SlidingPercentile {
    * @param value The value of the new observation.
    */
   public void addSample(int weight, float value) {
-    ensureSortedByIndex();
-
-    Sample newSample = recycledSampleCount > 0 ? recycledSamples[--recycledSampleCount]
-        : new Sample();
-    newSample.index = nextSampleIndex++;
-    newSample.weight = weight;
-    newSample.value = value;
-    samples.add(newSample);
+    if (sampleCount == indices.length) {
+      grow();
+    }
+    int newSample = (oldestSample + sampleCount) % indices.length;
+    sampleCount++;
+    indices[newSample] = nextSampleIndex++;
+    weights[newSample] = weight;
+    values[newSample] = value;
+    priorities[newSample] = nextRandom();
+    lefts[newSample] = NIL;
+    rights[newSample] = NIL;
+    subtreeWeights[newSample] = weight;
+    root = insert(root, newSample);
     totalWeight += weight;
 
     while (totalWeight > maxWeight) {
       int excessWeight = totalWeight - maxWeight;
-      Sample oldestSample = samples.get(0);
-      if (oldestSample.weight <= excessWeight) {
-        totalWeight -= oldestSample.weight;
-        samples.remove(0);
-        if (recycledSampleCount < MAX_RECYCLED_SAMPLES) {
-          recycledSamples[recycledSampleCount++] = oldestSample;
-        }
+      if (weights[oldestSample] <= excessWeight) {
+        removeOldestSample();
       } else {
-        oldestSample.weight -= excessWeight;
-        totalWeight -= excessWeight;
+        reduceWeight(oldestSample, excessWeight);
       }
     }
+
+    while (sampleCount > maxSampleCount) {
+      removeOldestSample();
+    }
   }
 
   /**
@@ -112,46 +148,183 @@ public final class SlidingPercentile {
    * @return The requested percentile value or Float.NaN.
    */
   public float getPercentile(float percentile) {
-    ensureSortedByValue();
+    if (root == NIL) {
+      return Float.NaN;
+    }
     float desiredWeight = percentile * totalWeight;
     int accumulatedWeight = 0;
-    for (int i = 0; i < samples.size(); i++) {
-      Sample currentSample = samples.get(i);
-      accumulatedWeight += currentSample.weight;
-      if (accumulatedWeight >= desiredWeight) {
-        return currentSample.value;
+    int node = root;
+    int lastNode = root;
+    while (node != NIL) {
+      lastNode = node;
+      int leftWeight = getSubtreeWeight(lefts[node]);
+      if (lefts[node] != NIL && accumulatedWeight + leftWeight >= desiredWeight) {
+        node = lefts[node];
+      } else {
+        accumulatedWeight += leftWeight + weights[node];
+        if (accumulatedWeight >= desiredWeight) {
+          return values[node];
+        }
+        node = rights[node];
+      }
+    }
+    // Clamp to maximum value. A left subtree satisfying the desired weight always contains a
+    // sample that does, so we only get here by descending to the right.
+    return values[lastNode];
+  }
+
+  private void removeOldestSample() {
+    root = remove(root, oldestSample);
+    totalWeight -= weights[oldestSample];
+    oldestSample = (oldestSample + 1) % indices.length;
+    sampleCount--;
+  }
+
+  /**
+   * Reduces the weight of a sample, updating the subtree weights on the path to it.
+   */
+  private void reduceWeight(int sample, int weightReduction) {
+    int node = root;
+    while (node != sample) {
+      subtreeWeights[node] -= weightReduction;
+      node = isOrderedBefore(sample, node) ? lefts[node] : rights[node];
+    }
+    subtreeWeights[sample] -= weightReduction;
+    weights[sample] -= weightReduction;
+    totalWeight -= weightReduction;
+  }
+
+  /**
+   * Inserts a sample into a subtree, returning the new root of the subtree.
+   */
+  private int insert(int node, int sample) {
+    if (node == NIL) {
+      return sample;
+    }
+    subtreeWeights[node] += weights[sample];
+    if (isOrderedBefore(sample, node)) {
+      lefts[node] = insert(lefts[node], sample);
+      if (priorities[lefts[node]] > priorities[node]) {
+        node = rotateRight(node);
+      }
+    } else {
+      rights[node] = insert(rights[node], sample);
+      if (priorities[rights[node]] > priorities[node]) {
+        node = rotateLeft(node);
       }
     }
-    // Clamp to maximum value or NaN if no values.
-    return samples.isEmpty() ? Float.NaN : samples.get(samples.size() - 1).value;
+    return node;
   }
 
   /**
-   * Sort the samples by index, if not already.
+   * Removes a sample from a subtree that contains it, returning the new root of the subtree.
    */
-  private void ensureSortedByIndex() {
-    if (currentSortOrder != SORT_ORDER_BY_INDEX) {
-      Collections.sort(samples, INDEX_COMPARATOR);
-      currentSortOrder = SORT_ORDER_BY_INDEX;
+  private int remove(int node, int sample) {
+    if (node == sample) {
+      return merge(lefts[node], rights[node]);
+    }
+    subtreeWeights[node] -= weights[sample];
+    if (isOrderedBefore(sample, node)) {
+      lefts[node] = remove(lefts[node], sample);
+    } else {
+      rights[node] = remove(rights[node], sample);
     }
+    return node;
   }
 
   /**
-   * Sort the samples by value, if not already.
+   * Merges two subtrees, where every sample in the first is ordered before every sample in the
+   * second, returning the root of the merged subtree.
    */
-  private void ensureSortedByValue() {
-    if (currentSortOrder != SORT_ORDER_BY_VALUE) {
-      Collections.sort(samples, VALUE_COMPARATOR);
-      currentSortOrder = SORT_ORDER_BY_VALUE;
+  private int merge(int first, int second) {
+    if (first == NIL) {
+      return second;
+    } else if (second == NIL) {
+      return first;
+    } else if (priorities[first] > priorities[second]) {
+      subtreeWeights[first] += subtreeWeights[second];
+      rights[first] = merge(rights[first], second);
+      return first;
+    } else {
+      subtreeWeights[second] += subtreeWeights[first];
+      lefts[second] = merge(first, lefts[second]);
+      return second;
     }
   }
 
-  private static class Sample {
+  private int rotateRight(int node) {
+    int left = lefts[node];
+    lefts[node] = rights[left];
+    rights[left] = node;
+    subtreeWeights[left] = subtreeWeights[node];
+    subtreeWeights[node] = weights[node] + getSubtreeWeight(lefts[node])
+        + getSubtreeWeight(rights[node]);
+    return left;
+  }
+
+  private int rotateLeft(int node) {
+    int right = rights[node];
+    rights[node] = lefts[right];
+    lefts[right] = node;
+    subtreeWeights[right] = subtreeWeights[node];
+    subtreeWeights[node] = weights[node] + getSubtreeWeight(lefts[node])
+        + getSubtreeWeight(rights[node]);
+    return right;
+  }
 
-    public int index;
-    public int weight;
-    public float value;
+  private int getSubtreeWeight(int node) {
+    return node == NIL ? 0 : subtreeWeights[node];
+  }
+
+  /**
+   * Returns whether one sample is ordered before another. Samples are ordered by value, and samples
+   * with equal values are ordered by age.
+   */
+  private boolean isOrderedBefore(int a, int b) {
+    return values[a] < values[b] || (values[a] == values[b] && indices[a] - indices[b] < 0);
+  }
+
+  private int nextRandom() {
+    // Xorshift, which is sufficient for choosing treap priorities.
+    randomState ^= randomState << 13;
+    randomState ^= randomState >>> 17;
+    randomState ^= randomState << 5;
+    return randomState;
+  }
+
+  /**
+   * Doubles the capacity of the ring buffer. The samples are moved so that the oldest is at
+   * position 0, and the tree links are remapped to the new positions.
+   */
+  private void grow() {
+    int capacity = indices.length;
+    int newCapacity = capacity * 2;
+    indices = unwrap(indices, newCapacity);
+    weights = unwrap(weights, newCapacity);
+    priorities = unwrap(priorities, newCapacity);
+    subtreeWeights = unwrap(subtreeWeights, newCapacity);
+    lefts = unwrap(lefts, newCapacity);
+    rights = unwrap(rights, newCapacity);
+    float[] newValues = new float[newCapacity];
+    System.arraycopy(values, oldestSample, newValues, 0, capacity - oldestSample);
+    System.arraycopy(values, 0, newValues, capacity - oldestSample, oldestSample);
+    values = newValues;
+    for (int i = 0; i < sampleCount; i++) {
+      lefts[i] = remap(lefts[i], capacity);
+      rights[i] = remap(rights[i], capacity);
+    }
+    root = remap(root, capacity);
+    oldestSample = 0;
+  }
+
+  private int[] unwrap(int[] array, int newCapacity) {
+    int[] newArray = Arrays.copyOfRange(array, oldestSample, oldestSample + newCapacity);
+    System.arraycopy(array, 0, newArray, array.length - oldestSample, oldestSample);
+    return newArray;
+  }
 
+  private int remap(int node, int capacity) {
+    return node == NIL ? NIL : (node - oldestSample + capacity) % capacity;
   }
 
 }
@@ -17,6 +17,7 @@ package com.google.android.exoplayer.util;
 
 import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.ExoPlayerLibraryInfo;
+import com.google.android.exoplayer.upstream.ByteBufferDataSource;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DataSpec;
 
@@ -37,6 +38,7 @@ import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -220,6 +222,42 @@ public final class Util {
     });
   }
 
+  /**
+   * Reads up to {@code buffer.remaining()} bytes from a {@link DataSource} into a
+   * {@link ByteBuffer}, advancing the position of the buffer by the number of bytes read.
+   * <p>
+   * If the source is a {@link ByteBufferDataSource} then it reads into the buffer directly. Else
+   * if the buffer is backed by an array then the source reads into the array directly. Else the
+   * data is read into {@code scratch} and then copied into the buffer.
+   *
+   * @param dataSource The source from which to read.
+   * @param buffer The buffer into which the read data should be stored.
+   * @param scratch A scratch array, used only if the data cannot be read into the buffer directly.
+   * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the end of the opened
+   *     range is reached.
+   * @throws IOException If an error occurs reading from the source.
+   */
+  public static int read(DataSource dataSource, ByteBuffer buffer, byte[] scratch)
+      throws IOException {
+    if (dataSource instanceof ByteBufferDataSource) {
+      return ((ByteBufferDataSource) dataSource).read(buffer);
+    }
+    int bytesRead;
+    if (buffer.hasArray()) {
+      bytesRead = dataSource.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+          buffer.remaining());
+      if (bytesRead > 0) {
+        buffer.position(buffer.position() + bytesRead);
+      }
+    } else {
+      bytesRead = dataSource.read(scratch, 0, Math.min(scratch.length, buffer.remaining()));
+      if (bytesRead > 0) {
+        buffer.put(scratch, 0, bytesRead);
+      }
+    }
+    return bytesRead;
+  }
+
   /**
    * Closes a {@link DataSource}, suppressing any {@link IOException} that may occur.
    *
@@ -613,8 +651,9 @@ public final class Util {
     } else {
       long remainingLength = dataSpec.length == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED
           : dataSpec.length - bytesLoaded;
-      return new DataSpec(dataSpec.uri, dataSpec.position + bytesLoaded, remainingLength,
-          dataSpec.key, dataSpec.flags);
+      long position = dataSpec.position + bytesLoaded;
+      return new DataSpec(dataSpec.uri, null, position, position, remainingLength, dataSpec.key,
+          dataSpec.flags, dataSpec.httpRequestHeaders);
     }
   }
 
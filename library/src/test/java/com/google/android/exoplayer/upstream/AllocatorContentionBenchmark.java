@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the throughput of {@link Allocator} implementations when allocations are obtained and
+ * returned on several threads concurrently.
+ * <p>
+ * Two patterns are measured:
+ * <ul>
+ * <li>Batch: each thread repeatedly allocates a batch of allocations and then releases them
+ *     itself. This measures the per-thread fast path.</li>
+ * <li>Handoff: producer threads allocate and pass each allocation to a consumer thread, which
+ *     releases it. Before each allocation a producer calls
+ *     {@link Allocator#blockWhileTotalBytesAllocatedExceeds(int)} with a limit smaller than the
+ *     number of allocations that can be in flight, so producers are repeatedly parked and then
+ *     woken by the consumers' releases. This is the pattern of a loader that fills a buffer up to
+ *     the {@link com.google.android.exoplayer.LoadControl}'s limit whilst a renderer drains
+ *     it.</li>
+ * </ul>
+ * Run with:
+ * <pre>
+ * java com.google.android.exoplayer.upstream.AllocatorContentionBenchmark [threads] [iterations]
+ * </pre>
+ */
+public final class AllocatorContentionBenchmark {
+
+  private static final int ALLOCATION_SIZE = 64 * 1024;
+  private static final int BATCH_SIZE = 4;
+  private static final int HANDOFF_QUEUE_SIZE = 64;
+  private static final int HANDOFF_LIMIT_ALLOCATIONS = 16;
+  private static final int DEFAULT_THREAD_COUNT = 4;
+  private static final int DEFAULT_ITERATION_COUNT = 500000;
+  private static final int RUN_COUNT = 5;
+
+  private AllocatorContentionBenchmark() {}
+
+  public static void main(String[] args) throws InterruptedException {
+    int maxThreadCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREAD_COUNT;
+    int iterationCount = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATION_COUNT;
+    for (int threadCount = 1; threadCount <= maxThreadCount; threadCount *= 2) {
+      for (int run = 0; run < RUN_COUNT; run++) {
+        // The first run of each configuration warms up the JIT, and is not reported.
+        long defaultNs = runBatch(new DefaultAllocator(ALLOCATION_SIZE), threadCount,
+            iterationCount);
+        long concurrentNs = runBatch(new ConcurrentAllocator(ALLOCATION_SIZE), threadCount,
+            iterationCount);
+        if (run > 0) {
+          print("batch", threadCount, run, nsPerOperation(defaultNs, threadCount, iterationCount),
+              nsPerOperation(concurrentNs, threadCount, iterationCount));
+        }
+      }
+    }
+    // Each producer is paired with a consumer, and each allocation is handed over once.
+    int handoffIterationCount = iterationCount * BATCH_SIZE / 4;
+    for (int pairCount = 1; pairCount * 2 <= Math.max(2, maxThreadCount); pairCount *= 2) {
+      for (int run = 0; run < RUN_COUNT; run++) {
+        long defaultNs = runHandoff(new DefaultAllocator(ALLOCATION_SIZE), pairCount,
+            handoffIterationCount);
+        long concurrentNs = runHandoff(new ConcurrentAllocator(ALLOCATION_SIZE), pairCount,
+            handoffIterationCount);
+        if (run > 0) {
+          print("handoff", pairCount * 2, run,
+              nsPerHandoff(defaultNs, pairCount, handoffIterationCount),
+              nsPerHandoff(concurrentNs, pairCount, handoffIterationCount));
+        }
+      }
+    }
+  }
+
+  private static long runBatch(final Allocator allocator, int threadCount,
+      final int iterationCount) throws InterruptedException {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch endLatch = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Allocation[] batch = new Allocation[BATCH_SIZE];
+          try {
+            startLatch.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < iterationCount; i++) {
+            for (int j = 0; j < BATCH_SIZE; j++) {
+              batch[j] = allocator.allocate();
+            }
+            for (int j = 0; j < BATCH_SIZE; j++) {
+              allocator.release(batch[j]);
+              batch[j] = null;
+            }
+          }
+          endLatch.countDown();
+        }
+      }).start();
+    }
+    long startTimeNs = System.nanoTime();
+    startLatch.countDown();
+    endLatch.await();
+    return System.nanoTime() - startTimeNs;
+  }
+
+  private static long runHandoff(final Allocator allocator, int pairCount,
+      final int iterationCount) throws InterruptedException {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch endLatch = new CountDownLatch(pairCount * 2);
+    // The limit is shared by all producers, as the LoadControl's limit is shared by all loaders.
+    final int limit = pairCount * HANDOFF_LIMIT_ALLOCATIONS * ALLOCATION_SIZE - ALLOCATION_SIZE;
+    for (int i = 0; i < pairCount; i++) {
+      final ArrayBlockingQueue<Allocation> queue =
+          new ArrayBlockingQueue<>(HANDOFF_QUEUE_SIZE);
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            startLatch.await();
+            for (int i = 0; i < iterationCount; i++) {
+              allocator.blockWhileTotalBytesAllocatedExceeds(limit);
+              queue.put(allocator.allocate());
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+          endLatch.countDown();
+        }
+      }).start();
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            startLatch.await();
+            for (int i = 0; i < iterationCount; i++) {
+              allocator.release(queue.take());
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+          endLatch.countDown();
+        }
+      }).start();
+    }
+    long startTimeNs = System.nanoTime();
+    startLatch.countDown();
+    endLatch.await();
+    return System.nanoTime() - startTimeNs;
+  }
+
+  private static void print(String pattern, int threadCount, int run, long defaultNsPerOperation,
+      long concurrentNsPerOperation) {
+    System.out.println(pattern + " threads=" + threadCount + " run=" + run
+        + " default=" + defaultNsPerOperation + "ns/op"
+        + " concurrent=" + concurrentNsPerOperation + "ns/op");
+  }
+
+  private static long nsPerOperation(long elapsedNs, int threadCount, int iterationCount) {
+    // Each iteration performs one allocation and one release per batch entry.
+    return elapsedNs / ((long) threadCount * iterationCount * BATCH_SIZE * 2);
+  }
+
+  private static long nsPerHandoff(long elapsedNs, int pairCount, int iterationCount) {
+    // Each iteration performs one allocation and one release, on different threads.
+    return elapsedNs / ((long) pairCount * iterationCount * 2);
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.upstream.BandwidthEstimatorReplay.Sample;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Replays trace files through each of the built-in {@link BandwidthEstimator}s with default
+ * parameters, and prints the results. See {@link BandwidthEstimatorReplay}. Run with:
+ * <pre>
+ * java com.google.android.exoplayer.upstream.BandwidthEstimatorReplayTool trace...
+ * </pre>
+ */
+public final class BandwidthEstimatorReplayTool {
+
+  private BandwidthEstimatorReplayTool() {}
+
+  /**
+   * Replays each trace file given as an argument through each of the built-in estimators, and
+   * prints the results.
+   *
+   * @param args The paths of the trace files.
+   * @throws IOException If an error occurs reading a trace file.
+   */
+  public static void main(String[] args) throws IOException {
+    for (String path : args) {
+      List<Sample> samples;
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      try {
+        samples = BandwidthEstimatorReplay.parseTrace(reader);
+      } finally {
+        reader.close();
+      }
+      System.out.println(path + " (" + samples.size() + " samples)");
+      print("SlidingPercentile", new SlidingPercentileBandwidthEstimator(), samples);
+      print("DualEwma", new DualEwmaBandwidthEstimator(), samples);
+      print("HarmonicMean", new HarmonicMeanBandwidthEstimator(), samples);
+      print("Kalman", new KalmanBandwidthEstimator(), samples);
+    }
+  }
+
+  private static void print(String name, BandwidthEstimator estimator, List<Sample> samples) {
+    System.out.println("  " + BandwidthEstimatorReplay.replay(name, estimator, samples));
+  }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link FairShareAllocator}.
+ */
+public final class FairShareAllocatorTest {
+
+  private static final int ALLOCATION_SIZE = 16;
+  private static final long TIMEOUT_MS = 5000;
+
+  private static final Object AUDIO = "audio";
+  private static final Object VIDEO = "video";
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testOwnerWithinQuotaIsNotBlocked() throws InterruptedException {
+    FairShareAllocator allocator = new FairShareAllocator(new DefaultAllocator(ALLOCATION_SIZE));
+    Allocator audio = allocator.register(AUDIO, 2 * ALLOCATION_SIZE);
+    Allocator video = allocator.register(VIDEO, 2 * ALLOCATION_SIZE);
+    allocate(video, 6);
+    audio.allocate();
+    // The pool exceeds the limit, but audio has allocated less than its quota.
+    audio.blockWhileTotalBytesAllocatedExceeds(4 * ALLOCATION_SIZE);
+    assertEquals(7 * ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+    assertEquals(ALLOCATION_SIZE, allocator.getBytesAllocated(AUDIO));
+    assertEquals(6 * ALLOCATION_SIZE, allocator.getBytesAllocated(VIDEO));
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testOwnerOverQuotaBorrowsUpToLimit() throws InterruptedException {
+    FairShareAllocator allocator = new FairShareAllocator(new DefaultAllocator(ALLOCATION_SIZE));
+    allocator.register(AUDIO, 2 * ALLOCATION_SIZE);
+    Allocator video = allocator.register(VIDEO, 2 * ALLOCATION_SIZE);
+    // Video borrows the share that audio isn't using.
+    for (int i = 0; i < 4; i++) {
+      video.blockWhileTotalBytesAllocatedExceeds(4 * ALLOCATION_SIZE);
+      video.allocate();
+    }
+    assertFalse(allocator.isWithinQuota(VIDEO));
+    assertEquals(4 * ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testOwnerOverQuotaBlocksUntilRelease() throws InterruptedException {
+    FairShareAllocator allocator = new FairShareAllocator(new DefaultAllocator(ALLOCATION_SIZE));
+    Allocator video = allocator.register(VIDEO, ALLOCATION_SIZE);
+    Allocation[] allocations = allocate(video, 3);
+    Thread thread = startBlocking(video, 2 * ALLOCATION_SIZE);
+    awaitWaiting(thread);
+    video.release(allocations[0]);
+    thread.join();
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testQuotaIncreaseUnblocksOwner() throws InterruptedException {
+    FairShareAllocator allocator = new FairShareAllocator(new DefaultAllocator(ALLOCATION_SIZE));
+    Allocator video = allocator.register(VIDEO, ALLOCATION_SIZE);
+    allocate(video, 3);
+    Thread thread = startBlocking(video, 2 * ALLOCATION_SIZE);
+    awaitWaiting(thread);
+    allocator.setQuota(VIDEO, 4 * ALLOCATION_SIZE);
+    thread.join();
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testBlockingDirectlyIgnoresQuotas() throws InterruptedException {
+    FairShareAllocator allocator = new FairShareAllocator(new DefaultAllocator(ALLOCATION_SIZE));
+    allocator.register(AUDIO, 4 * ALLOCATION_SIZE);
+    Allocation[] allocations = allocate(allocator, 3);
+    // Allocations obtained directly aren't attributed to audio, so audio's quota doesn't apply.
+    assertEquals(0, allocator.getBytesAllocated(AUDIO));
+    Thread thread = startBlocking(allocator, 2 * ALLOCATION_SIZE);
+    awaitWaiting(thread);
+    allocator.release(allocations[0]);
+    thread.join();
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testLowerQuotaUtilizationProceedsFirst() throws InterruptedException {
+    FairShareAllocator allocator = new FairShareAllocator(new DefaultAllocator(ALLOCATION_SIZE));
+    final Allocator audio = allocator.register(AUDIO, ALLOCATION_SIZE);
+    final Allocator video = allocator.register(VIDEO, ALLOCATION_SIZE);
+    // Both owners are over quota, and video is further over it than audio.
+    Allocation[] audioAllocations = allocate(audio, 2);
+    allocate(video, 4);
+    final Thread audioThread = new Thread() {
+      @Override
+      public void run() {
+        block(audio, 5 * ALLOCATION_SIZE);
+        // Spin rather than terminate, so that the thread is observed as runnable once it has
+        // stopped waiting.
+        while (!isInterrupted()) {}
+      }
+    };
+    final Thread.State[] audioStateWhenVideoProceeded = new Thread.State[1];
+    Thread videoThread = new Thread() {
+      @Override
+      public void run() {
+        block(video, 5 * ALLOCATION_SIZE);
+        audioStateWhenVideoProceeded[0] = audioThread.getState();
+      }
+    };
+    // Video starts waiting first.
+    videoThread.start();
+    awaitWaiting(videoThread);
+    audioThread.start();
+    awaitWaiting(audioThread);
+    // Both owners can now proceed. Audio has the lower quota utilization, so it must stop waiting
+    // before video does.
+    audio.release(audioAllocations[0]);
+    videoThread.join();
+    audioThread.interrupt();
+    audioThread.join();
+    assertEquals(Thread.State.RUNNABLE, audioStateWhenVideoProceeded[0]);
+  }
+
+  @Test
+  public void testIsWithinQuotaRequiresAllocationThroughView() {
+    FairShareAllocator allocator = new FairShareAllocator(new DefaultAllocator(ALLOCATION_SIZE));
+    Allocator audio = allocator.register(AUDIO, 2 * ALLOCATION_SIZE);
+    allocator.allocate();
+    assertFalse(allocator.isWithinQuota(AUDIO));
+    audio.release(audio.allocate());
+    assertTrue(allocator.isWithinQuota(AUDIO));
+    allocate(audio, 2);
+    assertFalse(allocator.isWithinQuota(AUDIO));
+    assertFalse(allocator.isWithinQuota(VIDEO));
+  }
+
+  private static Allocation[] allocate(Allocator allocator, int count) {
+    Allocation[] allocations = new Allocation[count];
+    for (int i = 0; i < count; i++) {
+      allocations[i] = allocator.allocate();
+    }
+    return allocations;
+  }
+
+  private static Thread startBlocking(final Allocator allocator, final int limit) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        block(allocator, limit);
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private static void block(Allocator allocator, int limit) {
+    try {
+      allocator.blockWhileTotalBytesAllocatedExceeds(limit);
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void awaitWaiting(Thread thread) throws InterruptedException {
+    while (thread.getState() != Thread.State.WAITING) {
+      assertTrue(thread.isAlive());
+      Thread.sleep(1);
+    }
+  }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.exoplayer.C;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link ParallelRangeDataSource}.
+ */
+public final class ParallelRangeDataSourceTest {
+
+  private static final int PART_SIZE = 100;
+  private static final int ALLOCATION_SIZE = 32;
+  private static final int CONNECTION_COUNT = 3;
+  private static final int MAX_BUFFERED_PARTS = 4;
+  private static final long TIMEOUT_MS = 5000;
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testSmallRequestIsReadSequentially() throws Exception {
+    FakeSourceFactory sourceFactory = new FakeSourceFactory(buildData(2 * PART_SIZE));
+    ParallelRangeDataSource dataSource = newDataSource(sourceFactory, new DefaultAllocator(
+        ALLOCATION_SIZE));
+    assertEquals(2 * PART_SIZE, dataSource.open(new DataSpec(null, 0, 2 * PART_SIZE, null)));
+    assertTrue(Arrays.equals(sourceFactory.data, readToEnd(dataSource)));
+    dataSource.close();
+    assertEquals(1, sourceFactory.openedDataSpecs.size());
+    assertEquals(2 * PART_SIZE, sourceFactory.openedDataSpecs.get(0).length);
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testKnownLengthOpensLeadForFirstPart() throws Exception {
+    int length = 10 * PART_SIZE + 17;
+    FakeSourceFactory sourceFactory = new FakeSourceFactory(buildData(length));
+    DefaultAllocator allocator = new DefaultAllocator(ALLOCATION_SIZE);
+    ParallelRangeDataSource dataSource = newDataSource(sourceFactory, allocator);
+    assertEquals(length, dataSource.open(new DataSpec(null, 0, length, null)));
+    // The lead source is opened before open returns.
+    assertEquals(0, sourceFactory.openedDataSpecs.get(0).position);
+    assertEquals(PART_SIZE, sourceFactory.openedDataSpecs.get(0).length);
+    assertTrue(Arrays.equals(sourceFactory.data, readToEnd(dataSource)));
+    dataSource.close();
+    List<DataSpec> dataSpecs = sourceFactory.getOpenedDataSpecs();
+    assertEquals(11, dataSpecs.size());
+    long bytesRequested = 0;
+    for (DataSpec dataSpec : dataSpecs) {
+      assertTrue(dataSpec.length != C.LENGTH_UNBOUNDED && dataSpec.length <= PART_SIZE);
+      bytesRequested += dataSpec.length;
+    }
+    assertEquals(length, bytesRequested);
+    awaitAllReleased(allocator);
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testUnknownLengthIsResolvedByLead() throws Exception {
+    int length = 5 * PART_SIZE + 1;
+    FakeSourceFactory sourceFactory = new FakeSourceFactory(buildData(length));
+    DefaultAllocator allocator = new DefaultAllocator(ALLOCATION_SIZE);
+    ParallelRangeDataSource dataSource = newDataSource(sourceFactory, allocator);
+    assertEquals(length, dataSource.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null)));
+    assertEquals(C.LENGTH_UNBOUNDED, sourceFactory.openedDataSpecs.get(0).length);
+    assertTrue(Arrays.equals(sourceFactory.data, readToEnd(dataSource)));
+    dataSource.close();
+    assertEquals(6, sourceFactory.getOpenedDataSpecs().size());
+    awaitAllReleased(allocator);
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testCloseBeforeEndReleasesAllocations() throws Exception {
+    int length = 20 * PART_SIZE;
+    FakeSourceFactory sourceFactory = new FakeSourceFactory(buildData(length));
+    DefaultAllocator allocator = new DefaultAllocator(ALLOCATION_SIZE);
+    ParallelRangeDataSource dataSource = newDataSource(sourceFactory, allocator);
+    dataSource.open(new DataSpec(null, 0, length, null));
+    byte[] buffer = new byte[3 * PART_SIZE];
+    readFully(dataSource, buffer, buffer.length);
+    assertTrue(Arrays.equals(Arrays.copyOf(sourceFactory.data, buffer.length), buffer));
+    dataSource.close();
+    awaitAllReleased(allocator);
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testBufferedPartsAreAllocatedFromAllocator() throws Exception {
+    int length = 20 * PART_SIZE;
+    FakeSourceFactory sourceFactory = new FakeSourceFactory(buildData(length));
+    DefaultAllocator allocator = new DefaultAllocator(ALLOCATION_SIZE);
+    ParallelRangeDataSource dataSource = newDataSource(sourceFactory, allocator);
+    dataSource.open(new DataSpec(null, 0, length, null));
+    // Without reading, the workers fill the maximum number of buffered parts and then wait.
+    int allocationsPerPart = (PART_SIZE + ALLOCATION_SIZE - 1) / ALLOCATION_SIZE;
+    int expectedBytes = MAX_BUFFERED_PARTS * allocationsPerPart * ALLOCATION_SIZE;
+    while (allocator.getTotalBytesAllocated() < expectedBytes) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(50);
+    assertEquals(expectedBytes, allocator.getTotalBytesAllocated());
+    dataSource.close();
+    awaitAllReleased(allocator);
+  }
+
+  @Test(timeout = TIMEOUT_MS)
+  public void testWorkerErrorIsThrownFromRead() throws Exception {
+    int length = 10 * PART_SIZE;
+    FakeSourceFactory sourceFactory = new FakeSourceFactory(buildData(length));
+    sourceFactory.failPosition = 2 * PART_SIZE;
+    DefaultAllocator allocator = new DefaultAllocator(ALLOCATION_SIZE);
+    ParallelRangeDataSource dataSource = newDataSource(sourceFactory, allocator);
+    dataSource.open(new DataSpec(null, 0, length, null));
+    byte[] buffer = new byte[length];
+    IOException error = null;
+    try {
+      readFully(dataSource, buffer, length);
+    } catch (IOException e) {
+      error = e;
+    }
+    assertTrue(error != null);
+    dataSource.close();
+    awaitAllReleased(allocator);
+  }
+
+  private static ParallelRangeDataSource newDataSource(FakeSourceFactory sourceFactory,
+      Allocator allocator) {
+    return new ParallelRangeDataSource(sourceFactory, allocator, CONNECTION_COUNT, PART_SIZE,
+        MAX_BUFFERED_PARTS);
+  }
+
+  private static byte[] buildData(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i * 31);
+    }
+    return data;
+  }
+
+  private static byte[] readToEnd(DataSource dataSource) throws IOException {
+    byte[] buffer = new byte[1024 * 1024];
+    int length = 0;
+    int bytesRead;
+    while ((bytesRead = dataSource.read(buffer, length, 37)) != C.RESULT_END_OF_INPUT) {
+      length += bytesRead;
+    }
+    return Arrays.copyOf(buffer, length);
+  }
+
+  private static void readFully(DataSource dataSource, byte[] buffer, int length)
+      throws IOException {
+    int bytesRead = 0;
+    while (bytesRead < length) {
+      bytesRead += dataSource.read(buffer, bytesRead, length - bytesRead);
+    }
+  }
+
+  private static void awaitAllReleased(Allocator allocator) throws InterruptedException {
+    // Workers that were fetching when the source was closed release their parts when they stop.
+    while (allocator.getTotalBytesAllocated() > 0) {
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * Creates {@link FakeDataSource}s that serve the same data, and records the requests they open.
+   */
+  private static final class FakeSourceFactory implements ParallelRangeDataSource.SourceFactory {
+
+    public final byte[] data;
+    public final List<DataSpec> openedDataSpecs;
+
+    public volatile long failPosition;
+
+    public FakeSourceFactory(byte[] data) {
+      this.data = data;
+      this.openedDataSpecs = new ArrayList<>();
+      failPosition = C.LENGTH_UNBOUNDED;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+      return new FakeDataSource(this);
+    }
+
+    public synchronized List<DataSpec> getOpenedDataSpecs() {
+      return new ArrayList<>(openedDataSpecs);
+    }
+
+    private synchronized void onOpened(DataSpec dataSpec) {
+      openedDataSpecs.add(dataSpec);
+    }
+
+  }
+
+  /**
+   * A {@link DataSource} that serves a range of an in-memory array, in reads of limited size.
+   */
+  private static final class FakeDataSource implements DataSource {
+
+    private static final int MAX_READ_LENGTH = 23;
+
+    private final FakeSourceFactory factory;
+
+    private int position;
+    private int bytesRemaining;
+
+    public FakeDataSource(FakeSourceFactory factory) {
+      this.factory = factory;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      factory.onOpened(dataSpec);
+      if (dataSpec.position == factory.failPosition) {
+        throw new IOException("Failed to open " + dataSpec.position);
+      }
+      position = (int) dataSpec.position;
+      bytesRemaining = dataSpec.length == C.LENGTH_UNBOUNDED
+          ? factory.data.length - position : (int) dataSpec.length;
+      return bytesRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) {
+      if (bytesRemaining == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      int bytesToRead = Math.min(Math.min(readLength, bytesRemaining), MAX_READ_LENGTH);
+      System.arraycopy(factory.data, position, buffer, offset, bytesToRead);
+      position += bytesToRead;
+      bytesRemaining -= bytesToRead;
+      return bytesToRead;
+    }
+
+    @Override
+    public void close() {
+      // Do nothing.
+    }
+
+  }
+
+}
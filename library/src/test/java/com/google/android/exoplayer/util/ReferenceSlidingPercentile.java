@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A straightforward implementation of the behavior of {@link SlidingPercentile}, which holds the
+ * samples in a list in order of age and sorts a copy of the list to calculate each percentile.
+ */
+/* package */ final class ReferenceSlidingPercentile {
+
+  private static final Comparator<float[]> VALUE_COMPARATOR = new Comparator<float[]>() {
+    @Override
+    public int compare(float[] a, float[] b) {
+      return Float.compare(a[1], b[1]);
+    }
+  };
+
+  private final int maxWeight;
+  // Each sample is held as {weight, value}.
+  private final ArrayList<float[]> samples;
+
+  private int totalWeight;
+  private int maxSampleCount;
+
+  public ReferenceSlidingPercentile(int maxWeight) {
+    this.maxWeight = maxWeight;
+    samples = new ArrayList<>();
+    maxSampleCount = Integer.MAX_VALUE;
+  }
+
+  public void setMaxSampleCount(int maxSampleCount) {
+    this.maxSampleCount = maxSampleCount;
+  }
+
+  public int getSampleCount() {
+    return samples.size();
+  }
+
+  public void addSample(int weight, float value) {
+    samples.add(new float[] {weight, value});
+    totalWeight += weight;
+    while (totalWeight > maxWeight) {
+      int excessWeight = totalWeight - maxWeight;
+      float[] oldestSample = samples.get(0);
+      if (oldestSample[0] <= excessWeight) {
+        totalWeight -= (int) oldestSample[0];
+        samples.remove(0);
+      } else {
+        oldestSample[0] -= excessWeight;
+        totalWeight -= excessWeight;
+      }
+    }
+    while (samples.size() > maxSampleCount) {
+      totalWeight -= (int) samples.remove(0)[0];
+    }
+  }
+
+  public float getPercentile(float percentile) {
+    if (samples.isEmpty()) {
+      return Float.NaN;
+    }
+    // The sort is stable, so samples with equal values remain in order of age.
+    ArrayList<float[]> sortedSamples = new ArrayList<>(samples);
+    Collections.sort(sortedSamples, VALUE_COMPARATOR);
+    float desiredWeight = percentile * totalWeight;
+    int accumulatedWeight = 0;
+    for (float[] sample : sortedSamples) {
+      accumulatedWeight += (int) sample[0];
+      if (accumulatedWeight >= desiredWeight) {
+        return sample[1];
+      }
+    }
+    return sortedSamples.get(sortedSamples.size() - 1)[1];
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.util;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of adding a sample to {@link SlidingPercentile} and then calculating a
+ * percentile, which is the pattern of a bandwidth meter, for windows holding many samples.
+ * {@link ReferenceSlidingPercentile} is measured for comparison. Run with:
+ * <pre>
+ * java com.google.android.exoplayer.util.SlidingPercentileBenchmark [maxWeight]
+ * </pre>
+ */
+public final class SlidingPercentileBenchmark {
+
+  private static final int DEFAULT_MAX_WEIGHT = 200000;
+  private static final int ITERATION_COUNT = 1000000;
+  private static final int REFERENCE_ITERATION_COUNT = 20;
+  private static final int RUN_COUNT = 5;
+
+  private SlidingPercentileBenchmark() {}
+
+  public static void main(String[] args) {
+    int maxWeight = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_WEIGHT;
+    for (int run = 0; run < RUN_COUNT; run++) {
+      // The first run warms up the JIT, and is not reported.
+      long treapNs = runSlidingPercentile(maxWeight);
+      long referenceNs = runReference(maxWeight);
+      if (run > 0) {
+        System.out.println("maxWeight=" + maxWeight + " run=" + run
+            + " treap=" + treapNs / ITERATION_COUNT + "ns/op"
+            + " reference=" + referenceNs / REFERENCE_ITERATION_COUNT + "ns/op");
+      }
+    }
+  }
+
+  private static long runSlidingPercentile(int maxWeight) {
+    SlidingPercentile percentile = new SlidingPercentile(maxWeight);
+    Random random = new Random(0);
+    // Fill the window with samples of weight 1, so that it holds maxWeight samples.
+    for (int i = 0; i < maxWeight; i++) {
+      percentile.addSample(1, random.nextFloat());
+    }
+    float sum = 0;
+    long startTimeNs = System.nanoTime();
+    for (int i = 0; i < ITERATION_COUNT; i++) {
+      percentile.addSample(1, random.nextFloat());
+      sum += percentile.getPercentile(0.5f);
+    }
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    consume(sum);
+    return elapsedNs;
+  }
+
+  private static long runReference(int maxWeight) {
+    ReferenceSlidingPercentile percentile = new ReferenceSlidingPercentile(maxWeight);
+    Random random = new Random(0);
+    for (int i = 0; i < maxWeight; i++) {
+      percentile.addSample(1, random.nextFloat());
+    }
+    float sum = 0;
+    long startTimeNs = System.nanoTime();
+    for (int i = 0; i < REFERENCE_ITERATION_COUNT; i++) {
+      percentile.addSample(1, random.nextFloat());
+      sum += percentile.getPercentile(0.5f);
+    }
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    consume(sum);
+    return elapsedNs;
+  }
+
+  private static void consume(float value) {
+    // Prevents the calculated percentiles from being optimized away.
+    if (value == Float.MIN_VALUE) {
+      System.out.println(value);
+    }
+  }
+
+}
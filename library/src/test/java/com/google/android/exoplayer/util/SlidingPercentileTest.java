@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests {@link SlidingPercentile} against {@link ReferenceSlidingPercentile}.
+ */
+public final class SlidingPercentileTest {
+
+  private static final float[] PERCENTILES = {0.01f, 0.1f, 0.25f, 0.5f, 0.75f, 0.9f, 0.99f, 1f};
+
+  @Test
+  public void testEmptyHistoryReturnsNaN() {
+    assertTrue(Float.isNaN(new SlidingPercentile(100).getPercentile(0.5f)));
+  }
+
+  @Test
+  public void testSingleSample() {
+    SlidingPercentile percentile = new SlidingPercentile(100);
+    percentile.addSample(1000, 5f);
+    for (float p : PERCENTILES) {
+      assertEquals(5f, percentile.getPercentile(p), 0f);
+    }
+  }
+
+  @Test
+  public void testMatchesReferenceWithRandomSamples() {
+    Random random = new Random(0);
+    SlidingPercentile percentile = new SlidingPercentile(2000);
+    ReferenceSlidingPercentile reference = new ReferenceSlidingPercentile(2000);
+    for (int i = 0; i < 5000; i++) {
+      // Weights up to the maximum weight cause both partial reduction and removal of the oldest
+      // samples.
+      int weight = 1 + random.nextInt(random.nextBoolean() ? 10 : 2000);
+      float value = random.nextFloat() * 1000;
+      percentile.addSample(weight, value);
+      reference.addSample(weight, value);
+      assertPercentilesEqual(reference, percentile);
+    }
+  }
+
+  @Test
+  public void testMatchesReferenceWhenGrowingWrappedBuffer() {
+    // A few heavy samples fill the window. Each light sample then removes weight from the oldest,
+    // so the buffer grows several times whilst the oldest sample is not at its start.
+    SlidingPercentile percentile = new SlidingPercentile(1000);
+    ReferenceSlidingPercentile reference = new ReferenceSlidingPercentile(1000);
+    Random random = new Random(1);
+    for (int i = 0; i < 10; i++) {
+      percentile.addSample(100, i);
+      reference.addSample(100, i);
+    }
+    for (int i = 0; i < 3000; i++) {
+      float value = random.nextInt(50);
+      percentile.addSample(1, value);
+      reference.addSample(1, value);
+      assertEquals(reference.getSampleCount() * 32L, percentile.getBytesUsed());
+      assertPercentilesEqual(reference, percentile);
+    }
+  }
+
+  @Test
+  public void testMatchesReferenceWithEqualValues() {
+    // Samples with equal values are ordered by age, so the oldest of several equal samples can be
+    // found in the tree when it's reduced in weight or removed.
+    Random random = new Random(2);
+    SlidingPercentile percentile = new SlidingPercentile(500);
+    ReferenceSlidingPercentile reference = new ReferenceSlidingPercentile(500);
+    for (int i = 0; i < 5000; i++) {
+      int weight = 1 + random.nextInt(40);
+      float value = random.nextInt(3);
+      percentile.addSample(weight, value);
+      reference.addSample(weight, value);
+      assertPercentilesEqual(reference, percentile);
+    }
+  }
+
+  @Test
+  public void testMatchesReferenceWithByteTarget() {
+    Random random = new Random(3);
+    SlidingPercentile percentile = new SlidingPercentile(2000);
+    ReferenceSlidingPercentile reference = new ReferenceSlidingPercentile(2000);
+    for (int i = 0; i < 3000; i++) {
+      if (i == 1000) {
+        percentile.setByteTarget(20 * 32);
+        reference.setMaxSampleCount(20);
+      }
+      int weight = 1 + random.nextInt(10);
+      float value = random.nextFloat();
+      percentile.addSample(weight, value);
+      reference.addSample(weight, value);
+      assertEquals(reference.getSampleCount() * 32L, percentile.getBytesUsed());
+      assertPercentilesEqual(reference, percentile);
+    }
+  }
+
+  private static void assertPercentilesEqual(ReferenceSlidingPercentile expected,
+      SlidingPercentile actual) {
+    for (float p : PERCENTILES) {
+      assertEquals(expected.getPercentile(p), actual.getPercentile(p), 0f);
+    }
+  }
+
+}